@@ -0,0 +1,58 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Запуск всех бенчмарков с записью результатов в JSON.
+ * Бенчмарки таблиц прогоняются на 1, 4, 16 и 64 потоках, остальные - на одном.
+ * Результаты: &lt;каталог&gt;/table-threads-N.json, load.json, request-parser.json, response.json.
+ * Формат - стандартный JSON JMH, его можно сравнивать между сборками (например, JMH Visualizer или jq).
+ * Для запуска отдельных бенчмарков с произвольными опциями JMH есть org.openjdk.jmh.Main в том же jar.
+ */
+public class BenchmarkRunner {
+    private static final int[] THREADS = {1, 4, 16, 64}; //Потоки для бенчмарков таблиц
+
+    /**
+     * Точка входа.
+     *
+     * @param args [0] - каталог для результатов, по умолчанию target/jmh.
+     * @throws RunnerException При ошибке запуска JMH.
+     */
+    public static void main(String[] args) throws RunnerException {
+        File dir = new File(args.length > 0 ? args[0] : "target/jmh");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Невозможно создать каталог " + dir.getAbsolutePath());
+        }
+        for (int threads : THREADS) {
+            run(TableBenchmark.class, threads, new File(dir, "table-threads-" + threads + ".json"));
+        }
+        run(LoadBenchmark.class, 1, new File(dir, "load.json"));
+        run(RequestParserBenchmark.class, 1, new File(dir, "request-parser.json"));
+        run(ResponseBenchmark.class, 1, new File(dir, "response.json"));
+        run(RouterBenchmark.class, 1, new File(dir, "router.json"));
+    }
+
+    /**
+     * Запуск одного класса бенчмарков.
+     *
+     * @param benchmark Класс.
+     * @param threads   Количество потоков.
+     * @param result    Файл результатов.
+     * @throws RunnerException При ошибке запуска JMH.
+     */
+    private static void run(Class<?> benchmark, int threads, File result) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(benchmark.getName() + "\\.")
+                .threads(threads)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getAbsolutePath());
+        new Runner(options.build()).run();
+        System.out.println("Результаты " + benchmark.getSimpleName() + " (" + threads + " потоков): " + result.getAbsolutePath());
+    }
+}
@@ -0,0 +1,76 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.pflb.httpserver.utils.Table;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка таблицы из CSV файла на 1 и 10 млн строк. Файл создается один раз на запуск и удаляется в конце.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class LoadBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    @Param({"heap", "packed"})
+    public String storage;
+
+    private File mFile;
+    private Table mTable;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        mFile = File.createTempFile("vts-bench", ".csv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(mFile), 1 << 16)) {
+            for (int i = 0; i < rows; i++) {
+                out.write("login");
+                out.write(Integer.toString(i));
+                out.write(";password");
+                out.write(Integer.toString(i));
+                out.write(";");
+                out.write(Integer.toString(i % 100));
+                out.write('\n');
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Прежняя таблица освобождается до замера, чтобы обе не держались в памяти.
+     */
+    @Setup(Level.Iteration)
+    public void release() {
+        if (mTable != null) {
+            mTable.close();
+            mTable = null;
+        }
+        System.gc();
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = "bench";
+        params.filename = mFile.getAbsolutePath();
+        params.storage = storage;
+        mTable = Table.create(params);
+        return mTable.size();
+    }
+}
@@ -0,0 +1,56 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.pflb.httpserver.core.HTTPRequest;
+import ru.pflb.httpserver.core.HTTPRequestParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор запроса: строка запроса с параметрами (в том числе %XX), заголовки и тело.
+ * Парсер один на поток, как на соединение keep-alive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    @Param({"get", "push"})
+    public String request;
+
+    private final HTTPRequestParser mParser = new HTTPRequestParser();
+    private ByteBuffer mRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String text;
+        if ("push".equals(request)) {
+            String body = "login1;password1\nlogin2;password2\nlogin3;password3";
+            text = "POST /vts/table/users?cmd=push&delimiter=%3B HTTP/1.1\r\n" +
+                    "Host: localhost:8080\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Content-Length: " + body.length() + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n" + body;
+        } else {
+            text = "GET /vts/table/users?cmd=pop&row=10&col=1&delimiter=%3B&client=vuser%2042 HTTP/1.1\r\n" +
+                    "Host: localhost:8080\r\n" +
+                    "User-Agent: Apache-HttpClient/4.5.13 (Java/1.8.0_301)\r\n" +
+                    "Accept-Encoding: gzip,deflate\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n";
+        }
+        mRequest = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public HTTPRequest parse() {
+        mRequest.rewind();
+        return mParser.parse(mRequest);
+    }
+}
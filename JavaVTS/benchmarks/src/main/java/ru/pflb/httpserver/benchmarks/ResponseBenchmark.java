@@ -0,0 +1,42 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.pflb.httpserver.core.HTTPConstants;
+import ru.pflb.httpserver.core.HTTPModule;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование ответа (заголовок и тело в UTF-8) без записи в сокет: короткая строка таблицы,
+ * пачка строк и страница описания с кириллицей.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int length;
+
+    private final ByteBuffer[] mBuffers = new ByteBuffer[2];
+    private HTTPModule.Response mResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(length > 1024 ? "Таблица пуста<br/>" : "login1;password1\n");
+        }
+        sb.setLength(length);
+        mResponse = new HTTPModule.Response(null, HTTPConstants.CODE.C200, sb.toString());
+    }
+
+    @Benchmark
+    public ByteBuffer[] encode() {
+        return mResponse.encode(mBuffers);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.pflb.httpserver.core.HTTPModule;
+import ru.pflb.httpserver.core.HTTPRequest;
+import ru.pflb.httpserver.core.Router;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск обработчика пути по уровням URL, как их отдает парсер: таблица, менеджер и неизвестный путь.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    @Param({"table", "manager", "unknown"})
+    public String path;
+
+    private final Router mRouter = new Router();
+    private String[] mUrls;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Router.Handler handler = new Router.Handler() {
+            @Override
+            public void handle(HTTPModule.Response response, Socket socket, HTTPRequest request, int level) {
+            }
+        };
+        mRouter.add("vts", handler);
+        mRouter.add("vts/table/" + Router.ANY, handler);
+        mRouter.add("vts/manager", handler);
+        mRouter.add("metrics", handler);
+        if ("table".equals(path)) {
+            mUrls = new String[]{"vts", "table", "users"};
+        } else if ("manager".equals(path)) {
+            mUrls = new String[]{"vts", "manager"};
+        } else {
+            mUrls = new String[]{"static", "index.html"};
+        }
+    }
+
+    @Benchmark
+    public Router.Route match() {
+        return mRouter.match(mUrls);
+    }
+}
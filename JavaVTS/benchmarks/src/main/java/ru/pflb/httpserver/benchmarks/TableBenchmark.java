@@ -0,0 +1,104 @@
+package ru.pflb.httpserver.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.pflb.httpserver.utils.Table;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Команды таблиц всех типов: get/pop/push по курсору и по случайному номеру строки.
+ * pop и push идут парами, чтобы размер таблицы не менялся за время замера.
+ * Количество потоков задается при запуске (см. {@link BenchmarkRunner}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableBenchmark {
+    private static final String DELIMITER = ";";
+
+    @Param({"list", "concurrent", "queue", "sharded"})
+    public String type;
+
+    @Param({"100000"})
+    public int rows;
+
+    private Table mTable;
+
+    /**
+     * Таблица загружается из файла, как на стенде (таблица типа sharded при этом делится на части поровну).
+     *
+     * @throws IOException При ошибке записи файла.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = File.createTempFile("vts-bench", ".csv");
+        try {
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+                for (int i = 0; i < rows; i++) {
+                    out.write("login" + i + DELIMITER + "password" + i + "\n");
+                }
+            }
+            Table.TableParams params = new Table.TableParams();
+            params.name = "bench";
+            params.filename = file.getAbsolutePath();
+            params.type = type;
+            mTable = Table.create(params);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mTable.close();
+    }
+
+    @Benchmark
+    public String get() {
+        return mTable.get(null, null, DELIMITER);
+    }
+
+    @Benchmark
+    public String getRow() {
+        return mTable.get(randomRow(), null, DELIMITER);
+    }
+
+    @Benchmark
+    public String getCell() {
+        return mTable.get(randomRow(), 1, DELIMITER);
+    }
+
+    @Benchmark
+    public String popPush() {
+        String row = mTable.pop(null, null, DELIMITER, true);
+        mTable.push(null, null, DELIMITER, row);
+        return row;
+    }
+
+    @Benchmark
+    public String popPushRow() {
+        int row = randomRow();
+        String res = mTable.pop(row, null, DELIMITER, true);
+        mTable.push(row, null, DELIMITER, res);
+        return res;
+    }
+
+    /**
+     * Случайная строка с запасом от конца: параллельные pop могут на время уменьшить таблицу.
+     *
+     * @return Номер строки.
+     */
+    private int randomRow() {
+        return ThreadLocalRandom.current().nextInt(rows / 2);
+    }
+}
@@ -0,0 +1,136 @@
+package ru.pflb.httpserver.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Разбор запросов по байтам: тело по длине и чанками, запрос, пришедший частями, %XX и несколько запросов подряд.
+ */
+public class HTTPRequestParserTest {
+
+    @Test
+    public void parsesRequestLineAndParams() {
+        HTTPRequest request = parseWhole("GET /VTS/Table/Users?CMD=get&row=2&flag HTTP/1.1\r\nHost: x\r\n\r\n");
+        assertEquals(HTTPConstants.METHOD.GET, request.getMethod());
+        assertArrayEquals(new String[]{"vts", "table", "users"}, request.getUrls());
+        assertEquals("get", request.getParams().get("cmd"));
+        assertEquals("2", request.getParams().get("row"));
+        assertTrue(request.getParams().containsKey("flag"));
+        assertNull(request.getParams().get("flag"));
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void decodesPercentEscapes() {
+        HTTPRequest request = parseWhole("GET /vts/table/%D0%A2%D0%B0%D0%B1?value=Alice%20B%3Bc%26d&%4Bey=%41 HTTP/1.1\r\n\r\n");
+        assertEquals("таб", request.getUrls()[2]);
+        assertEquals("Alice B;c&d", request.getParams().get("value"));
+        //Имена параметров приводятся к нижнему регистру, значения - нет
+        assertEquals("A", request.getParams().get("key"));
+    }
+
+    @Test
+    public void keepsMalformedEscapeAsIs() {
+        HTTPRequest request = parseWhole("GET /x?value=100%25%zz% HTTP/1.1\r\n\r\n");
+        assertEquals("100%%zz%", request.getParams().get("value"));
+    }
+
+    @Test
+    public void readsBodyByContentLength() {
+        HTTPRequest request = parseWhole("POST /vts/table/t?cmd=push HTTP/1.1\r\nContent-Length: 7\r\n\r\na;b\nc;d");
+        assertEquals("a;b\nc;d", request.getData());
+    }
+
+    @Test
+    public void readsChunkedBody() {
+        HTTPRequest request = parseWhole("POST /t HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "4\r\nWiki\r\n6;ext=1\r\npedia \r\nE\r\nin \r\n\r\nchunks.\r\n0\r\nTrailer: x\r\n\r\n");
+        assertEquals("Wikipedia in \r\n\r\nchunks.", new String(request.getBody(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void parsesRequestSplitAtEveryByte() {
+        byte[] bytes = ("POST /vts/table/t?value=%D0%AF HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        HTTPRequestParser parser = new HTTPRequestParser();
+        HTTPRequest request = null;
+        for (int i = 0; i < bytes.length; i++) {
+            assertNull("Запрос собран раньше последнего байта: " + i, request);
+            request = parser.parse(ByteBuffer.wrap(bytes, i, 1));
+        }
+        assertNotNull(request);
+        assertEquals("Я", request.getParams().get("value"));
+        assertEquals("abcde", request.getData());
+    }
+
+    @Test
+    public void parsesPipelinedRequests() {
+        ByteBuffer buf = ascii("GET /a?n=1 HTTP/1.1\r\n\r\n"
+                + "POST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nxyz"
+                + "GET /c HTTP/1.1\r\nConnection: close\r\n\r\n"
+                + "GET /d");
+        HTTPRequestParser parser = new HTTPRequestParser();
+
+        HTTPRequest first = parser.parse(buf);
+        assertEquals("a", first.getUrls()[0]);
+        assertEquals("1", first.getParams().get("n"));
+        assertNull(first.getData());
+
+        HTTPRequest second = parser.parse(buf);
+        assertEquals("b", second.getUrls()[0]);
+        assertEquals("xyz", second.getData());
+
+        HTTPRequest third = parser.parse(buf);
+        assertEquals("c", third.getUrls()[0]);
+        assertFalse(third.isKeepAlive());
+
+        //Начало четвертого запроса остается в парсере до следующей порции
+        assertNull(parser.parse(buf));
+        assertFalse(buf.hasRemaining());
+        HTTPRequest fourth = parser.parse(ascii(" HTTP/1.0\r\n\r\n"));
+        assertEquals("d", fourth.getUrls()[0]);
+        assertFalse(fourth.isKeepAlive());
+    }
+
+    @Test
+    public void readsPipelinedRequestsFromStream() throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(("GET /a HTTP/1.1\r\n\r\n"
+                + "PUT /b HTTP/1.1\r\nContent-Length: 2\r\n\r\nok").getBytes(StandardCharsets.US_ASCII));
+        HTTPRequestParser parser = new HTTPRequestParser();
+        assertEquals("a", parser.read(in).getUrls()[0]);
+        assertEquals("ok", parser.read(in).getData());
+        assertNull(parser.read(in));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadChunkSize() {
+        parseWhole("POST /t HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+    }
+
+    @Test(expected = HTTPRequestParser.TooLargeException.class)
+    public void rejectsTooLargeBody() {
+        parseWhole("POST /t HTTP/1.1\r\nContent-Length: 999999999\r\n\r\n");
+    }
+
+    private static HTTPRequest parseWhole(String text) {
+        ByteBuffer buf = ascii(text);
+        HTTPRequest request = new HTTPRequestParser().parse(buf);
+        assertNotNull(request);
+        assertFalse(buf.hasRemaining());
+        return request;
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
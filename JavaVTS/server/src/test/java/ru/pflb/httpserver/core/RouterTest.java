@@ -0,0 +1,82 @@
+package ru.pflb.httpserver.core;
+
+import org.junit.Test;
+
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Маршрутизатор: самый длинный путь, точное имя уровня раньше {@link Router#ANY} и повторная регистрация.
+ */
+public class RouterTest {
+
+    @Test
+    public void matchesLongestPath() {
+        Router router = new Router();
+        router.add("vts", new Named());
+        router.add("vts/table/*", new Named());
+        router.add("vts/table/manager", new Named());
+
+        assertEquals(1, router.match(new String[]{"vts"}).getLevel());
+        assertEquals(1, router.match(new String[]{"vts", "other"}).getLevel());
+        assertEquals(3, router.match(new String[]{"vts", "table", "users", "x"}).getLevel());
+        assertFalse(router.match(new String[]{"vts", "table", "users"}).isAsync());
+        assertNull(router.match(new String[]{"metrics"}));
+        assertNull(router.match(new String[0]));
+    }
+
+    @Test
+    public void prefersExactSegmentOverAny() {
+        Router router = new Router();
+        Named any = new Named();
+        Named exact = new Named();
+        router.add("t/*", any);
+        router.add("T/exact", exact);
+
+        router.match(new String[]{"t", "exact"}).handle(null, null, null);
+        router.match(new String[]{"t", "other"}).handle(null, null, null);
+        assertEquals(1, exact.mCalls);
+        assertEquals(1, any.mCalls);
+    }
+
+    @Test
+    public void fallsBackToShorterPath() {
+        Router router = new Router();
+        Named root = new Named();
+        router.add("a", root);
+        router.add("a/b/c", new Named());
+        //Путь a/b не зарегистрирован: остается a
+        Router.Route route = router.match(new String[]{"a", "b", "x"});
+        route.handle(null, null, null);
+        assertEquals(1, root.mCalls);
+        assertSame(route, router.match(new String[]{"a"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatePath() {
+        Router router = new Router();
+        router.add("a/*", new Named());
+        router.add("A/*/", new Named());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPath() {
+        new Router().add("/", new Named());
+    }
+
+    /**
+     * Обработчик, считающий вызовы.
+     */
+    private static final class Named implements Router.Handler {
+        private int mCalls; //Вызовов
+
+        @Override
+        public void handle(HTTPModule.Response response, Socket socket, HTTPRequest request, int level) {
+            mCalls++;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ru.pflb.httpserver.modules;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Кадры бинарного протокола: длина впереди, несколько кадров подряд, строки с null и проверки длин.
+ */
+public class BinaryProtocolTest {
+
+    @Test
+    public void readsFramesBackToBack() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+        DataOutputStream data = writer.start(7, BinaryProtocol.FIND);
+        data.writeInt(1);
+        BinaryProtocol.putString(data, "значение");
+        BinaryProtocol.putString(data, null);
+        writer.writeTo(out);
+        writer.start(8, BinaryProtocol.SIZE).writeInt(3);
+        writer.writeTo(out);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ByteBuffer frame = BinaryProtocol.readFrame(in, null);
+        assertEquals(7, frame.getInt());
+        assertEquals(BinaryProtocol.FIND, frame.get());
+        assertEquals(1, frame.getInt());
+        assertEquals("значение", BinaryProtocol.getString(frame));
+        assertNull(BinaryProtocol.getString(frame));
+        assertFalse(frame.hasRemaining());
+
+        //Второй кадр меньше, буфер переиспользуется
+        ByteBuffer second = BinaryProtocol.readFrame(in, frame);
+        assertSame(frame, second);
+        assertEquals(8, second.getInt());
+        assertEquals(BinaryProtocol.SIZE, second.get());
+        assertEquals(3, second.getInt());
+        assertEquals(0, second.remaining());
+
+        assertNull(BinaryProtocol.readFrame(in, frame));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsShortFrame() throws IOException {
+        BinaryProtocol.readFrame(stream(4, 0, 0, 0, 0), null);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeFrame() throws IOException {
+        BinaryProtocol.readFrame(stream(BinaryProtocol.MAX_FRAME + 1), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStringLongerThanFrame() {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(100).putInt(0).flip();
+        BinaryProtocol.getString(buf);
+    }
+
+    private static DataInputStream stream(int length, int... bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(length);
+        for (int b : bytes) {
+            data.writeByte(b);
+        }
+        return new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
@@ -0,0 +1,112 @@
+package ru.pflb.httpserver.modules;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.pflb.httpserver.core.HTTPConstants;
+import ru.pflb.httpserver.core.HTTPModule.Response;
+import ru.pflb.httpserver.utils.Table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pop с ожиданием: ответ сразу, после вставки в порядке прихода, по истечении ожидания и при остановке.
+ */
+public class PopWaitersTest {
+    private TableRegistry mTables;
+    private PopWaiters mWaiters;
+    private Table mTable;
+
+    @Before
+    public void setUp() throws IOException {
+        mTables = new TableRegistry();
+        mWaiters = new PopWaiters(new VTSModule(), mTables);
+        Table.TableParams params = new Table.TableParams();
+        params.name = "W";
+        params.type = Table.TYPE.QUEUE.toString();
+        mTable = Table.create(params);
+        mTables.put(mTable);
+    }
+
+    @After
+    public void tearDown() {
+        mWaiters.stop();
+    }
+
+    @Test
+    public void answersAtOnceWhenRowsExist() throws Exception {
+        mTable.push(null, null, ";", "a");
+        assertEquals("a", body(mWaiters.pop("w", pop(), 60000)));
+    }
+
+    @Test
+    public void wakesWaitersInArrivalOrder() throws Exception {
+        CompletableFuture<Response> first = mWaiters.pop("w", pop(), 60000);
+        CompletableFuture<Response> second = mWaiters.pop("W", pop(), 60000);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        mTable.push(null, null, ";", "a");
+        mWaiters.pushed("w");
+        assertEquals("a", body(first));
+        assertFalse(second.isDone());
+
+        mTable.push(null, null, ";", "b");
+        mWaiters.pushed("w");
+        assertEquals("b", body(second));
+        assertEquals(0, mTable.size());
+    }
+
+    @Test
+    public void failsAsEmptyAfterTimeout() throws Exception {
+        try {
+            mWaiters.pop("w", pop(), 50).get(10, TimeUnit.SECONDS);
+            fail("Pop из пустой таблицы завершился успешно");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void answers503OnStop() throws Exception {
+        CompletableFuture<Response> waiting = mWaiters.pop("w", pop(), 60000);
+        mWaiters.stop();
+        assertEquals(HTTPConstants.CODE.C503, waiting.get(10, TimeUnit.SECONDS).getCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooLongWait() {
+        mWaiters.pop("w", pop(), PopWaiters.MAX_WAIT + 1);
+    }
+
+    private static HashMap<String, String> pop() {
+        HashMap<String, String> params = new HashMap<>();
+        params.put(Table.PARAMS.CMD.toString(), "pop");
+        return params;
+    }
+
+    /**
+     * Тело успешного ответа.
+     *
+     * @param result Ответ.
+     * @return Тело.
+     * @throws Exception При ошибке или если ответа нет 10 с.
+     */
+    private static String body(CompletableFuture<Response> result) throws Exception {
+        Response response = result.get(10, TimeUnit.SECONDS);
+        assertEquals(HTTPConstants.CODE.C200, response.getCode());
+        ByteBuffer body = response.encode(new ByteBuffer[2])[1];
+        return StandardCharsets.UTF_8.decode(body).toString();
+    }
+}
@@ -0,0 +1,77 @@
+package ru.pflb.httpserver.modules;
+
+import org.junit.Test;
+import ru.pflb.httpserver.utils.Table;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Реестр таблиц: поиск без учета регистра, удаление без ожидания запросов и ожидание закрытия перед передачей журнала.
+ */
+public class TableRegistryTest {
+
+    @Test
+    public void findsTablesCaseInsensitive() throws IOException {
+        TableRegistry tables = new TableRegistry();
+        Table table = create("Users");
+        tables.put(table);
+        TableRegistry.Entry entry = tables.acquire("USERS");
+        assertSame(table, entry.table());
+        entry.release();
+        assertSame(table, tables.get("users"));
+        assertEquals(1, tables.snapshot().size());
+    }
+
+    @Test
+    public void removesWithoutWaitingForRequests() throws IOException {
+        TableRegistry tables = new TableRegistry();
+        tables.put(create("t"));
+        TableRegistry.Entry entry = tables.acquire("t");
+
+        long start = System.nanoTime();
+        assertTrue(tables.remove("t"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertNull(tables.acquire("t"));
+        assertFalse(tables.remove("t"));
+        //Начатый запрос дорабатывает с таблицей
+        assertEquals(0, entry.table().size());
+        entry.release();
+    }
+
+    @Test
+    public void drainWaitsForStartedRequests() throws Exception {
+        final TableRegistry tables = new TableRegistry();
+        tables.put(create("t"));
+        TableRegistry.Entry entry = tables.acquire("t");
+        assertNotNull(entry);
+
+        final CountDownLatch drained = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tables.drain("t");
+                drained.countDown();
+            }
+        });
+        thread.start();
+        assertFalse(drained.await(200, TimeUnit.MILLISECONDS));
+        entry.release();
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    private static Table create(String name) throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = name;
+        return Table.create(params);
+    }
+}
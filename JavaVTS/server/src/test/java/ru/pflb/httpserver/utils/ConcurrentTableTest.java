@@ -0,0 +1,73 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Номера строк таблицы типа concurrent среди забранных, но еще не убранных уплотнением строк.
+ */
+public class ConcurrentTableTest {
+
+    @Test
+    public void rowCountsOnlyLiveRows() throws IOException {
+        Table table = create("a", "b", "c", "d");
+        assertEquals("a", table.pop(0, null, ";", true));
+        assertEquals("c", table.pop(1, null, ";", true));
+
+        assertEquals(2, table.size());
+        assertEquals("b", table.get(0, null, ";"));
+        assertEquals("d", table.get(1, null, ";"));
+        assertEquals(Arrays.asList("b", "d"), table.get(0, null, ";", 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rowBeyondLiveRowsIsRejected() throws IOException {
+        Table table = create("a", "b", "c");
+        table.pop(0, null, ";", true);
+        table.get(2, null, ";");
+    }
+
+    @Test
+    public void popBatchByRowSkipsClaimedRows() throws IOException {
+        Table table = create("a", "b", "c", "d");
+        table.pop(1, null, ";", true);
+
+        assertEquals(Arrays.asList("c", "d"), table.pop(1, null, ";", true, 5));
+        assertEquals(Arrays.asList("a"), table.get(0, null, ";", 1));
+    }
+
+    @Test
+    public void countsRowsThroughCompaction() throws IOException {
+        Table table = create();
+        for (int i = 0; i < 3000; i++) {
+            table.push(null, null, ";", "r" + i);
+        }
+        //Забор с головы копит забранные строки, пока их не станет достаточно для уплотнения
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(3000 - i, table.size());
+            assertEquals("r" + i, table.pop(null, null, ";", true));
+        }
+        assertEquals(1000, table.size());
+        assertEquals("r2000", table.get(0, null, ";"));
+        assertEquals("r2999", table.get(999, null, ";"));
+        assertEquals("r2500", table.pop(500, null, ";", true));
+        assertEquals("r2501", table.get(500, null, ";"));
+        assertEquals(999, table.pop(null, null, ";", true, 5000).size());
+        assertEquals(0, table.size());
+    }
+
+    static Table create(String... rows) throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = "c";
+        params.type = Table.TYPE.CONCURRENT.toString();
+        Table table = Table.create(params);
+        for (String row : rows) {
+            table.push(null, null, ";", row);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,89 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Разбор CSV: поля в кавычках, переводы строк внутри полей, разделители из нескольких символов и байт.
+ */
+public class CsvParserTest {
+
+    @Test
+    public void keepsEmptyTrailingCells() {
+        assertArrayEquals(new String[]{"a", "", "b", ""}, CsvParser.parseLine("a;;b;", ";"));
+    }
+
+    @Test
+    public void parsesQuotedFields() {
+        assertArrayEquals(new String[]{"a;b", "say \"hi\"", "", "tail"},
+                CsvParser.parseLine("\"a;b\";\"say \"\"hi\"\"\";\"\";tail", ";"));
+    }
+
+    @Test
+    public void parsesMultiLineFields() {
+        List<String[]> rows = CsvParser.parseRows("1;\"line1\r\nline2\";x\r\n2;\"\n\";y\n", ";");
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"1", "line1\r\nline2", "x"}, rows.get(0));
+        assertArrayEquals(new String[]{"2", "\n", "y"}, rows.get(1));
+    }
+
+    @Test
+    public void parsesMultiCharDelimiter() {
+        assertArrayEquals(new String[]{"a", "b|c", "\"q||\"", ""}, CsvParser.parseLine("a||b|c||\"\"\"q||\"\"\"||", "||"));
+    }
+
+    @Test
+    public void loadsMultiByteDelimiter() throws IOException {
+        Table table = load("имя¦\"город¦\nстрана\"¦1\nдругой¦\"\"¦2\n", "¦", StandardCharsets.UTF_8, false);
+        List<String[]> rows = ((Journaled) table).copyRows();
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"имя", "город¦\nстрана", "1"}, rows.get(0));
+        assertArrayEquals(new String[]{"другой", "", "2"}, rows.get(1));
+    }
+
+    @Test
+    public void loadsOnlyWholeLines() throws IOException {
+        Table table = createTable();
+        byte[] bytes = "a;\"1\n2\"\nb;2\nc;\"3".getBytes(StandardCharsets.UTF_8);
+        long loaded = CsvParser.load(new ByteArrayInputStream(bytes), ";", StandardCharsets.UTF_8, table, true);
+        //Незакрытая кавычка в последней строке: строка остается недочитанной
+        assertEquals("a;\"1\n2\"\nb;2\n".getBytes(StandardCharsets.UTF_8).length, loaded);
+        List<String[]> rows = ((Journaled) table).copyRows();
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"a", "1\n2"}, rows.get(0));
+        assertArrayEquals(new String[]{"b", "2"}, rows.get(1));
+    }
+
+    @Test
+    public void loadsLastLineWithoutNewline() throws IOException {
+        List<String[]> rows = ((Journaled) load("a;1\r\nb;2", ";", StandardCharsets.UTF_8, false)).copyRows();
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"a", "1"}, rows.get(0));
+        assertArrayEquals(new String[]{"b", "2"}, rows.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyDelimiter() {
+        CsvParser.parseLine("a;b", "");
+    }
+
+    private static Table load(String text, String delimiter, Charset charset, boolean wholeLines) throws IOException {
+        Table table = createTable();
+        CsvParser.load(new ByteArrayInputStream(text.getBytes(charset)), delimiter, charset, table, wholeLines);
+        return table;
+    }
+
+    private static Table createTable() throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = "csv";
+        return Table.create(params);
+    }
+}
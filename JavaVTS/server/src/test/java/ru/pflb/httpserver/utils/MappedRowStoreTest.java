@@ -0,0 +1,76 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Хранилище поверх отображенного файла: индекс строк, собранный из кусков по 64 МБ, строка на границе кусков,
+ * CRLF и последняя строка без перевода строки.
+ */
+public class MappedRowStoreTest {
+    private static final int LINE = 100; //Длина строки файла с переводом строки
+    private static final int CHUNK = 64 * 1024 * 1024; //Кусок индексации
+
+    @Test
+    public void indexesLinesAcrossChunks() throws IOException {
+        int lines = CHUNK / LINE + 1000;
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < lines; i++) {
+                out.write(line(i).getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write("last;\r".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        MappedRowStore store = new MappedRowStore();
+        store.map(file, ";");
+        assertEquals(lines + 1, store.size());
+        int boundary = CHUNK / LINE; //Строка, пересекающая границу первого куска
+        for (int i = boundary - 2; i <= boundary + 2; i++) {
+            assertEquals(line(i).substring(0, LINE - 2), store.format(i, ";"));
+        }
+        assertEquals(String.format("%07d", boundary), store.cell(boundary, 0));
+        assertEquals(line(0).substring(0, LINE - 2), store.format(0, ";"));
+        assertArrayEquals(new String[]{"last", ""}, store.row(lines));
+    }
+
+    @Test
+    public void stripsCrAndSkipsEmptyTail() throws IOException {
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("a;1\r\n\r\nb;\"2\"\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        MappedRowStore store = new MappedRowStore();
+        store.map(file, ";");
+        assertEquals(3, store.size());
+        assertArrayEquals(new String[]{"a", "1"}, store.row(0));
+        assertEquals("", store.format(1, ";"));
+        assertEquals("b|2", store.format(2, "|"));
+    }
+
+    /**
+     * Строка файла длиной {@link #LINE} байт: номер, разделитель, заполнитель и CRLF.
+     *
+     * @param i Номер строки.
+     * @return Строка.
+     */
+    private static String line(int i) {
+        StringBuilder sb = new StringBuilder(LINE);
+        sb.append(String.format("%07d", i)).append(';');
+        while (sb.length() < LINE - 2) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.append("\r\n").toString();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Компактное хранилище: ячейки в UTF-8, выдача строк с разными разделителями и сохранность строк при уплотнении.
+ */
+public class PackedRowStoreTest {
+
+    @Test
+    public void storesCellsInUtf8() {
+        PackedRowStore store = new PackedRowStore();
+        store.add(0, new String[]{"имя", "", "😀", "x"});
+        store.add(0, new String[]{"first"});
+        assertEquals(2, store.size());
+        assertArrayEquals(new String[]{"first"}, store.row(0));
+        assertArrayEquals(new String[]{"имя", "", "😀", "x"}, store.row(1));
+        assertEquals(4, store.width(1));
+        assertEquals("😀", store.cell(1, 2));
+        assertEquals("имя;;😀;x", store.format(1, ";"));
+        assertEquals("имя||||😀||x", store.format(1, "||"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSeparatorInCell() {
+        new PackedRowStore().add(0, new String[]{"a\u001Fb"});
+    }
+
+    @Test
+    public void keepsRowsThroughCompaction() {
+        PackedRowStore store = new PackedRowStore();
+        List<String[]> model = new ArrayList<>();
+        char[] pad = new char[1000];
+        Arrays.fill(pad, 'p');
+        for (int i = 0; i < 1000; i++) {
+            model.add(new String[]{"r" + i, new String(pad)});
+        }
+        store.addAll(model);
+        //Каждая замена оставляет мусор, за 40 проходов его набирается больше страницы и больше живых данных
+        for (int pass = 0; pass < 40; pass++) {
+            for (int i = 0; i < model.size(); i++) {
+                String[] row = {"r" + i, pass + new String(pad)};
+                store.set(i, row);
+                model.set(i, row);
+            }
+        }
+        for (int i = model.size() - 1; i >= 0; i -= 3) {
+            store.remove(i);
+            model.remove(i);
+        }
+        assertEquals(model.size(), store.size());
+        for (int i = 0; i < model.size(); i++) {
+            assertArrayEquals(model.get(i), store.row(i));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Таблица типа queue: кольцевой буфер при переходе через конец массива, вставка и удаление в середине,
+ * уменьшение буфера после забора и поиск по индексу.
+ */
+public class QueueTableTest {
+
+    @Test
+    public void popsHeadAndPushesTail() throws IOException {
+        Table table = create(null);
+        table.push(null, null, ";", "a");
+        table.push(null, null, ";", "b");
+        assertEquals("a", table.pop(null, null, ";", true));
+        table.push(null, null, ";", "c");
+        assertEquals(Arrays.asList("b", "c"), table.pop(null, null, ";", true, 5));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void matchesListAcrossWrapAndShrink() throws IOException {
+        Table table = create(null);
+        List<String> model = new ArrayList<>();
+        Random random = new Random(7);
+        int next = 0;
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(10);
+            if (op < 4 || model.isEmpty()) {
+                String row = "r" + next++;
+                table.push(null, null, ";", row);
+                model.add(row);
+            } else if (op < 7) {
+                assertEquals(model.remove(0), table.pop(null, null, ";", true));
+            } else if (op < 8) {
+                int pos = random.nextInt(model.size() + 1);
+                String row = "i" + next++;
+                table.push(pos, null, ";", row);
+                model.add(pos, row);
+            } else {
+                int pos = random.nextInt(model.size());
+                assertEquals(model.remove(pos), table.pop(pos, null, ";", true));
+            }
+            if (step == 10000) {
+                //Наполняем и почти опустошаем очередь, чтобы буфер вырос и уменьшился
+                for (int i = 0; i < 5000; i++) {
+                    String row = "b" + next++;
+                    table.push(null, null, ";", row);
+                    model.add(row);
+                }
+                assertEquals(model.subList(0, model.size() - 3), table.pop(null, null, ";", true, model.size() - 3));
+                model.subList(0, model.size() - 3).clear();
+            }
+        }
+        assertEquals(model.size(), table.size());
+        for (int i = 0; i < model.size(); i++) {
+            assertEquals(model.get(i), table.get(i, null, ";"));
+        }
+    }
+
+    @Test
+    public void findsAndTakesByIndex() throws IOException {
+        Table table = create("0");
+        table.push(null, null, ";", "k1;a");
+        table.push(null, null, ";", "k2;b");
+        table.push(null, null, ";", "k1;c");
+
+        assertArrayEquals(new String[]{"k1", "a"}, table.find(0, "k1", true));
+        assertArrayEquals(new String[]{"k1", "c"}, table.find(0, "k1", false));
+        assertEquals(2, table.size());
+        assertEquals("k2;b", table.pop(null, null, ";", true));
+        assertArrayEquals(new String[]{"k1", "c"}, table.find(0, "k1", true));
+        assertEquals(0, table.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValueNotInIndex() throws IOException {
+        Table table = create("0");
+        table.push(null, null, ";", "k1;a");
+        table.find(0, "k1", true);
+        table.find(0, "k1", true);
+    }
+
+    private static Table create(String index) throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = "q";
+        params.type = Table.TYPE.QUEUE.toString();
+        params.index = index;
+        return Table.create(params);
+    }
+}
@@ -0,0 +1,104 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Кольцевой буфер строк против списка: вставка и удаление в голове, хвосте и середине, уплотнение пустых мест,
+ * номер строки по записи индекса.
+ */
+public class RowRingTest {
+
+    @Test
+    public void matchesListWithoutIndex() {
+        check(new RowRing(null), null);
+    }
+
+    @Test
+    public void matchesListWithIndex() {
+        TableIndex index = TableIndex.parse("0");
+        check(new RowRing(index), index);
+    }
+
+    @Test
+    public void takesIndexedRowsInAnyOrder() {
+        TableIndex index = TableIndex.parse("0");
+        RowRing ring = new RowRing(index);
+        List<String[]> model = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String[] row = {"k" + i};
+            ring.add(row);
+            model.add(row);
+        }
+        Random random = new Random(7);
+        while (!model.isEmpty()) {
+            String[] row = model.get(random.nextInt(model.size()));
+            TableIndex.Entry entry = index.find(0, row[0]);
+            int pos = ring.position(entry);
+            assertSame(row, model.get(pos));
+            ring.remove(pos);
+            model.remove(pos);
+            assertNull(index.find(0, row[0]));
+            assertEquals(model.size(), ring.size());
+        }
+    }
+
+    @Test
+    public void keepsEqualValuesInInsertionOrder() {
+        TableIndex index = TableIndex.parse("0");
+        RowRing ring = new RowRing(index);
+        String[] first = {"a", "1"};
+        String[] second = {"a", "2"};
+        ring.add(first);
+        ring.insert(0, second);
+        assertSame(first, index.find(0, "a").mCells);
+        ring.remove(ring.position(index.find(0, "a")));
+        assertSame(second, index.find(0, "a").mCells);
+    }
+
+    private static void check(RowRing ring, TableIndex index) {
+        List<String[]> model = new ArrayList<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 50000; step++) {
+            int op = random.nextInt(10);
+            int size = model.size();
+            if (op < 4 || size == 0) {
+                //Вставка чаще в голову и хвост
+                int pos = random.nextInt(3) == 0 ? random.nextInt(size + 1) : random.nextBoolean() ? 0 : size;
+                String[] row = {"v" + step};
+                ring.insert(pos, row);
+                model.add(pos, row);
+            } else if (op < 8) {
+                int pos = random.nextInt(3) == 0 ? random.nextInt(size) : random.nextBoolean() ? 0 : size - 1;
+                ring.remove(pos);
+                model.remove(pos);
+            } else if (op < 9) {
+                int pos = random.nextInt(size);
+                String[] row = {"s" + step};
+                ring.set(pos, row);
+                model.set(pos, row);
+            } else {
+                int pos = random.nextInt(size);
+                assertSame(model.get(pos), ring.get(pos));
+                if (index != null) {
+                    assertEquals(pos, ring.position(index.find(0, model.get(pos)[0])));
+                }
+            }
+            assertEquals(model.size(), ring.size());
+        }
+        List<String[]> rows = new ArrayList<>();
+        ring.copyTo(rows);
+        assertEquals(model.size(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertSame(model.get(i), rows.get(i));
+            assertSame(model.get(i), ring.get(i));
+        }
+    }
+}
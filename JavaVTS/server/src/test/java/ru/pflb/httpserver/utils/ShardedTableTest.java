@@ -0,0 +1,72 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Сквозные номера строк таблицы типа sharded: строки файла делятся между частями, номер строки
+ * отображается на часть и позицию в ней, в том числе на границах частей.
+ */
+public class ShardedTableTest {
+
+    @Test
+    public void mapsRowsAcrossShards() throws IOException {
+        List<String> model = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            model.add("r" + i);
+        }
+        Table table = load(model, 3);
+        assertEquals(10, table.size());
+        for (int i = 0; i < model.size(); i++) {
+            assertEquals(model.get(i), table.get(i, null, ";"));
+        }
+        assertEquals(Arrays.asList("r2", "r3", "r4", "r5"), table.get(2, null, ";", 4));
+
+        //Вставка на границе частей и в конец таблицы
+        table.push(3, null, ";", "x");
+        model.add(3, "x");
+        table.push(model.size(), null, ";", "tail");
+        model.add("tail");
+        assertEquals(model.remove(6), table.pop(6, null, ";", true));
+        assertEquals(model.size(), table.size());
+        for (int i = 0; i < model.size(); i++) {
+            assertEquals(model.get(i), table.get(i, null, ";"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRowBeyondSize() throws IOException {
+        Table table = load(Arrays.asList("a", "b"), 4);
+        table.get(2, null, ";");
+    }
+
+    @Test
+    public void popsWholeShardsByRow() throws IOException {
+        Table table = load(Arrays.asList("a", "b", "c", "d", "e", "f"), 3);
+        assertEquals(Arrays.asList("c", "d", "e", "f"), table.pop(2, null, ";", true, 10));
+        assertEquals(2, table.size());
+        assertEquals("b", table.get(1, null, ";"));
+    }
+
+    private static Table load(List<String> rows, int shards) throws IOException {
+        File file = File.createTempFile("sharded", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), rows, Charset.defaultCharset());
+        Table.TableParams params = new Table.TableParams();
+        params.name = "s";
+        params.type = Table.TYPE.SHARDED.toString();
+        params.filename = file.getPath();
+        params.delimiter = ";";
+        params.shards = shards;
+        return Table.create(params);
+    }
+}
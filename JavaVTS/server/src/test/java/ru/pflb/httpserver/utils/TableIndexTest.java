@@ -0,0 +1,72 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Хеш-индексы: разбор списка столбцов, порядок строк с одинаковым значением, удаление и короткие строки.
+ */
+public class TableIndexTest {
+
+    @Test
+    public void parsesColumns() {
+        assertNull(TableIndex.parse(null));
+        assertNull(TableIndex.parse(" "));
+        TableIndex index = TableIndex.parse("2, 0");
+        assertTrue(index.has(0));
+        assertTrue(index.has(2));
+        assertFalse(index.has(1));
+        for (String bad : new String[]{"x", "-1", "1,1"}) {
+            try {
+                TableIndex.parse(bad);
+                fail("Принят неверный список столбцов: " + bad);
+            } catch (IllegalArgumentException expected) {
+                //Ожидаемо
+            }
+        }
+    }
+
+    @Test
+    public void findsRowsInInsertionOrder() {
+        TableIndex index = TableIndex.parse("0,1");
+        TableIndex.Entry a = entry("k", "a");
+        TableIndex.Entry b = entry("k", "b");
+        TableIndex.Entry c = entry("k", "c");
+        index.add(a);
+        index.add(b);
+        index.add(c);
+
+        assertSame(a, index.find(0, "k"));
+        assertSame(b, index.find(1, "b"));
+        index.remove(b);
+        assertSame(a, index.find(0, "k"));
+        assertNull(index.find(1, "b"));
+        index.remove(a);
+        assertSame(c, index.find(0, "k"));
+        index.remove(c);
+        assertNull(index.find(0, "k"));
+    }
+
+    @Test
+    public void skipsRowsWithoutColumn() {
+        TableIndex index = TableIndex.parse("1");
+        TableIndex.Entry shortRow = entry("only");
+        index.add(shortRow);
+        index.remove(shortRow);
+        assertNull(index.find(1, "only"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsColumnWithoutIndex() {
+        TableIndex.parse("0").find(1, "x");
+    }
+
+    private static TableIndex.Entry entry(String... cells) {
+        return new TableIndex.Entry(cells, 0);
+    }
+}
@@ -0,0 +1,127 @@
+package ru.pflb.httpserver.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Восстановление таблицы из журнала, последняя запись которого оборвана при сбое.
+ */
+public class TableJournalTest {
+    private File mDir; //Каталог журнала
+    private final List<Table> mTables = new ArrayList<>(); //Открытые таблицы
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("vts-journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (Table table : mTables) {
+            table.close();
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void replaysAllRecords() throws IOException {
+        Table table = open();
+        push(table, "a;1", "b;2", "c;3");
+        table.pop(1, null, ";", true);
+        table.close();
+
+        assertRows(open(), "a;1", "c;3");
+    }
+
+    @Test
+    public void dropsTornLastRecord() throws IOException {
+        Table table = open();
+        push(table, "a;1", "b;2", "c;3");
+        table.close();
+
+        //Сбой посреди записи последней строки
+        File log = lastLog();
+        try (RandomAccessFile f = new RandomAccessFile(log, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        Table restored = open();
+        assertRows(restored, "a;1", "b;2");
+
+        //Следующее поколение журнала применяется поверх оборванного
+        push(restored, "d;4");
+        restored.close();
+        assertRows(open(), "a;1", "b;2", "d;4");
+    }
+
+    @Test
+    public void dropsLastRecordWithBadChecksum() throws IOException {
+        Table table = open();
+        push(table, "a;1", "b;2");
+        table.close();
+
+        File log = lastLog();
+        try (RandomAccessFile f = new RandomAccessFile(log, "rw")) {
+            f.seek(f.length() - 1);
+            int last = f.read();
+            f.seek(f.length() - 1);
+            f.write(last ^ 0xFF);
+        }
+        assertRows(open(), "a;1");
+    }
+
+    private Table open() throws IOException {
+        Table.TableParams params = new Table.TableParams();
+        params.name = "j";
+        params.journal = new File(mDir, "j").getPath();
+        params.snapshotInterval = 0;
+        params.sync = true;
+        Table table = Table.create(params);
+        mTables.add(table);
+        return table;
+    }
+
+    private static void push(Table table, String... rows) {
+        for (String row : rows) {
+            table.push(table.size(), null, ";", row);
+        }
+    }
+
+    private static void assertRows(Table table, String... expected) {
+        List<String[]> rows = ((Journaled) table).copyRows();
+        assertEquals(expected.length, rows.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i].split(";"), rows.get(i));
+        }
+    }
+
+    private File lastLog() {
+        File last = null;
+        File[] files = mDir.listFiles();
+        assertNotNull(files);
+        for (File f : files) {
+            if (f.getName().endsWith(".log") && (last == null || f.getName().compareTo(last.getName()) > 0)) {
+                last = f;
+            }
+        }
+        assertNotNull(last);
+        return last;
+    }
+}
@@ -0,0 +1,526 @@
+package ru.pflb.httpserver;
+
+import ru.pflb.httpserver.client.HttpResponseReader;
+import ru.pflb.httpserver.core.HTTPModule;
+import ru.pflb.httpserver.core.HTTPServer;
+import ru.pflb.httpserver.modules.BinaryProtocol;
+import ru.pflb.httpserver.modules.MetricsModule;
+import ru.pflb.httpserver.modules.VTSModule;
+import ru.pflb.httpserver.utils.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Встроенный генератор нагрузки: поднимает в этом же процессе HTTPServer с VTSModule и таблицей из сгенерированного файла,
+ * гоняет по loopback смесь get/pop/push из нескольких клиентских потоков и печатает пропускную способность и задержки
+ * (p50/p90/p99/p99.9/max). Каждый клиент ждет ответа перед следующим запросом (закрытая модель нагрузки).
+ * <p>
+ * Пример: java -cp JavaVTS.jar ru.pflb.httpserver.LoadGenerator -clients 64 -duration 30 -mix get:80,pop:10,push:10 -engine nio
+ * <p>
+ * Параметры генератора:
+ * -clients N - клиентских потоков (по умолчанию 16);
+ * -duration S - длительность замера, с (10);
+ * -warmup S - прогрев перед замером, с (3);
+ * -mix get:G,pop:P,push:U - доли команд (get:80,pop:10,push:10);
+ * -connection keepalive|close - постоянные соединения или соединение на запрос (keepalive);
+ * -protocol http|binary - HTTP или бинарный протокол (http), для binary сервер слушает второй порт (-vtsbin);
+ * -pipeline N - запросов, отправляемых без ожидания ответа, для binary (1);
+ * -rows N - строк в таблице (100000);
+ * -tabletype TYPE - тип таблицы (list).
+ * Остальные аргументы передаются серверу как есть (-engine, -executor, -threads, -keepalive, ...).
+ */
+class LoadGenerator {
+    private static final String TABLE = "load"; //Имя таблицы
+    private static final int GET = 0, POP = 1, PUSH = 2; //Команды
+    private static final String[] COMMAND_NAMES = {"get", "pop", "push"};
+
+    private int mClients = 16; //Клиентских потоков
+    private int mDuration = 10; //Длительность замера, с
+    private int mWarmup = 3; //Прогрев, с
+    private int[] mMix = {80, 10, 10}; //Доли команд
+    private boolean mKeepAlive = true; //Постоянные соединения
+    private boolean mBinary = false; //Бинарный протокол
+    private int mPipeline = 1; //Запросов без ожидания ответа (binary)
+    private int mRows = 100000; //Строк в таблице
+    private String mTableType = "list"; //Тип таблицы
+    private final List<String> mServerArgs = new ArrayList<>(); //Аргументы сервера
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        generator.run();
+    }
+
+    /**
+     * Разбор аргументов: свои забираются, остальные остаются серверу.
+     *
+     * @param args Аргументы.
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i].toLowerCase()) {
+                case "-clients":
+                    mClients = parsePositive(args, ++i);
+                    break;
+                case "-duration":
+                    mDuration = parsePositive(args, ++i);
+                    break;
+                case "-warmup":
+                    mWarmup = Integer.parseInt(value(args, ++i));
+                    break;
+                case "-mix":
+                    mMix = parseMix(value(args, ++i));
+                    break;
+                case "-connection":
+                    String connection = value(args, ++i);
+                    if (!connection.equalsIgnoreCase("keepalive") && !connection.equalsIgnoreCase("close")) {
+                        throw new IllegalArgumentException("Неизвестный режим соединений: " + connection + " (keepalive или close)");
+                    }
+                    mKeepAlive = connection.equalsIgnoreCase("keepalive");
+                    break;
+                case "-protocol":
+                    String protocol = value(args, ++i);
+                    if (!protocol.equalsIgnoreCase("http") && !protocol.equalsIgnoreCase("binary")) {
+                        throw new IllegalArgumentException("Неизвестный протокол: " + protocol + " (http или binary)");
+                    }
+                    mBinary = protocol.equalsIgnoreCase("binary");
+                    break;
+                case "-pipeline":
+                    mPipeline = parsePositive(args, ++i);
+                    break;
+                case "-rows":
+                    mRows = parsePositive(args, ++i);
+                    break;
+                case "-tabletype":
+                    mTableType = value(args, ++i);
+                    break;
+                default:
+                    mServerArgs.add(args[i]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Разбор смеси команд вида get:80,pop:10,push:10.
+     *
+     * @param value Строка.
+     * @return Доли get, pop, push.
+     */
+    private static int[] parseMix(String value) {
+        int[] mix = new int[COMMAND_NAMES.length];
+        for (String part : value.split(",")) {
+            String[] kv = part.split(":");
+            int cmd = Arrays.asList(COMMAND_NAMES).indexOf(kv[0].trim().toLowerCase());
+            if (kv.length != 2 || cmd < 0) {
+                throw new IllegalArgumentException("Неверная смесь команд: " + value + " (пример: get:80,pop:10,push:10)");
+            }
+            mix[cmd] = Integer.parseInt(kv[1].trim());
+            if (mix[cmd] < 0) {
+                throw new IllegalArgumentException("Доля команды не может быть отрицательной: " + part);
+            }
+        }
+        if (mix[GET] + mix[POP] + mix[PUSH] == 0) {
+            throw new IllegalArgumentException("В смеси команд нет ни одной команды: " + value);
+        }
+        return mix;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Не указано значение для " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static int parsePositive(String[] args, int i) {
+        int res = Integer.parseInt(value(args, i));
+        if (res <= 0) {
+            throw new IllegalArgumentException("Значение " + args[i - 1] + " должно быть больше нуля: " + res);
+        }
+        return res;
+    }
+
+    /**
+     * Запуск сервера, нагрузка и отчет.
+     *
+     * @throws Exception При ошибке запуска сервера.
+     */
+    private void run() throws Exception {
+        File file = File.createTempFile("vts-load", ".csv");
+        file.deleteOnExit();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < mRows; i++) {
+                out.write("login" + i + ";password" + i + "\n");
+            }
+        }
+        int port = freePort();
+        List<String> args = new ArrayList<>();
+        args.add("-port");
+        args.add(Integer.toString(port));
+        int binaryPort = 0;
+        if (mBinary) {
+            binaryPort = freePort();
+            args.add("-vtsbin");
+            args.add(Integer.toString(binaryPort));
+        }
+        args.addAll(mServerArgs);
+        args.addAll(Arrays.asList("-vts", "name=" + TABLE, "filename=" + file.getAbsolutePath(), "type=" + mTableType));
+        HTTPServer server = new HTTPServer(args.toArray(new String[args.size()]), new HTTPModule[]{new VTSModule(), new MetricsModule()});
+        server.start(null);
+        try {
+            waitForServer(port);
+            if (mBinary) {
+                waitForServer(binaryPort);
+            }
+            System.out.println("Нагрузка: " + mClients + " клиентов, смесь get:" + mMix[GET] + ",pop:" + mMix[POP] + ",push:" + mMix[PUSH]
+                    + (mBinary ? ", бинарный протокол, без ожидания ответа " + mPipeline : ", соединения " + (mKeepAlive ? "keepalive" : "close"))
+                    + ", прогрев " + mWarmup + " с, замер " + mDuration + " с");
+            report(load(mBinary ? binaryPort : port));
+        } finally {
+            server.stop();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Свободный порт.
+     *
+     * @return Порт.
+     * @throws IOException При ошибке.
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Ожидание, пока сервер начнет принимать подключения.
+     *
+     * @param port Порт.
+     * @throws InterruptedException При прерывании.
+     */
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Сервер не запустился на порту " + port);
+    }
+
+    /**
+     * Нагрузка из клиентских потоков.
+     *
+     * @param port Порт.
+     * @return Результаты клиентов.
+     * @throws InterruptedException При прерывании.
+     */
+    private Client[] load(int port) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureStart = start + mWarmup * 1000000000L;
+        long end = measureStart + mDuration * 1000000000L;
+        Client[] clients = new Client[mClients];
+        for (int i = 0; i < mClients; i++) {
+            clients[i] = new Client(port, measureStart, end);
+            clients[i].start();
+        }
+        for (Client c : clients) {
+            c.join();
+        }
+        return clients;
+    }
+
+    /**
+     * Печать отчета.
+     *
+     * @param clients Результаты клиентов.
+     */
+    private void report(Client[] clients) {
+        LatencyHistogram[] byCommand = new LatencyHistogram[COMMAND_NAMES.length];
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0, failures = 0;
+        for (int cmd = 0; cmd < byCommand.length; cmd++) {
+            byCommand[cmd] = new LatencyHistogram();
+            for (Client c : clients) {
+                byCommand[cmd].add(c.mHistograms[cmd]);
+            }
+            all.add(byCommand[cmd]);
+        }
+        for (Client c : clients) {
+            errors += c.mErrors;
+            failures += c.mFailures;
+        }
+        System.out.println(String.format(Locale.ROOT, "Запросов: %d, %.1f в секунду; ответов не 200: %d; ошибок соединения: %d",
+                all.getCount(), all.getCount() / (double) mDuration, errors, failures));
+        System.out.println(String.format(Locale.ROOT, "%-6s %10s %10s %10s %10s %10s %10s %10s",
+                "", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (int cmd = 0; cmd < byCommand.length; cmd++) {
+            if (byCommand[cmd].getCount() > 0) {
+                printLine(COMMAND_NAMES[cmd], byCommand[cmd]);
+            }
+        }
+        printLine("all", all);
+        System.out.println("Задержки в микросекундах");
+    }
+
+    private static void printLine(String name, LatencyHistogram h) {
+        System.out.println(String.format(Locale.ROOT, "%-6s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                name, h.getCount(), h.getMean() / 1000, h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+                h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+    }
+
+    /**
+     * Клиентский поток: запрос, ожидание ответа, запись задержки.
+     */
+    private class Client extends Thread {
+        private final int mPort; //Порт сервера
+        private final long mMeasureStart; //Начало замера (после прогрева)
+        private final long mEnd; //Конец замера
+        private final LatencyHistogram[] mHistograms = new LatencyHistogram[COMMAND_NAMES.length]; //Задержки по командам, нс
+        private long mErrors = 0; //Ответы с кодом не 200
+        private long mFailures = 0; //Ошибки соединения
+        private Socket mSocket; //Текущее соединение
+        private OutputStream mOut;
+        private HttpResponseReader mReader; //Чтение ответов текущего соединения
+        private long mNext = 0; //Номер следующего запроса бинарного протокола (для данных push)
+
+        Client(int port, long measureStart, long end) {
+            super("VTS-load-client");
+            mPort = port;
+            mMeasureStart = measureStart;
+            mEnd = end;
+            for (int i = 0; i < mHistograms.length; i++) {
+                mHistograms[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mBinary) {
+                runBinary();
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int total = mMix[GET] + mMix[POP] + mMix[PUSH];
+            long n = 0;
+            long now;
+            while ((now = System.nanoTime()) < mEnd) {
+                int r = random.nextInt(total);
+                int cmd = r < mMix[GET] ? GET : r < mMix[GET] + mMix[POP] ? POP : PUSH;
+                byte[] request = request(cmd, n++);
+                try {
+                    int code = execute(request);
+                    long latency = System.nanoTime() - now;
+                    if (now >= mMeasureStart) {
+                        mHistograms[cmd].record(latency);
+                        if (code != 200) {
+                            mErrors++;
+                        }
+                    }
+                } catch (IOException e) {
+                    if (now >= mMeasureStart) {
+                        mFailures++;
+                    }
+                    close();
+                }
+            }
+            close();
+        }
+
+        /**
+         * Нагрузка по бинарному протоколу: пачка из pipeline запросов, затем чтение всех ответов.
+         * При ошибке соединения клиент подключается заново и продолжает до конца замера, как и по HTTP.
+         */
+        private void runBinary() {
+            while (System.nanoTime() < mEnd) {
+                try {
+                    runBinaryConnection();
+                } catch (IOException e) {
+                    if (System.nanoTime() >= mMeasureStart) {
+                        mFailures++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Нагрузка по одному соединению бинарного протокола до конца замера.
+         *
+         * @throws IOException При ошибке соединения.
+         */
+        private void runBinaryConnection() throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int total = mMix[GET] + mMix[POP] + mMix[PUSH];
+            long[] sent = new long[mPipeline]; //Время отправки по id
+            int[] commands = new int[mPipeline]; //Команда по id
+            BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+            ByteBuffer frame = null;
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mPort)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                BinaryProtocol.putString(writer.start(0, BinaryProtocol.OPEN), TABLE);
+                writer.writeTo(out);
+                out.flush();
+                frame = BinaryProtocol.readFrame(in, frame);
+                if (frame == null || frame.getInt() != 0 || frame.get() != BinaryProtocol.OK) {
+                    throw new IOException("Таблица " + TABLE + " не открыта");
+                }
+                int table = frame.getInt();
+                while (System.nanoTime() < mEnd) {
+                    for (int id = 0; id < mPipeline; id++) {
+                        int r = random.nextInt(total);
+                        int cmd = r < mMix[GET] ? GET : r < mMix[GET] + mMix[POP] ? POP : PUSH;
+                        commands[id] = cmd;
+                        writeBinary(writer, id, cmd, table, mNext++);
+                        writer.writeTo(out);
+                        sent[id] = System.nanoTime();
+                    }
+                    out.flush();
+                    for (int i = 0; i < mPipeline; i++) {
+                        frame = BinaryProtocol.readFrame(in, frame);
+                        if (frame == null) {
+                            throw new IOException("Соединение закрыто");
+                        }
+                        int id = frame.getInt();
+                        byte status = frame.get();
+                        if (id < 0 || id >= mPipeline) {
+                            throw new IOException("Неверный id ответа: " + id);
+                        }
+                        long now = System.nanoTime();
+                        if (sent[id] >= mMeasureStart) {
+                            mHistograms[commands[id]].record(now - sent[id]);
+                            if (status != BinaryProtocol.OK) {
+                                mErrors++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Запрос бинарного протокола.
+         *
+         * @param writer Сборщик кадра.
+         * @param id     Id запроса.
+         * @param cmd    Команда.
+         * @param table  Номер таблицы.
+         * @param n      Номер запроса клиента (для данных push).
+         * @throws IOException Не бросается.
+         */
+        private void writeBinary(BinaryProtocol.FrameWriter writer, int id, int cmd, int table, long n) throws IOException {
+            switch (cmd) {
+                case GET:
+                    DataOutputStream get = writer.start(id, BinaryProtocol.GET);
+                    get.writeInt(table);
+                    get.writeInt(BinaryProtocol.NONE);
+                    get.writeInt(BinaryProtocol.NONE);
+                    get.writeInt(1);
+                    break;
+                case POP:
+                    DataOutputStream pop = writer.start(id, BinaryProtocol.POP);
+                    pop.writeInt(table);
+                    pop.writeInt(BinaryProtocol.NONE);
+                    pop.writeInt(BinaryProtocol.NONE);
+                    pop.writeByte(1);
+                    pop.writeInt(1);
+                    break;
+                default:
+                    DataOutputStream push = writer.start(id, BinaryProtocol.PUSH);
+                    push.writeInt(table);
+                    push.writeInt(BinaryProtocol.NONE);
+                    push.writeInt(1);
+                    push.writeInt(2);
+                    BinaryProtocol.putString(push, "push" + getId() + "_" + n);
+                    BinaryProtocol.putString(push, "password");
+                    break;
+            }
+        }
+
+        /**
+         * Текст запроса.
+         *
+         * @param cmd Команда.
+         * @param n   Номер запроса клиента (для данных push).
+         * @return Запрос.
+         */
+        private byte[] request(int cmd, long n) {
+            String connection = mKeepAlive ? "keep-alive" : "close";
+            String text;
+            if (cmd == PUSH) {
+                String body = "push" + getId() + "_" + n + ";password";
+                text = "POST /vts/table/" + TABLE + "?cmd=push HTTP/1.1\r\nHost: localhost\r\nConnection: " + connection
+                        + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            } else {
+                text = "GET /vts/table/" + TABLE + "?cmd=" + COMMAND_NAMES[cmd] + " HTTP/1.1\r\nHost: localhost\r\nConnection: " + connection + "\r\n\r\n";
+            }
+            return text.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Отправка запроса и чтение ответа целиком.
+         *
+         * @param request Запрос.
+         * @return Код ответа.
+         * @throws IOException При ошибке соединения.
+         */
+        private int execute(byte[] request) throws IOException {
+            if (mSocket == null) {
+                mSocket = new Socket(InetAddress.getLoopbackAddress(), mPort);
+                mSocket.setTcpNoDelay(true);
+                mReader = new HttpResponseReader(new BufferedInputStream(mSocket.getInputStream()));
+                mOut = mSocket.getOutputStream();
+            }
+            mOut.write(request);
+            mOut.flush();
+            if (!mReader.read()) {
+                throw new IOException("Соединение закрыто до ответа");
+            }
+            if (!mKeepAlive || !mReader.isKeepAlive()) {
+                close();
+            }
+            return mReader.getCode();
+        }
+
+        private void close() {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException ignored) {
+                }
+                mSocket = null;
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ru.pflb.httpserver;
 
 import ru.pflb.httpserver.core.HTTPModule;
 import ru.pflb.httpserver.core.HTTPServer;
+import ru.pflb.httpserver.modules.MetricsModule;
 import ru.pflb.httpserver.modules.VTSModule;
 
 import java.io.BufferedReader;
@@ -12,7 +13,7 @@ import java.io.InputStreamReader;
  * Запускатор всего и вся.
  */
 class Main {
-    private static final HTTPModule[] MODULES = new HTTPModule[]{new VTSModule()};//Список активных модулей
+    private static final HTTPModule[] MODULES = new HTTPModule[]{new VTSModule(), new MetricsModule()};//Список активных модулей
     private static CommandHandler mCommandHandler;
     private static HTTPServer mServer;
 
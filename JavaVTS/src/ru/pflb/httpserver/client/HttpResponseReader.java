@@ -0,0 +1,132 @@
+package ru.pflb.httpserver.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Чтение ответов HTTP/1.1 с Content-Length из потока постоянного соединения: строка состояния, заголовки и тело.
+ * Буфер тела переиспользуется между ответами. Общий для {@link RemoteVtsClient} и нагрузочного генератора.
+ */
+public final class HttpResponseReader {
+    private final InputStream mIn; //Поток ответов (буферизованный)
+    private final StringBuilder mLine = new StringBuilder(); //Строка заголовка
+    private byte[] mBody = new byte[1024]; //Тело последнего ответа
+    private int mLength; //Длина тела
+    private int mCode; //Код ответа
+    private boolean mKeepAlive; //Сервер оставляет соединение открытым
+
+    /**
+     * Конструктор.
+     *
+     * @param in Поток соединения.
+     */
+    public HttpResponseReader(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Чтение очередного ответа целиком.
+     *
+     * @return {@code false}, если сервер закрыл соединение до начала ответа.
+     * @throws IOException При ошибке соединения или неверном ответе.
+     */
+    public boolean read() throws IOException {
+        String status = readLine();
+        if (status == null) {
+            return false;
+        }
+        if (!status.startsWith("HTTP/1.") || status.length() < 12) {
+            throw new IOException("Неверный ответ: " + status);
+        }
+        try {
+            mCode = Integer.parseInt(status.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new IOException("Неверный ответ: " + status);
+        }
+        int length = -1;
+        mKeepAlive = true;
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    length = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Неверный Content-Length: " + value);
+                }
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                mKeepAlive = false;
+            }
+        }
+        if (line == null) {
+            throw new IOException("Соединение закрыто до конца заголовка");
+        }
+        if (length < 0) {
+            throw new IOException("В ответе нет Content-Length");
+        }
+        if (mBody.length < length) {
+            mBody = new byte[length];
+        }
+        for (int read = 0; read < length; ) {
+            int r = mIn.read(mBody, read, length - read);
+            if (r < 0) {
+                throw new IOException("Соединение закрыто до конца тела");
+            }
+            read += r;
+        }
+        mLength = length;
+        return true;
+    }
+
+    /**
+     * Код последнего ответа.
+     *
+     * @return Код.
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * Признак постоянного соединения в последнем ответе.
+     *
+     * @return {@code false}, если сервер прислал Connection: close.
+     */
+    public boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /**
+     * Тело последнего ответа.
+     *
+     * @return Тело в UTF-8.
+     */
+    public String getBody() {
+        return new String(mBody, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Чтение строки заголовка (ASCII, до CRLF).
+     *
+     * @return Строка или {@code null} в конце потока.
+     * @throws IOException При ошибке чтения.
+     */
+    private String readLine() throws IOException {
+        mLine.setLength(0);
+        int b;
+        while ((b = mIn.read()) >= 0) {
+            if (b == '\n') {
+                int len = mLine.length();
+                return len > 0 && mLine.charAt(len - 1) == '\r' ? mLine.substring(0, len - 1) : mLine.toString();
+            }
+            mLine.append((char) b);
+        }
+        return mLine.length() == 0 ? null : mLine.toString();
+    }
+}
@@ -0,0 +1,383 @@
+package ru.pflb.httpserver.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Клиент VTS по HTTP с пулом постоянных (keep-alive) соединений.
+ * Одновременно открыто не больше заданного числа соединений, вызывающие сверх него ждут свободное.
+ * Свободные соединения берутся последними вернувшимися (они реже закрыты сервером по простою). Если сервер закрыл
+ * свободное соединение, запрос повторяется один раз на новом, но только когда он не мог выполниться дважды:
+ * get и find без take повторяются всегда, pop/push/find с take - только если запрос не удалось отправить
+ * (перед ними свободное соединение еще и проверяется на закрытие сервером).
+ * Пакеты: get/pop передают count, push - все строки одним телом (ячейки в CSV с кавычками). Ответ get/pop
+ * разбивается на строки по переводу строки, поэтому ячейки с переводом строки в нем неотличимы от границ строк.
+ */
+public class RemoteVtsClient implements VtsClient {
+    public static final int DEFAULT_MAX_CONNECTIONS = 8; //Соединений по умолчанию
+    private static final int TIMEOUT = 30000; //Таймаут подключения и чтения, мс
+    private static final String DELIMITER = ";"; //Разделитель ячеек в теле push
+
+    private final String mHost; //Сервер
+    private final int mPort; //Порт
+    private final Semaphore mPermits; //Разрешения на соединения
+    private final LinkedBlockingDeque<Connection> mIdle = new LinkedBlockingDeque<>(); //Свободные соединения
+    private volatile boolean mClosed = false; //Клиент закрыт
+
+    /**
+     * Конструктор с пулом по умолчанию.
+     *
+     * @param host Сервер.
+     * @param port Порт HTTP.
+     */
+    public RemoteVtsClient(String host, int port) {
+        this(host, port, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param host           Сервер.
+     * @param port           Порт HTTP.
+     * @param maxConnections Максимум открытых соединений.
+     */
+    public RemoteVtsClient(String host, int port, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Количество соединений должно быть больше нуля: " + maxConnections);
+        }
+        mHost = host;
+        mPort = port;
+        mPermits = new Semaphore(maxConnections, true);
+    }
+
+    @Override
+    public List<String> get(String table, Integer row, Integer col, int count) throws IOException {
+        StringBuilder url = url(table, "get").append("&count=").append(count);
+        position(url, row, col);
+        return rows(execute("GET", url.toString(), null, true));
+    }
+
+    @Override
+    public List<String> pop(String table, Integer row, Integer col, boolean deleteRow, int count) throws IOException {
+        StringBuilder url = url(table, "pop").append("&count=").append(count).append("&deleterow=").append(deleteRow);
+        position(url, row, col);
+        return rows(execute("GET", url.toString(), null, false));
+    }
+
+    @Override
+    public String push(String table, Integer row, List<String[]> rows) throws IOException {
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("Не передано значение для вставки");
+        }
+        StringBuilder url = url(table, "push").append("&delimiter=").append(encode(DELIMITER));
+        position(url, row, null);
+        StringBuilder body = new StringBuilder();
+        for (String[] cells : rows) {
+            if (body.length() > 0) {
+                body.append('\n');
+            }
+            for (int i = 0; i < cells.length; i++) {
+                if (i > 0) {
+                    body.append(DELIMITER);
+                }
+                appendCell(body, cells[i]);
+            }
+        }
+        return execute("POST", url.toString(), body.toString(), false);
+    }
+
+    @Override
+    public String find(String table, int col, String value, boolean take) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("Для поиска нужно значение value");
+        }
+        StringBuilder url = url(table, "find").append("&col=").append(col).append("&value=").append(encode(value))
+                .append("&take=").append(take);
+        return execute("GET", url.toString(), null, !take);
+    }
+
+    /**
+     * Закрытие свободных соединений. Занятые закрываются при возврате.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        Connection connection;
+        while ((connection = mIdle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Выполнение запроса на соединении из пула.
+     *
+     * @param method Метод.
+     * @param url    Путь с параметрами.
+     * @param body   Тело или {@code null}.
+     * @param retry  Запрос можно повторить, даже если сервер мог его получить (нет изменения таблицы).
+     * @return Тело ответа 200.
+     * @throws IOException При ошибке соединения или ответе не 200 и не 400.
+     */
+    private String execute(String method, String url, String body, boolean retry) throws IOException {
+        if (mClosed) {
+            throw new IOException("Клиент закрыт");
+        }
+        byte[] request = request(method, url, body);
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ожидание соединения прервано");
+        }
+        Connection connection = null;
+        try {
+            connection = mIdle.pollFirst();
+            while (connection != null && !retry && connection.isClosedByServer()) {
+                connection.close();
+                connection = mIdle.pollFirst();
+            }
+            boolean reused = connection != null;
+            if (connection == null) {
+                connection = new Connection(mHost, mPort);
+            }
+            Response response = connection.execute(request);
+            if (response == null && reused && (retry || !connection.mSent)) {
+                //Сервер закрыл простаивающее соединение: запрос до него не дошел или его можно повторить
+                connection.close();
+                connection = new Connection(mHost, mPort);
+                response = connection.execute(request);
+            }
+            if (response == null) {
+                throw new IOException("Соединение закрыто сервером до ответа");
+            }
+            if (response.mKeepAlive && !mClosed) {
+                mIdle.offerFirst(connection);
+            } else {
+                connection.close();
+            }
+            connection = null;
+            return response.result();
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+            mPermits.release();
+        }
+    }
+
+    /**
+     * Путь команды таблицы.
+     *
+     * @param table Таблица.
+     * @param cmd   Команда.
+     * @return Начало пути с параметрами.
+     * @throws IOException Не бросается.
+     */
+    private static StringBuilder url(String table, String cmd) throws IOException {
+        if (table == null || table.isEmpty()) {
+            throw new IllegalArgumentException("Не задано имя таблицы");
+        }
+        return new StringBuilder("/vts/table/").append(encode(table)).append("?cmd=").append(cmd);
+    }
+
+    /**
+     * Добавление строки и столбца, если заданы.
+     *
+     * @param url Путь.
+     * @param row Строка.
+     * @param col Столбец.
+     */
+    private static void position(StringBuilder url, Integer row, Integer col) {
+        if (row != null) {
+            url.append("&row=").append(row);
+        }
+        if (col != null) {
+            url.append("&col=").append(col);
+        }
+    }
+
+    /**
+     * Кодирование части URL (пробел - %20, парсер сервера не понимает '+').
+     *
+     * @param value Значение.
+     * @return Закодированное значение.
+     * @throws UnsupportedEncodingException Не бросается.
+     */
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+    }
+
+    /**
+     * Ячейка в CSV: в кавычках, если содержит разделитель, кавычку или перевод строки.
+     *
+     * @param sb   Тело.
+     * @param cell Ячейка.
+     */
+    private static void appendCell(StringBuilder sb, String cell) {
+        if (cell == null) {
+            return;
+        }
+        if (cell.contains(DELIMITER) || cell.indexOf('"') >= 0 || cell.indexOf('\n') >= 0 || cell.indexOf('\r') >= 0) {
+            sb.append('"').append(cell.replace("\"", "\"\"")).append('"');
+        } else {
+            sb.append(cell);
+        }
+    }
+
+    /**
+     * Строки пакетного ответа (через перевод строки).
+     *
+     * @param body Тело ответа.
+     * @return Строки.
+     */
+    private static List<String> rows(String body) {
+        if (body.indexOf('\n') < 0) {
+            return Collections.singletonList(body);
+        }
+        return new ArrayList<>(Arrays.asList(body.split("\n", -1)));
+    }
+
+    /**
+     * Текст запроса.
+     *
+     * @param method Метод.
+     * @param url    Путь с параметрами.
+     * @param body   Тело или {@code null}.
+     * @return Запрос.
+     */
+    private byte[] request(String method, String url, String body) {
+        byte[] data = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        String header = method + " " + url + " HTTP/1.1\r\nHost: " + mHost + ":" + mPort + "\r\nConnection: keep-alive\r\n"
+                + (body == null ? "" : "Content-Length: " + data.length + "\r\n") + "\r\n";
+        byte[] head = header.getBytes(StandardCharsets.US_ASCII);
+        byte[] res = Arrays.copyOf(head, head.length + data.length);
+        System.arraycopy(data, 0, res, head.length, data.length);
+        return res;
+    }
+
+    /**
+     * Ответ сервера.
+     */
+    private static final class Response {
+        private final int mCode; //Код
+        private final String mBody; //Тело
+        private final boolean mKeepAlive; //Соединение можно использовать дальше
+
+        private Response(int code, String body, boolean keepAlive) {
+            mCode = code;
+            mBody = body;
+            mKeepAlive = keepAlive;
+        }
+
+        /**
+         * Результат команды.
+         *
+         * @return Тело ответа 200.
+         * @throws IOException При ответе не 200 и не 400.
+         */
+        private String result() throws IOException {
+            if (mCode == 200) {
+                return mBody;
+            }
+            //Описание ошибки - до справки по таблицам
+            int br = mBody.indexOf("<br/>");
+            String message = br < 0 ? mBody : mBody.substring(0, br);
+            if (mCode == 400) {
+                throw new IllegalArgumentException(message);
+            }
+            throw new IOException("Ответ " + mCode + ": " + message);
+        }
+    }
+
+    /**
+     * Постоянное соединение.
+     */
+    private static final class Connection {
+        private final Socket mSocket; //Сокет
+        private final InputStream mIn; //Ответы
+        private final OutputStream mOut; //Запросы
+        private final HttpResponseReader mReader; //Чтение ответов
+        private boolean mSent; //Последний запрос передан в сокет целиком
+
+        private Connection(String host, int port) throws IOException {
+            mSocket = new Socket();
+            try {
+                mSocket.connect(new InetSocketAddress(host, port), TIMEOUT);
+                mSocket.setSoTimeout(TIMEOUT);
+                mSocket.setTcpNoDelay(true);
+                mIn = new BufferedInputStream(mSocket.getInputStream());
+                mOut = new BufferedOutputStream(mSocket.getOutputStream());
+                mReader = new HttpResponseReader(mIn);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Отправка запроса и чтение ответа.
+         *
+         * @param request Запрос.
+         * @return Ответ или {@code null}, если сервер закрыл соединение, не ответив (см. {@link #mSent}).
+         * @throws IOException При ошибке соединения.
+         */
+        private Response execute(byte[] request) throws IOException {
+            mSent = false;
+            try {
+                mOut.write(request);
+                mOut.flush();
+            } catch (IOException e) {
+                return null;
+            }
+            mSent = true;
+            if (!mReader.read()) {
+                return null;
+            }
+            return new Response(mReader.getCode(), mReader.getBody(), mReader.isKeepAlive());
+        }
+
+        /**
+         * Проверка свободного соединения перед запросом, который нельзя повторить: сервер закрыл его по простою,
+         * если чтение без ожидания сразу видит конец потока.
+         *
+         * @return {@code true}, если соединение закрыто или в нем есть лишние данные.
+         */
+        private boolean isClosedByServer() {
+            try {
+                mSocket.setSoTimeout(1);
+                try {
+                    mIn.read(); //Конец потока, а данных между ответами быть не должно
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    return false;
+                } finally {
+                    mSocket.setSoTimeout(TIMEOUT);
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        private void close() {
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
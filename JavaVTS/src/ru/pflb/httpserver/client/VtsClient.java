@@ -0,0 +1,63 @@
+package ru.pflb.httpserver.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Типизированный доступ к таблицам VTS без ручной сборки URL.
+ * Реализации: в том же процессе - {@code VTSModule.getClient()} (вызовы таблиц напрямую, без HTTP),
+ * удаленно - {@link RemoteVtsClient} (пул постоянных HTTP соединений).
+ * Ошибки запроса (нет таблицы, нет строк, неверный столбец и т.п.) - {@link IllegalArgumentException}, как ответ 400,
+ * ошибки соединения - {@link IOException}. Реализации потокобезопасны.
+ */
+public interface VtsClient extends Closeable {
+
+    /**
+     * Получение строк/ячеек.
+     *
+     * @param table Таблица.
+     * @param row   Первая строка, {@code null} - с текущей с переходом к следующей.
+     * @param col   Столбец, {@code null} - вся строка.
+     * @param count Количество (пакет за один вызов).
+     * @return Строки (ячейки через разделитель таблицы) или ячейки.
+     * @throws IOException При ошибке соединения.
+     */
+    List<String> get(String table, Integer row, Integer col, int count) throws IOException;
+
+    /**
+     * Забор строк/ячеек.
+     *
+     * @param table     Таблица.
+     * @param row       Строка, {@code null} - текущая.
+     * @param col       Столбец, {@code null} - вся строка.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество, если строк меньше - забираются все.
+     * @return Строки (ячейки через разделитель таблицы) или ячейки.
+     * @throws IOException При ошибке соединения.
+     */
+    List<String> pop(String table, Integer row, Integer col, boolean deleteRow, int count) throws IOException;
+
+    /**
+     * Вставка строк одним вызовом.
+     *
+     * @param table Таблица.
+     * @param row   Позиция первой строки, {@code null} - как у одиночной вставки.
+     * @param rows  Строки, разбитые на ячейки.
+     * @return Результат.
+     * @throws IOException При ошибке соединения.
+     */
+    String push(String table, Integer row, List<String[]> rows) throws IOException;
+
+    /**
+     * Поиск строки по значению столбца с индексом.
+     *
+     * @param table Таблица.
+     * @param col   Столбец.
+     * @param value Значение.
+     * @param take  Забрать найденную строку.
+     * @return Строка (ячейки через разделитель таблицы).
+     * @throws IOException При ошибке соединения.
+     */
+    String find(String table, int col, String value, boolean take) throws IOException;
+}
@@ -80,6 +80,7 @@ public abstract class HTTPConstants {
         C200("OK"),
         C400("Bad Request"),
         C404("Not Found"),
+        C413("Payload Too Large"),
         C500("Internal Server Error"),
         C503("Service Unavailable");
 
@@ -95,6 +96,75 @@ public abstract class HTTPConstants {
         }
     }
 
+    /**
+     * Режимы выполнения входящих запросов.
+     */
+    public enum EXECUTOR {
+        THREAD("thread"), //Новый поток на каждое подключение
+        POOL("pool"), //Ограниченный пул потоков с очередью (blocking: поток занят соединением, включая простой keep-alive)
+        VIRTUAL("virtual"); //Виртуальный поток на каждое подключение (Java 21+), ограничено число одновременных запросов
+
+        private final String mValue;
+
+        EXECUTOR(String value) {
+            mValue = value;
+        }
+
+        /**
+         * Разбор режима выполнения.
+         *
+         * @param value Строка с режимом.
+         * @return Режим выполнения.
+         */
+        public static EXECUTOR parse(String value) {
+            for (EXECUTOR e : values()) {
+                if (e.mValue.equalsIgnoreCase(value)) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException("Неизвестный режим выполнения: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Движки приема подключений.
+     */
+    public enum ENGINE {
+        BLOCKING("blocking"), //ServerSocket и поток на соединение
+        NIO("nio"); //Selector и несколько циклов событий
+
+        private final String mValue;
+
+        ENGINE(String value) {
+            mValue = value;
+        }
+
+        /**
+         * Разбор движка.
+         *
+         * @param value Строка с движком.
+         * @return Движок.
+         */
+        public static ENGINE parse(String value) {
+            for (ENGINE e : values()) {
+                if (e.mValue.equalsIgnoreCase(value)) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException("Неизвестный движок: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
     /**
      * Список методов
      */
@@ -3,7 +3,15 @@ package ru.pflb.httpserver.core;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * Базовый класс модулей для сервера.
@@ -25,6 +33,18 @@ public abstract class HTTPModule {
      */
     public abstract void init() throws Exception;
 
+    /**
+     * Запуск модуля вместе с сервером (например, собственных слушателей портов). По умолчанию ничего не делает.
+     */
+    public void start() {
+    }
+
+    /**
+     * Остановка модуля вместе с сервером. По умолчанию ничего не делает.
+     */
+    public void stop() {
+    }
+
     /**
      * Метод обработки входящих запросов.
      *
@@ -46,10 +66,27 @@ public abstract class HTTPModule {
     public abstract String getModuleDescription();
 
     /**
-     * Регистрация url, при вызове которого будет вызван метод {@link HTTPModule#processSocket(Response, Socket, HTTPConstants.METHOD, String[], int, String[], HashMap, String)}.
-     * @param requests Карта запросов и модулей.
+     * Регистрация путей модуля: {@link Router#add(String, HTTPModule)} - запросы пойдут в
+     * {@link HTTPModule#processSocket(Response, Socket, HTTPConstants.METHOD, String[], int, String[], HashMap, String)},
+     * {@link Router#add(String, Router.Handler)} - в отдельный обработчик пути.
+     * @param router Маршрутизатор сервера.
      */
-    public abstract void registerUrls(HashMap<String, HTTPModule> requests);
+    public abstract void registerUrls(Router router);
+
+    /**
+     * Передача метрик сервера. Вызывается сервером до разбора аргументов и {@link #init()},
+     * модуль может зарегистрировать свой источник или сохранить ссылку для учета.
+     * @param metrics Метрики сервера.
+     */
+    public void setMetrics(Metrics metrics) {
+    }
+
+    /**
+     * Передача движка приема подключений. Вызывается сервером после разбора аргументов, до {@link #init()}.
+     * @param engine Движок.
+     */
+    public void setEngine(HTTPConstants.ENGINE engine) {
+    }
 
     /**
      * Метод, который делает отступы.
@@ -69,9 +106,35 @@ public abstract class HTTPModule {
      * Класс ответа.
      */
     public static class Response {
+        private static final int DEFAULT_BODY_BUFFER = 1024; //Начальный размер буфера тела
+        private static final EnumMap<HTTPConstants.CODE, byte[]> HEADER_PREFIXES = new EnumMap<>(HTTPConstants.CODE.class); //Заголовки до Content-Length
+        private static final byte[] CONTENT_HTML = contentType("text/html; charset=UTF-8"); //Заголовки типа по умолчанию до длины
+        private static final byte[] CONNECTION_KEEP_ALIVE = "\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CONNECTION_CLOSE = "\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final int MAX_POOLED_BODY = 64 * 1024; //Буфер тела больше этого не возвращается в пул
+        //Общий пул буферов для потоков, отправляющих ответы сами (не ThreadLocal: виртуальные потоки его не переиспользуют)
+        private static final ArrayBlockingQueue<ByteBuffer[]> SEND_BUFFERS = new ArrayBlockingQueue<>(64);
+        private static final ThreadLocal<CharsetEncoder> ENCODERS = new ThreadLocal<CharsetEncoder>() {
+            @Override
+            protected CharsetEncoder initialValue() {
+                return StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+        };
+
+        static {
+            for (HTTPConstants.CODE code : HTTPConstants.CODE.values()) {
+                HEADER_PREFIXES.put(code, ("HTTP/1.1 " + code.name().substring(1) + " " + code.toString() + "\r\n" +
+                        "Server: PFLBServer/2016\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+
         private Socket mSocket; //Сокет для ответа
         private HTTPConstants.CODE mCode;//Код ответа
         private String mData; //Ответ
+        private byte[] mContentType = CONTENT_HTML; //Заголовок Content-Type и начало Content-Length
+        private boolean mKeepAlive = false; //Оставить соединение открытым
 
         /**
          * Конструктор.
@@ -99,6 +162,15 @@ public abstract class HTTPModule {
             this(socket, HTTPConstants.CODE.C200, null);
         }
 
+        /**
+         * Конструктор ответа без сокета (асинхронные обработчики, ответ отправляет сервер).
+         * @param code Код ответа.
+         * @param data Ответ.
+         */
+        public Response(HTTPConstants.CODE code, String data) {
+            this(null, code, data);
+        }
+
         /**
          * Полный конструктор.
          *
@@ -117,20 +189,119 @@ public abstract class HTTPModule {
          * @throws IOException Бросает исключение при ошибках.
          */
         public void send() throws IOException {
-            StringBuilder response = new StringBuilder();
-            //Заполнение заголовка
-            response.append("HTTP/1.1 ").append(mCode.name().substring(1)).append(" ").append(mCode.toString()).append("\r\n")
-                    .append("Server: PFLBServer/2016\r\n")
-                    .append("Content-Type: text/html; charset=UTF-8\r\n")
-                    .append("Content-Length: ").append(mData == null ? 0 : mData.getBytes("UTF-8").length).append("\r\n")
-                    .append("Connection: close\r\n\r\n");
-            //Заполнение ответа
-            if (mData != null && !mData.isEmpty())
-                response.append(mData);
+            ByteBuffer[] buffers = SEND_BUFFERS.poll();
+            if (buffers == null) {
+                buffers = new ByteBuffer[2];
+            }
+            try {
+                write(encode(buffers));
+            } finally {
+                release(buffers);
+            }
+        }
+
+        /**
+         * Возврат буферов в пул. Крупный буфер тела не хранится, следующий большой ответ выделит свой.
+         *
+         * @param buffers Буферы.
+         */
+        private static void release(ByteBuffer[] buffers) {
+            if (buffers[1] != null && buffers[1].capacity() > MAX_POOLED_BODY) {
+                buffers[1] = null;
+            }
+            SEND_BUFFERS.offer(buffers);
+        }
+
+        /**
+         * Запись закодированного ответа в сокет.
+         *
+         * @param buffers Заголовок и тело.
+         * @throws IOException При ошибке записи.
+         */
+        private void write(ByteBuffer[] buffers) throws IOException {
             //Запись ответа
-            OutputStream out = mSocket.getOutputStream();
-            out.write((response.toString()).getBytes("UTF-8"));
-            out.flush();
+            SocketChannel channel = mSocket.getChannel();
+            if (channel != null && channel.isBlocking()) {
+                //Заголовок и тело одной gathering записью (тело может быть пустым)
+                while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } else {
+                OutputStream out = mSocket.getOutputStream();
+                out.write(buffers[0].array(), 0, buffers[0].limit());
+                out.write(buffers[1].array(), 0, buffers[1].limit());
+                out.flush();
+            }
+        }
+
+        /**
+         * Кодирование ответа в буферы: [0] - заголовок, [1] - тело.
+         * Строка состояния и постоянные заголовки берутся готовыми байтами, тело кодируется один раз.
+         * Переданные буферы переиспользуются, если их хватает, иначе заменяются большими.
+         *
+         * @param buffers Массив из двух буферов (элементы могут быть {@code null}).
+         * @return Тот же массив с буферами, готовыми к записи.
+         */
+        public ByteBuffer[] encode(ByteBuffer[] buffers) {
+            //Тело
+            ByteBuffer body = buffers[1];
+            int maxBodyLength = mData == null ? 0 : (int) Math.min(Integer.MAX_VALUE, (long) mData.length() * 3);
+            if (body == null || body.capacity() < maxBodyLength) {
+                body = ByteBuffer.allocate(Math.max(maxBodyLength, DEFAULT_BODY_BUFFER));
+            }
+            body.clear();
+            if (mData != null && !mData.isEmpty()) {
+                CharsetEncoder encoder = ENCODERS.get();
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(mData), body, true);
+                encoder.flush(body);
+            }
+            body.flip();
+
+            //Заголовок
+            byte[] prefix = HEADER_PREFIXES.get(mCode);
+            byte[] connection = mKeepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+            ByteBuffer header = buffers[0];
+            int headerLength = prefix.length + mContentType.length + 10 + connection.length;
+            if (header == null || header.capacity() < headerLength) {
+                header = ByteBuffer.allocate(headerLength);
+            }
+            header.clear();
+            header.put(prefix);
+            header.put(mContentType);
+            putDecimal(header, body.remaining());
+            header.put(connection);
+            header.flip();
+
+            buffers[0] = header;
+            buffers[1] = body;
+            return buffers;
+        }
+
+        /**
+         * Заголовок Content-Type с началом Content-Length.
+         *
+         * @param type Тип содержимого.
+         * @return Байты заголовков.
+         */
+        private static byte[] contentType(String type) {
+            return ("Content-Type: " + type + "\r\nContent-Length: ").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Запись неотрицательного числа десятичными цифрами без создания строки.
+         *
+         * @param buf   Буфер.
+         * @param value Число.
+         */
+        private static void putDecimal(ByteBuffer buf, int value) {
+            int divisor = 1;
+            while (value / divisor >= 10) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                buf.put((byte) ('0' + value / divisor % 10));
+            }
         }
 
         /**
@@ -142,6 +313,15 @@ public abstract class HTTPModule {
             mSocket = socket;
         }
 
+        /**
+         * Устанавливает признак постоянного соединения.
+         *
+         * @param keepAlive {@code true}, если соединение останется открытым после ответа.
+         */
+        public void setKeepAlive(boolean keepAlive) {
+            mKeepAlive = keepAlive;
+        }
+
         /**
          * Устанавливает код ответа.
          *
@@ -151,6 +331,24 @@ public abstract class HTTPModule {
             mCode = code;
         }
 
+        /**
+         * Устанавливает тип содержимого, по умолчанию text/html; charset=UTF-8.
+         *
+         * @param type Тип содержимого.
+         */
+        public void setContentType(String type) {
+            mContentType = contentType(type);
+        }
+
+        /**
+         * Код ответа.
+         *
+         * @return Код ответа.
+         */
+        public HTTPConstants.CODE getCode() {
+            return mCode;
+        }
+
         /**
          * Устанавливает ответ.
          *
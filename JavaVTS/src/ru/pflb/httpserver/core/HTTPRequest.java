@@ -0,0 +1,103 @@
+package ru.pflb.httpserver.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Входящий HTTP запрос.
+ * Создается {@link HTTPRequestParser}. Заголовок и тело хранятся в байтах и превращаются в строки только при обращении.
+ */
+public class HTTPRequest {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final HTTPConstants.METHOD mMethod; //Метод
+    private final String[] mUrls; //URL структура запроса
+    private final HashMap<String, String> mParams; //Параметры запроса
+    private final byte[] mRawHeader; //Строки заголовка, разделенные LF
+    private final byte[] mBody; //POST body
+    private final boolean mKeepAlive; //Клиент готов переиспользовать соединение
+    private String[] mHeader; //Строки заголовка (при первом обращении)
+    private String mData; //POST body строкой (при первом обращении)
+
+    /**
+     * Конструктор.
+     *
+     * @param method    Метод.
+     * @param urls      URL структура запроса.
+     * @param params    Параметры запроса.
+     * @param header    Строки заголовка, разделенные LF.
+     * @param body      POST body.
+     * @param keepAlive Признак постоянного соединения.
+     */
+    public HTTPRequest(HTTPConstants.METHOD method, String[] urls, HashMap<String, String> params, byte[] header, byte[] body, boolean keepAlive) {
+        mMethod = method;
+        mUrls = urls;
+        mParams = params;
+        mRawHeader = header == null ? EMPTY : header;
+        mBody = body == null ? EMPTY : body;
+        mKeepAlive = keepAlive;
+    }
+
+    public HTTPConstants.METHOD getMethod() {
+        return mMethod;
+    }
+
+    public String[] getUrls() {
+        return mUrls;
+    }
+
+    public HashMap<String, String> getParams() {
+        return mParams;
+    }
+
+    /**
+     * Строки заголовка.
+     *
+     * @return Строки заголовка без строки запроса.
+     */
+    public String[] getHeader() {
+        if (mHeader == null) {
+            ArrayList<String> lines = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < mRawHeader.length; i++) {
+                if (mRawHeader[i] == '\n') {
+                    lines.add(new String(mRawHeader, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            mHeader = lines.toArray(new String[lines.size()]);
+        }
+        return mHeader;
+    }
+
+    /**
+     * Тело запроса в байтах, без копирования.
+     *
+     * @return Тело запроса (пустой массив, если тела нет).
+     */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    /**
+     * Тело запроса строкой.
+     *
+     * @return Тело запроса с переводами строк LF или {@code null}, если тела нет.
+     */
+    public String getData() {
+        if (mData == null && mBody.length != 0) {
+            mData = new String(mBody, StandardCharsets.UTF_8).replaceAll("\r\n", "\n");
+        }
+        return mData;
+    }
+
+    /**
+     * Признак того, что клиент готов переиспользовать соединение.
+     *
+     * @return {@code true} для HTTP/1.1 без "Connection: close" и для HTTP/1.0 с "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+}
@@ -0,0 +1,593 @@
+package ru.pflb.httpserver.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Инкрементальный парсер HTTP запросов, работающий прямо по байтам.
+ * Один экземпляр на соединение: байты можно подавать любыми порциями, парсер забирает из буфера ровно один запрос,
+ * следующие (pipelining) остаются в буфере. Понимает Content-Length и chunked тело, декодирует %XX в URL и параметрах.
+ * Промежуточных строк и массивов строк не создает: на выходе только уровни URL и карта параметров.
+ */
+public class HTTPRequestParser {
+    private static final int MAX_HEADER_SIZE = 64 * 1024; //Максимальный размер заголовка
+    private static final int MAX_BODY_SIZE = 64 * 1024 * 1024; //Максимальный размер тела
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024; //Размер буфера для чтения из потока
+    private static final HTTPConstants.METHOD[] METHODS = HTTPConstants.METHOD.values(); //Методы
+    private static final byte[][] METHOD_NAMES = new byte[METHODS.length][]; //Имена методов в байтах
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_10 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] ROOT = new String[]{""}; //URL без уровней
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_NAMES[i] = METHODS[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private STATE mState = STATE.REQUEST_LINE; //Текущее состояние
+    private byte[] mLine = new byte[256]; //Текущая строка
+    private int mLineLength = 0; //Длина текущей строки
+    private byte[] mHeader = new byte[1024]; //Строки заголовка, разделенные LF
+    private int mHeaderLength = 0; //Длина заголовка
+    private byte[] mBody; //Тело
+    private int mBodyLength = 0; //Прочитано байт тела
+    private int mRemaining = 0; //Осталось прочитать байт тела/чанка
+    private byte[] mScratch = new byte[256]; //Буфер декодирования %XX
+    private ByteBuffer mStreamBuffer; //Буфер для чтения из потока
+
+    //Разобранные части текущего запроса
+    private HTTPConstants.METHOD mMethod;
+    private String[] mUrls;
+    private HashMap<String, String> mParams;
+    private int mContentLength;
+    private boolean mChunked;
+    private boolean mKeepAlive;
+
+    /**
+     * Разбор очередной порции байт.
+     *
+     * @param buf Буфер в режиме чтения. Позиция сдвигается на количество разобранных байт.
+     * @return Запрос, если он дочитан до конца, иначе {@code null} (буфер при этом разобран полностью).
+     * @throws IllegalArgumentException При нарушении протокола.
+     */
+    public HTTPRequest parse(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            switch (mState) {
+                case REQUEST_LINE:
+                    if (!readLine(buf)) {
+                        return null;
+                    }
+                    if (mLineLength != 0) {//Пустые строки между запросами пропускаем
+                        parseRequestLine();
+                        mState = STATE.HEADERS;
+                    }
+                    mLineLength = 0;
+                    break;
+                case HEADERS:
+                    if (!readLine(buf)) {
+                        return null;
+                    }
+                    if (mLineLength == 0) {
+                        HTTPRequest request = startBody(buf);
+                        if (request != null) {
+                            return request;
+                        }
+                    } else {
+                        parseHeader();
+                        mLineLength = 0;
+                    }
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    int n = Math.min(mRemaining, buf.remaining());
+                    buf.get(mBody, mBodyLength, n);
+                    mBodyLength += n;
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        if (mState == STATE.BODY) {
+                            return complete();
+                        }
+                        mState = STATE.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (!readLine(buf)) {
+                        return null;
+                    }
+                    int size = parseChunkSize();
+                    mLineLength = 0;
+                    if (size == 0) {
+                        mState = STATE.TRAILERS;
+                    } else {
+                        ensureBody(mBodyLength + size);
+                        mRemaining = size;
+                        mState = STATE.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (!readLine(buf)) {
+                        return null;
+                    }
+                    if (mLineLength != 0) {
+                        throw new IllegalArgumentException("Нет CRLF после чанка");
+                    }
+                    mState = STATE.CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (!readLine(buf)) {
+                        return null;
+                    }
+                    if (mLineLength == 0) {
+                        return complete();
+                    }
+                    mLineLength = 0;//Трейлеры не нужны
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Чтение одного запроса из потока (для блокирующего движка).
+     *
+     * @param in Поток.
+     * @return Запрос или {@code null}, если клиент закрыл соединение между запросами.
+     * @throws IOException При ошибках чтения или обрыве посреди запроса.
+     */
+    public HTTPRequest read(InputStream in) throws IOException {
+        if (mStreamBuffer == null) {
+            mStreamBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            mStreamBuffer.flip();
+        }
+        while (true) {
+            if (mStreamBuffer.hasRemaining()) {
+                HTTPRequest request = parse(mStreamBuffer);
+                if (request != null) {
+                    return request;
+                }
+            }
+            //Буфер разобран полностью, дочитываем
+            int n = in.read(mStreamBuffer.array(), 0, mStreamBuffer.capacity());
+            if (n < 0) {
+                if (mState == STATE.REQUEST_LINE && mLineLength == 0) {
+                    return null;
+                }
+                throw new EOFException("Соединение закрыто посреди запроса");
+            }
+            mStreamBuffer.position(0);
+            mStreamBuffer.limit(n);
+        }
+    }
+
+    /**
+     * Признак того, что разобран целый запрос и следующий еще не начат.
+     *
+     * @return {@code true}, если соединение простаивает между запросами.
+     */
+    public boolean isIdle() {
+        return mState == STATE.REQUEST_LINE && mLineLength == 0 && (mStreamBuffer == null || !mStreamBuffer.hasRemaining());
+    }
+
+    /**
+     * Накопление строки до LF. CR в конце отбрасывается.
+     *
+     * @param buf Буфер.
+     * @return {@code true}, если строка закончилась.
+     */
+    private boolean readLine(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (b == '\n') {
+                if (mLineLength > 0 && mLine[mLineLength - 1] == '\r') {
+                    mLineLength--;
+                }
+                return true;
+            }
+            if (mLineLength == mLine.length) {
+                if (mLineLength >= MAX_HEADER_SIZE) {
+                    throw new IllegalArgumentException("Слишком длинная строка заголовка");
+                }
+                mLine = Arrays.copyOf(mLine, mLineLength * 2);
+            }
+            mLine[mLineLength++] = b;
+        }
+        return false;
+    }
+
+    /**
+     * Разбор строки запроса: метод, уровни URL, параметры и версия.
+     */
+    private void parseRequestLine() {
+        int sp1 = indexOf(mLine, 0, mLineLength, (byte) ' ');
+        if (sp1 <= 0) {
+            throw new IllegalArgumentException("Неверная строка запроса");
+        }
+        mMethod = parseMethod(sp1);
+        int targetStart = sp1 + 1;
+        int sp2 = indexOf(mLine, targetStart, mLineLength, (byte) ' ');
+        int targetEnd = sp2 < 0 ? mLineLength : sp2;
+
+        //HTTP/1.1 по умолчанию держит соединение, HTTP/1.0 - нет
+        boolean http10 = sp2 >= 0 && equalsIgnoreCase(mLine, sp2 + 1, mLineLength, HTTP_10);
+        mKeepAlive = !http10;
+        mContentLength = -1;
+        mChunked = false;
+
+        //Нормализация URL
+        if (targetStart < targetEnd && mLine[targetStart] == '/') {
+            targetStart++;
+        }
+        int query = indexOf(mLine, targetStart, targetEnd, (byte) '?');
+        int pathEnd = query < 0 ? targetEnd : query;
+        mUrls = parseUrls(targetStart, pathEnd);
+        mParams = parseParams(query < 0 ? targetEnd : query + 1, targetEnd);
+    }
+
+    /**
+     * Определение метода без создания строки.
+     *
+     * @param end Конец метода в строке.
+     * @return Метод.
+     */
+    private HTTPConstants.METHOD parseMethod(int end) {
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            byte[] name = METHOD_NAMES[i];
+            if (name.length == end && regionMatches(mLine, 0, name)) {
+                return METHODS[i];
+            }
+        }
+        throw new IllegalArgumentException("Неизвестный метод: " + new String(mLine, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Разбор уровней URL. Пустые уровни в конце отбрасываются.
+     *
+     * @param start Начало пути.
+     * @param end   Конец пути.
+     * @return Уровни URL в нижнем регистре.
+     */
+    private String[] parseUrls(int start, int end) {
+        //Отбрасываем завершающие '/'
+        while (end > start && mLine[end - 1] == '/') {
+            end--;
+        }
+        if (end == start) {
+            return ROOT;
+        }
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (mLine[i] == '/') {
+                count++;
+            }
+        }
+        String[] urls = new String[count];
+        int segStart = start;
+        int idx = 0;
+        for (int i = start; i <= end; i++) {
+            if (i == end || mLine[i] == '/') {
+                urls[idx++] = decode(segStart, i, true);
+                segStart = i + 1;
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Разбор параметров вида param=value&amp;...
+     *
+     * @param start Начало строки параметров.
+     * @param end   Конец строки параметров.
+     * @return Карта параметров.
+     */
+    private HashMap<String, String> parseParams(int start, int end) {
+        HashMap<String, String> params = new HashMap<>();
+        int pairStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || mLine[i] == '&') {
+                if (i > pairStart) {
+                    int eq = indexOf(mLine, pairStart, i, (byte) '=');
+                    if (eq < 0) {
+                        params.put(decode(pairStart, i, true), null);
+                    } else {
+                        //Значение сохраняет регистр: find ищет его как есть
+                        params.put(decode(pairStart, eq, true), eq + 1 == i ? null : decode(eq + 1, i, false));
+                    }
+                }
+                pairStart = i + 1;
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Декодирование %XX и, для уровней URL и имен параметров, перевод в нижний регистр.
+     *
+     * @param start Начало.
+     * @param end   Конец.
+     * @param lower Перевести в нижний регистр.
+     * @return Строка.
+     */
+    private String decode(int start, int end, boolean lower) {
+        if (mScratch.length < end - start) {
+            mScratch = new byte[Math.max(end - start, mScratch.length * 2)];
+        }
+        int len = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            byte b = mLine[i];
+            if (b == '%' && i + 2 < end) {
+                int hi = hex(mLine[i + 1]);
+                int lo = hex(mLine[i + 2]);
+                if (hi >= 0 && lo >= 0) {
+                    b = (byte) (hi << 4 | lo);
+                    i += 2;
+                }
+            }
+            if (lower && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            } else if (b < 0) {
+                ascii = false;
+            }
+            mScratch[len++] = b;
+        }
+        if (ascii) {
+            return new String(mScratch, 0, len, StandardCharsets.US_ASCII);
+        }
+        String res = new String(mScratch, 0, len, StandardCharsets.UTF_8);
+        return lower ? res.toLowerCase() : res;
+    }
+
+    /**
+     * Разбор строки заголовка. Интересны только Content-Length, Transfer-Encoding и Connection,
+     * остальные строки просто сохраняются.
+     */
+    private void parseHeader() {
+        if (mHeaderLength + mLineLength + 1 > MAX_HEADER_SIZE) {
+            throw new IllegalArgumentException("Слишком большой заголовок");
+        }
+        if (mHeader.length < mHeaderLength + mLineLength + 1) {
+            mHeader = Arrays.copyOf(mHeader, Math.max(mHeader.length * 2, mHeaderLength + mLineLength + 1));
+        }
+        System.arraycopy(mLine, 0, mHeader, mHeaderLength, mLineLength);
+        mHeaderLength += mLineLength;
+        mHeader[mHeaderLength++] = '\n';
+
+        int colon = indexOf(mLine, 0, mLineLength, (byte) ':');
+        if (colon <= 0) {
+            return;
+        }
+        int nameEnd = trimEnd(0, colon);
+        int valueStart = trimStart(colon + 1, mLineLength);
+        int valueEnd = trimEnd(valueStart, mLineLength);
+        if (equalsIgnoreCase(mLine, 0, nameEnd, CONTENT_LENGTH)) {
+            mContentLength = parseInt(valueStart, valueEnd);
+        } else if (equalsIgnoreCase(mLine, 0, nameEnd, TRANSFER_ENCODING)) {
+            mChunked = containsIgnoreCase(valueStart, valueEnd, CHUNKED);
+        } else if (equalsIgnoreCase(mLine, 0, nameEnd, CONNECTION)) {
+            if (containsIgnoreCase(valueStart, valueEnd, CLOSE)) {
+                mKeepAlive = false;
+            } else if (containsIgnoreCase(valueStart, valueEnd, KEEP_ALIVE)) {
+                mKeepAlive = true;
+            }
+        }
+    }
+
+    /**
+     * Заголовок закончился, выбор способа чтения тела.
+     *
+     * @param buf Буфер.
+     * @return Запрос, если тела нет или оно уже прочитано, иначе {@code null}.
+     */
+    private HTTPRequest startBody(ByteBuffer buf) {
+        mBodyLength = 0;
+        if (mChunked) {
+            mBody = new byte[256];
+            mState = STATE.CHUNK_SIZE;
+            return null;
+        }
+        if (mContentLength > 0) {
+            if (mContentLength > MAX_BODY_SIZE) {
+                throw new TooLargeException("Слишком большой запрос: " + mContentLength);
+            }
+            mBody = new byte[mContentLength];
+            mRemaining = mContentLength;
+            mState = STATE.BODY;
+            return null;
+        }
+        if (mContentLength < 0 && (mMethod == HTTPConstants.METHOD.POST || mMethod == HTTPConstants.METHOD.PUT) && buf.hasRemaining()) {
+            //Длина не указана - забираем то, что уже пришло, и не держим соединение
+            mBody = new byte[buf.remaining()];
+            buf.get(mBody);
+            mBodyLength = mBody.length;
+            mKeepAlive = false;
+            return complete();
+        }
+        mBody = null;
+        return complete();
+    }
+
+    /**
+     * Сборка запроса и сброс состояния для следующего.
+     *
+     * @return Запрос.
+     */
+    private HTTPRequest complete() {
+        byte[] body = mBody;
+        if (body != null && body.length != mBodyLength) {
+            body = Arrays.copyOf(body, mBodyLength);
+        }
+        HTTPRequest request = new HTTPRequest(mMethod, mUrls, mParams, Arrays.copyOf(mHeader, mHeaderLength), body, mKeepAlive);
+        mState = STATE.REQUEST_LINE;
+        mLineLength = 0;
+        mHeaderLength = 0;
+        mBody = null;
+        mBodyLength = 0;
+        mMethod = null;
+        mUrls = null;
+        mParams = null;
+        return request;
+    }
+
+    /**
+     * Размер чанка (расширения после ';' игнорируются).
+     *
+     * @return Размер чанка.
+     */
+    private int parseChunkSize() {
+        long size = 0;
+        int end = indexOf(mLine, 0, mLineLength, (byte) ';');
+        end = trimEnd(0, end < 0 ? mLineLength : end);
+        int start = trimStart(0, end);
+        if (start == end) {
+            throw new IllegalArgumentException("Пустой размер чанка");
+        }
+        for (int i = start; i < end; i++) {
+            int d = hex(mLine[i]);
+            if (d < 0) {
+                throw new IllegalArgumentException("Неверный размер чанка");
+            }
+            size = size << 4 | d;
+            if (mBodyLength + size > MAX_BODY_SIZE) {
+                throw new TooLargeException("Слишком большой запрос");
+            }
+        }
+        return (int) size;
+    }
+
+    /**
+     * Увеличение буфера тела.
+     *
+     * @param capacity Нужный размер.
+     */
+    private void ensureBody(int capacity) {
+        if (mBody.length < capacity) {
+            mBody = Arrays.copyOf(mBody, Math.max(capacity, mBody.length * 2));
+        }
+    }
+
+    /**
+     * Десятичное число из строки.
+     *
+     * @param start Начало.
+     * @param end   Конец.
+     * @return Число.
+     */
+    private int parseInt(int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException("Неверный Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int d = mLine[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalArgumentException("Неверный Content-Length");
+            }
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) {
+                throw new TooLargeException("Слишком большой запрос");
+            }
+        }
+        return (int) value;
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && (mLine[start] == ' ' || mLine[start] == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (mLine[end - 1] == ' ' || mLine[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private boolean containsIgnoreCase(int start, int end, byte[] token) {
+        for (int i = start; i + token.length <= end; i++) {
+            if (equalsIgnoreCase(mLine, i, i + token.length, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] data, int start, byte[] token) {
+        for (int i = 0; i < token.length; i++) {
+            if (data[start + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] token) {
+        if (end - start != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            int b = data[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            int t = token[i];
+            if (t >= 'A' && t <= 'Z') {
+                t += 'a' - 'A';
+            }
+            if (b != t) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Состояния парсера.
+     */
+    private enum STATE {
+        REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS
+    }
+
+    /**
+     * Ошибка разбора из-за превышения размера тела (ответ 413).
+     */
+    public static class TooLargeException extends IllegalArgumentException {
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+}
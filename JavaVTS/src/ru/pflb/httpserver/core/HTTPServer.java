@@ -1,20 +1,42 @@
 package ru.pflb.httpserver.core;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 /**
  * HTTP сервер с поддержкой модулей.
  */
 public class HTTPServer {
-    private final HashMap<String, HTTPModule> mRequests = new HashMap<>(); //Карта соответствий запросов и модулей
+    private final Router mRouter = new Router(); //Пути запросов и их обработчики
     private int PORT = 8888; //Порт для прослушивания входящих запросов
     private Vector<HTTPModule> mModules;//Список всех загруженных модулей
-    private ServerProcess mServerProcessor; //Обработчик входящих запросов
+    private Engine mServerProcessor; //Обработчик входящих запросов
+    private HTTPConstants.ENGINE mEngineType = HTTPConstants.ENGINE.BLOCKING; //Движок приема подключений
+    private int mSelectors = Runtime.getRuntime().availableProcessors(); //Количество циклов событий для nio
     private StopListener mListener;//Листенер остановки сервера
+    private HTTPConstants.EXECUTOR mExecutorType = HTTPConstants.EXECUTOR.THREAD; //Режим выполнения запросов
+    private int mThreads = 256; //Количество рабочих потоков (pool) или одновременных запросов (virtual), см. processSocket про keep-alive
+    private int mQueueSize = 1024; //Размер очереди ожидающих подключений для пула
+    private ExecutorService mExecutor; //Исполнитель запросов (null для режима thread)
+    private Semaphore mVirtualLimit; //Ограничение одновременных запросов для виртуальных потоков
+    private int mKeepAliveTimeout = 5000; //Таймаут простоя постоянного соединения, мс (0 - отключить keep-alive)
+    private static final int IDLE_CHECK_INTERVAL = 100; //Шаг проверки простаивающего соединения в режиме pool, мс
+    private int mMaxRequests = 1000; //Максимум запросов в одном соединении
+    private final Metrics mMetrics = new Metrics(); //Метрики сервера и модулей
+    private final AtomicInteger mConnections = new AtomicInteger(); //Открытые соединения
+    private final LongAdder mAccepted = new LongAdder(); //Принято соединений
+    private final AtomicInteger mInFlight = new AtomicInteger(); //Запросы в обработке модулями
+    private final LongAdder mHandled = new LongAdder(); //Обработано запросов
+    private final LongAdder mRejected = new LongAdder(); //Отказы 503 при перегрузке
 
     /**
      * Конструктор по умолчанию
@@ -48,6 +70,13 @@ public class HTTPServer {
             mModules = new Vector<>(modules.length);
             Collections.addAll(mModules, modules);
         }
+        //Метрики до разбора аргументов, чтобы модули могли их настроить
+        mMetrics.register(new ServerMetrics());
+        if (mModules != null) {
+            for (HTTPModule m : mModules)
+                if (m != null)
+                    m.setMetrics(mMetrics);
+        }
         //Разбор аргументов
         if (args != null)
             setArgs(args);
@@ -55,8 +84,9 @@ public class HTTPServer {
         if (mModules != null) {
             for (HTTPModule m : mModules)
                 try {
+                    m.setEngine(mEngineType);
                     m.init();//Инициализация
-                    m.registerUrls(mRequests);//Регистрация
+                    m.registerUrls(mRouter);//Регистрация
                 } catch (Exception e) {
                     e.printStackTrace();
                     System.out.println("Ошибка при загрузке модуля " + m.getClass().getSimpleName() + ", модуль не активирован");
@@ -80,9 +110,23 @@ public class HTTPServer {
     private void start() {
         System.out.println("Старт VTS...");
 
+        //Создание исполнителя запросов
+        mExecutor = createExecutor();
+
         //Запуск нового обработчика входящих запросов
-        mServerProcessor = new ServerProcess();
+        if (mEngineType == HTTPConstants.ENGINE.NIO) {
+            mServerProcessor = new NIOServer(this, PORT, mSelectors);
+        } else {
+            mServerProcessor = new ServerProcess();
+        }
         mServerProcessor.start();
+
+        //Запуск модулей
+        if (mModules != null) {
+            for (HTTPModule m : mModules)
+                if (m != null)
+                    m.start();
+        }
     }
 
     /**
@@ -95,6 +139,16 @@ public class HTTPServer {
         if (mServerProcessor != null && mServerProcessor.isAlive()) {
             mServerProcessor.safeStop();
         }
+        //Остановка модулей
+        if (mModules != null) {
+            for (HTTPModule m : mModules)
+                if (m != null)
+                    m.stop();
+        }
+        //Остановка исполнителя
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
         //Если нужно вызвать листенер
         if (mListener != null) {
             mListener.onStop();
@@ -120,6 +174,40 @@ public class HTTPServer {
                         throw new IllegalArgumentException("Невозможно распарсить порт: " + args[i], e);
                     }
                     break;
+                case "-executor"://Режим выполнения запросов
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("Не указан режим выполнения");
+                    }
+                    mExecutorType = HTTPConstants.EXECUTOR.parse(args[++i]);
+                    break;
+                case "-threads"://Размер пула (blocking: одно соединение - один поток) или число одновременных запросов (virtual)
+                    mThreads = parsePositive(args, ++i, "Невозможно распарсить количество потоков: ");
+                    break;
+                case "-queue"://Размер очереди
+                    mQueueSize = parsePositive(args, ++i, "Невозможно распарсить размер очереди: ");
+                    break;
+                case "-engine"://Движок приема подключений
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("Не указан движок");
+                    }
+                    mEngineType = HTTPConstants.ENGINE.parse(args[++i]);
+                    break;
+                case "-selectors"://Количество циклов событий
+                    mSelectors = parsePositive(args, ++i, "Невозможно распарсить количество циклов событий: ");
+                    break;
+                case "-keepalive"://Таймаут постоянного соединения (в режиме pool простаивающие закрываются раньше, если есть очередь)
+                    try {
+                        mKeepAliveTimeout = Integer.parseInt(args[++i]);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("Невозможно распарсить таймаут keep-alive: " + (i < args.length ? args[i] : ""), e);
+                    }
+                    if (mKeepAliveTimeout < 0) {
+                        throw new IllegalArgumentException("Таймаут keep-alive не может быть отрицательным: " + mKeepAliveTimeout);
+                    }
+                    break;
+                case "-maxrequests"://Максимум запросов на соединение
+                    mMaxRequests = parsePositive(args, ++i, "Невозможно распарсить количество запросов на соединение: ");
+                    break;
                 default://Если не знаем такой, проверяем, может, аргумент модуля
                     if (mModules != null) {
                         boolean found = false;//Признак того, что модуль смог разобрать аргумент(ы)
@@ -143,6 +231,337 @@ public class HTTPServer {
         }
     }
 
+    /**
+     * Разбор положительного числового аргумента.
+     *
+     * @param args  Аргументы.
+     * @param i     Индекс значения.
+     * @param error Сообщение об ошибке.
+     * @return Значение.
+     */
+    private int parsePositive(String[] args, int i, String error) {
+        int value;
+        try {
+            value = Integer.parseInt(args[i]);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(error + (i < args.length ? args[i] : ""), e);
+        }
+        if (value <= 0) {
+            throw new IllegalArgumentException(error + value);
+        }
+        return value;
+    }
+
+    /**
+     * Создание исполнителя запросов согласно режиму.
+     *
+     * @return Исполнитель или {@code null} для режима thread.
+     */
+    private ExecutorService createExecutor() {
+        switch (mExecutorType) {
+            case POOL:
+                System.out.println("Пул потоков: " + mThreads + ", очередь: " + mQueueSize);
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(mThreads, mThreads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(mQueueSize), new WorkerFactory(), new ThreadPoolExecutor.AbortPolicy());
+                pool.prestartAllCoreThreads();
+                return pool;
+            case VIRTUAL:
+                try {
+                    //Через reflection, чтобы собираться и запускаться на старых JDK
+                    ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    mVirtualLimit = new Semaphore(mThreads);
+                    System.out.println("Виртуальные потоки, максимум одновременных запросов: " + mThreads);
+                    return executor;
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Виртуальные потоки недоступны, требуется Java 21+", e);
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Передача подключения на обработку с учетом ограничений.
+     *
+     * @param socket Сокет.
+     */
+    private void dispatch(Socket socket) {
+        connectionOpened();
+        if (!executeConnection(new SocketProcessor(socket))) {
+            //Нет свободных потоков - отвечаем 503, а не падаем
+            reject(socket);
+            connectionClosed();
+        }
+    }
+
+    /**
+     * Учет открытого соединения.
+     */
+    void connectionOpened() {
+        mConnections.incrementAndGet();
+        mAccepted.increment();
+    }
+
+    /**
+     * Учет закрытого соединения.
+     */
+    void connectionClosed() {
+        mConnections.decrementAndGet();
+    }
+
+    /**
+     * Запуск задачи в исполнителе согласно режиму выполнения.
+     *
+     * @param task Задача.
+     * @return {@code false}, если исполнитель перегружен и задача не принята.
+     */
+    boolean execute(final Runnable task) {
+        try {
+            switch (mExecutorType) {
+                case POOL:
+                    mExecutor.execute(task);
+                    break;
+                case VIRTUAL:
+                    if (!mVirtualLimit.tryAcquire()) {
+                        return false;
+                    }
+                    try {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    task.run();
+                                } finally {
+                                    mVirtualLimit.release();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        mVirtualLimit.release();
+                        throw e;
+                    }
+                    break;
+                default:
+                    new Thread(task).start();
+                    break;
+            }
+            return true;
+        } catch (RejectedExecutionException | OutOfMemoryError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Запуск обработки соединения блокирующего движка. Для virtual ограничение действует на запросы
+     * (см. {@link SocketProcessor#processSocket()}), а не на соединения: простаивающий виртуальный поток ничего не стоит.
+     *
+     * @param task Обработчик соединения.
+     * @return {@code false}, если исполнитель перегружен и задача не принята.
+     */
+    private boolean executeConnection(Runnable task) {
+        if (mExecutorType != HTTPConstants.EXECUTOR.VIRTUAL) {
+            return execute(task);
+        }
+        try {
+            mExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException | OutOfMemoryError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Признак того, что в очереди пула ждут подключения (только pool).
+     *
+     * @return {@code true}, если очередь не пуста.
+     */
+    private boolean hasQueued() {
+        return mExecutor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) mExecutor).getQueue().isEmpty();
+    }
+
+    /**
+     * Признак того, что запросы выполняются в отдельных потоках.
+     * Для режима thread движок nio обрабатывает запросы прямо в цикле событий.
+     *
+     * @return {@code true} для режимов pool и virtual.
+     */
+    boolean hasExecutor() {
+        return mExecutor != null;
+    }
+
+    /**
+     * Отказ в обслуживании при перегрузке.
+     *
+     * @param socket Сокет.
+     */
+    private void reject(Socket socket) {
+        try {
+            createOverloadResponse(socket).send();
+        } catch (IOException e) {
+            //Клиент уже отключился, ответ не нужен
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Ответ 503 при перегрузке.
+     *
+     * @param socket Сокет.
+     * @return Ответ.
+     */
+    HTTPModule.Response createOverloadResponse(Socket socket) {
+        mRejected.increment();
+        return new HTTPModule.Response(socket, HTTPConstants.CODE.C503, "Сервер перегружен, повторите запрос позже");
+    }
+
+    /**
+     * Ответ на запрос, который не удалось разобрать. Соединение после него закрывается.
+     *
+     * @param socket Сокет.
+     * @param e      Ошибка парсера.
+     * @return Ответ 413 для слишком большого тела, иначе 400.
+     */
+    HTTPModule.Response createParseErrorResponse(Socket socket, IllegalArgumentException e) {
+        HTTPConstants.CODE code = e instanceof HTTPRequestParser.TooLargeException ? HTTPConstants.CODE.C413 : HTTPConstants.CODE.C400;
+        return new HTTPModule.Response(socket, code, e.getMessage());
+    }
+
+    /**
+     * Решение, оставлять ли соединение открытым после ответа.
+     *
+     * @param request Запрос.
+     * @param served  Сколько запросов обработано в соединении, включая текущий.
+     * @return {@code true}, если соединение остается открытым.
+     */
+    boolean isKeepAlive(HTTPRequest request, int served) {
+        return mKeepAliveTimeout > 0 && request.isKeepAlive() && served < mMaxRequests && isRunning();
+    }
+
+    /**
+     * Таймаут простоя постоянного соединения.
+     *
+     * @return Таймаут в мс, 0 - keep-alive отключен.
+     */
+    int getKeepAliveTimeout() {
+        return mKeepAliveTimeout;
+    }
+
+    /**
+     * Запуск обработчиков от модулей.
+     * Синхронный путь отвечает сразу (результат уже завершен), асинхронный - когда обработчик завершит ответ,
+     * поток вызывающего при этом не занят. Результат всегда завершается ответом: ошибки обработчика превращаются
+     * в ответы 400/500. Отмена результата (клиент отключился) передается обработчику.
+     *
+     * @param request Запрос.
+     * @param socket  Сокет подключения.
+     * @return Ответ для отправки (у ответа асинхронного пути сокет не задан).
+     */
+    CompletableFuture<HTTPModule.Response> handle(HTTPRequest request, final Socket socket) {
+        Router.Route route = mRouter.match(request.getUrls());
+        mInFlight.incrementAndGet();
+        if (route == null || !route.isAsync()) {
+            try {
+                return CompletableFuture.completedFuture(handleModules(request, socket, route));
+            } finally {
+                handled();
+            }
+        }
+
+        final CompletableFuture<HTTPModule.Response> result = new CompletableFuture<>();
+        final CompletionStage<HTTPModule.Response> stage;
+        try {
+            stage = route.handleAsync(request);
+        } catch (Throwable e) {
+            handled();
+            result.complete(createErrorResponse(socket, e));
+            return result;
+        }
+        stage.whenComplete(new BiConsumer<HTTPModule.Response, Throwable>() {
+            @Override
+            public void accept(HTTPModule.Response response, Throwable error) {
+                handled();
+                if (error instanceof CompletionException && error.getCause() != null) {
+                    error = error.getCause();
+                }
+                result.complete(error == null ? response : createErrorResponse(socket, error));
+            }
+        });
+        result.whenComplete(new BiConsumer<HTTPModule.Response, Throwable>() {
+            @Override
+            public void accept(HTTPModule.Response response, Throwable error) {
+                if (result.isCancelled()) {
+                    try {
+                        stage.toCompletableFuture().cancel(false);
+                    } catch (UnsupportedOperationException ignored) {
+                        //Обработчик не поддерживает отмену, ответ просто не будет отправлен
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Учет завершенного запроса.
+     */
+    private void handled() {
+        mInFlight.decrementAndGet();
+        mHandled.increment();
+    }
+
+    /**
+     * Вызов синхронного обработчика пути.
+     *
+     * @param request Запрос.
+     * @param socket  Сокет подключения.
+     * @param route   Путь или {@code null}, если не найден.
+     * @return Ответ для отправки.
+     */
+    private HTTPModule.Response handleModules(HTTPRequest request, Socket socket, Router.Route route) {
+        String[] urls = request.getUrls();
+        HTTPModule.Response response;
+
+        //Тупо чтобы не заморачиваться на этот запрос
+        if (urls[0].equalsIgnoreCase("favicon.ico")) {
+            response = new HTTPModule.Response(socket);
+            //response.setCode(HTTPConstants.CODE.C404);
+        } else if (route != null) {
+            //Есть обработчик для такого пути
+            try {
+                //Создаем пустой ответ
+                response = new HTTPModule.Response(socket);
+                //Запуск обработчика
+                route.handle(response, socket, request);
+            } catch (Throwable e) {
+                response = createErrorResponse(socket, e);
+            }
+        } else {
+            //Модуль не найден
+            response = new HTTPModule.Response(socket, HTTPConstants.CODE.C200, "Страница не найдена" + "<br/><br/>" + printHelp());
+        }
+        return response;
+    }
+
+    /**
+     * Ответ на ошибку обработчика.
+     *
+     * @param socket Сокет подключения.
+     * @param e      Ошибка.
+     * @return Ответ 400 для {@link IllegalArgumentException} (ошибка во входящих аргументах), иначе 500.
+     */
+    private static HTTPModule.Response createErrorResponse(Socket socket, Throwable e) {
+        StringWriter sw = new StringWriter();
+        e.printStackTrace(new PrintWriter(sw));
+        if (e instanceof IllegalArgumentException) {
+            return new HTTPModule.Response(socket, HTTPConstants.CODE.C400, sw.toString().replaceAll("\n", "<br/>"));
+        }
+        return new HTTPModule.Response(socket, HTTPConstants.CODE.C500, e.getMessage() + "\n\n" + sw.toString().replaceAll("\n", "<br/>"));
+    }
+
     /**
      * Выводит справку по серверу.
      *
@@ -151,7 +570,7 @@ public class HTTPServer {
     private String printHelp() {
         StringBuilder sb = new StringBuilder();
         sb.append("Доступные страницы:<br/>");
-        for (Map.Entry<String, HTTPModule> m : mRequests.entrySet()) {
+        for (Map.Entry<String, HTTPModule> m : mRouter.getModules().entrySet()) {
             sb.append("<a href='"+m.getKey()+"'>"+m.getKey()+"</a> - "+m.getValue().getModuleDescription()).append("<br/><br/>");
         }
 
@@ -176,6 +595,15 @@ public class HTTPServer {
         mServerProcessor.join();
     }
 
+    /**
+     * Метрики сервера.
+     *
+     * @return Метрики.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Листенер остановки сервера.
      */
@@ -183,12 +611,41 @@ public class HTTPServer {
         public abstract void onStop();
     }
 
+    /**
+     * Базовый класс движков приема подключений.
+     */
+    static abstract class Engine extends Thread {
+
+        /**
+         * Конструктор.
+         *
+         * @param name Имя потока.
+         */
+        Engine(String name) {
+            super(name);
+        }
+
+        /**
+         * Остановка движка.
+         *
+         * @throws IOException При ошибках.
+         */
+        public abstract void safeStop() throws IOException;
+    }
+
     /**
      * Обработчик входящих соединений.
      */
-    private class ServerProcess extends Thread {
+    private class ServerProcess extends Engine {
         private volatile boolean mStopped = false; //Состояние
-        private volatile ServerSocket serverSocket; //Сокет входящих соединений
+        private volatile ServerSocketChannel serverSocket; //Канал входящих соединений (блокирующий)
+
+        /**
+         * Конструктор.
+         */
+        private ServerProcess() {
+            super("VTS-acceptor");
+        }
 
         /**
          * Запуск серверного сокета.
@@ -196,7 +653,8 @@ public class HTTPServer {
         @Override
         public synchronized void start() {
             try {
-                serverSocket = new ServerSocket(PORT);
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(PORT));
             } catch (IOException e) {
                 throw new RuntimeException("Невозможно открыть порт " + PORT + ". Проверьте, не занят ли он");
             }
@@ -214,10 +672,11 @@ public class HTTPServer {
                 while (!mStopped) {
                     //Принятие входящего запроса
                     try {
-                        Socket s = serverSocket.accept();
+                        //Сокет через канал, чтобы ответ уходил gathering записью
+                        Socket s = serverSocket.accept().socket();
                         //Выдача ответа
-                        new SocketProcessor(s).start();
-                    } catch (SocketException e) {
+                        dispatch(s);
+                    } catch (ClosedChannelException e) {
                         if (!mStopped)
                             throw e;
                     }
@@ -232,16 +691,56 @@ public class HTTPServer {
          *
          * @throws IOException При ошибках.
          */
+        @Override
         public void safeStop() throws IOException {
             mStopped = true;
             serverSocket.close();
         }
     }
 
+    /**
+     * Метрики соединений и очереди запросов сервера.
+     */
+    private class ServerMetrics implements Metrics.Source {
+        @Override
+        public void write(StringBuilder sb) {
+            int queued = 0, busy = mInFlight.get();
+            if (mExecutor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) mExecutor;
+                queued = pool.getQueue().size();
+                busy = pool.getActiveCount();
+            } else if (mVirtualLimit != null) {
+                busy = mThreads - mVirtualLimit.availablePermits();
+            }
+            Metrics.single(sb, "vts_connections_active", "Открытые соединения", "gauge", mConnections.get());
+            Metrics.single(sb, "vts_connections_accepted_total", "Принято соединений", "counter", mAccepted.sum());
+            Metrics.single(sb, "vts_requests_in_flight", "Запросы в обработке модулями", "gauge", mInFlight.get());
+            Metrics.single(sb, "vts_requests_total", "Обработано запросов", "counter", mHandled.sum());
+            Metrics.single(sb, "vts_requests_rejected_total", "Отказы 503 из-за перегрузки", "counter", mRejected.sum());
+            Metrics.single(sb, "vts_executor_queue_size", "Задачи в очереди пула (" + HTTPConstants.EXECUTOR.POOL + ")", "gauge", queued);
+            Metrics.single(sb, "vts_executor_busy", "Занятые потоки исполнителя", "gauge", busy);
+            Metrics.single(sb, "vts_executor_limit", "Потоков пула или одновременных запросов", "gauge", mExecutor == null ? 0 : mThreads);
+        }
+    }
+
+    /**
+     * Фабрика рабочих потоков пула.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCounter = new AtomicInteger(); //Номер потока
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VTS-worker-" + mCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     /**
      * Обработчик входящих запросов.
      */
-    private class SocketProcessor extends Thread {
+    private class SocketProcessor implements Runnable {
         private final Socket mSocket; //Клиентский сокет.
 
         /**
@@ -254,8 +753,9 @@ public class HTTPServer {
         }
 
         /**
-         * Запуск потока обработки.
+         * Запуск обработки.
          */
+        @Override
         public void run() {
             try {
                 processSocket();
@@ -267,127 +767,71 @@ public class HTTPServer {
                 } catch (Throwable t) {
                     t.printStackTrace();
                 }
+                connectionClosed();
             }
         }
 
         /**
-         * Чтение входных данных и запуск обработчиков от модулей.
+         * Чтение запросов из соединения, пока клиент держит его открытым.
+         * В режиме pool поток занят соединением и во время простоя keep-alive, поэтому при очереди подключений
+         * ответ закрывает соединение, а простаивающее между запросами соединение закрывается, не дожидаясь таймаута.
+         * В режиме virtual разрешение на запрос берется только на время его обработки, простой его не занимает.
          *
          * @throws Throwable При ошибках.
          */
         private void processSocket() throws Throwable {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
-
-            //Чтение заголовка
-            String line = reader.readLine();
-            String[] str = line.split(" ");
-
-            //Парсинг метода и URL
-            HTTPConstants.METHOD method = HTTPConstants.parseMethod(str[0]);
-            String address = str[1];
-
-            //Нормализация URL
-            if (address.startsWith("/"))
-                address = address.substring(1);
-            String[] params = null;
-
-            //Разбор параметров
-            str = address.split("\\?");
-            address = str[0];
-            if (str.length > 1)
-                params = str[1].split("&");
-
-            //Разбор на уровни URL
-            address = address.toLowerCase();
-            String[] urls = address.split("/");
-            if (urls.length == 0)
-                urls = new String[]{""};
-
-            //Тупо чтобы не заморачиваться на этот запрос
-            if (urls[0].equalsIgnoreCase("favicon.ico")) {
-                HTTPModule.Response response = new HTTPModule.Response(mSocket);
-                //response.setCode(HTTPConstants.CODE.C404);
-                response.send();
-                return;
-            }
-
-            StringBuilder sb = new StringBuilder();
-            String[] header;
-            //Дочитываение заголовка
-            while ((line = reader.readLine()) != null && !line.trim().isEmpty()) {
-                sb.append(line);
-            }
-            header = sb.toString().replaceAll("\r\n", "\n").split("\n");
-
-            sb.setLength(0);
-            //Чтение POST-body
-            String postData = null;
-            while (reader.ready())
-                sb.append((char) reader.read());
-            if (sb.length() != 0)
-                postData = sb.toString().replaceAll("\r\n", "\n");
-
-            //Проверяем, что есть модуль для такой URL
-            if (mRequests.containsKey(urls[0])) {
-                try {
-                    //Создаем пустой ответ
-                    HTTPModule.Response response = new HTTPModule.Response(mSocket);
-                    //Запуск обработчика и проверка, удалась ли обработка
-                    mRequests.get(urls[0]).processSocket(response, mSocket, method, urls, 1, header, parseParams(params), postData);
-                    response.send();//Отправка запроса
-                } catch (IllegalArgumentException e) {
-                    //Ошибка во входящих аргументах
-                    StringWriter sw = new StringWriter();
-                    e.printStackTrace(new PrintWriter(sw));
-                    (new HTTPModule.Response(mSocket, HTTPConstants.CODE.C400, sw.toString().replaceAll("\n", "<br/>"))).send();
-                } catch (Throwable e) {
-                    //Прочие ошибки
-                    StringWriter sw = new StringWriter();
-                    e.printStackTrace(new PrintWriter(sw));
-                    (new HTTPModule.Response(mSocket, HTTPConstants.CODE.C500, e.getMessage() + "\n\n" + sw.toString().replaceAll("\n", "<br/>"))).send();
-                }
-            } else {
-                //Модуль не найден
-                (new HTTPModule.Response(mSocket, HTTPConstants.CODE.C200, "Страница не найдена" + "<br/><br/>" + printHelp())).send();
-            }
-        }
-
-        /**
-         * Парсинг параметров вида param=value
-         *
-         * @param params Массив параметров.
-         * @return Карта параметров.
-         */
-        private HashMap<String, String> parseParams(String[] params) {
-            if (params == null) {//Если параметров нет
-                return new HashMap<>();
+            InputStream in = mSocket.getInputStream();
+            HTTPRequestParser parser = new HTTPRequestParser();
+            boolean pool = mExecutorType == HTTPConstants.EXECUTOR.POOL;
+            int timeout = pool ? Math.min(mKeepAliveTimeout, IDLE_CHECK_INTERVAL) : mKeepAliveTimeout; //Шаг ожидания чтения
+            if (mKeepAliveTimeout > 0) {
+                mSocket.setSoTimeout(timeout);
             }
-            HashMap<String, String> result = new HashMap<>(params.length);
-
-            //Перебор всех параметров
-            for (String s : params) {
-                String buf[] = s.toLowerCase().split("=");//Делим параметр на имя и значение
-                String[] param;
-                if (buf.length < 2) {
-                    param = new String[2];
-                    param[0] = buf[0];
-                } else if (buf.length > 2) {
-                    param = new String[2];
-                    param[0] = buf[0];
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 1; i < buf.length; ++i) {
-                        sb.append(buf[i]);
-                        if (i < buf.length - 1) {
-                            sb.append("=");
+            int served = 0; //Обработано запросов в соединении
+            while (true) {
+                HTTPRequest request;
+                int idle = 0; //Время простоя, мс
+                while (true) {
+                    try {
+                        request = parser.read(in);
+                        break;
+                    } catch (SocketTimeoutException e) {
+                        idle += timeout;
+                        if (idle >= mKeepAliveTimeout) {
+                            return;//Соединение простаивает слишком долго
+                        }
+                        if (pool && served > 0 && parser.isIdle() && hasQueued()) {
+                            return;//Поток нужнее подключению из очереди
                         }
+                    } catch (IllegalArgumentException e) {
+                        createParseErrorResponse(mSocket, e).send();
+                        return;
+                    }
+                }
+                if (request == null) {
+                    return;//Клиент закрыл соединение
+                }
+                served++;
+                if (mVirtualLimit != null && !mVirtualLimit.tryAcquire()) {
+                    createOverloadResponse(mSocket).send();
+                    return;
+                }
+                try {
+                    boolean keepAlive = isKeepAlive(request, served) && !(pool && hasQueued());
+                    //Поток соединения ждет и ответ асинхронного пути
+                    HTTPModule.Response response = handle(request, mSocket).join();
+                    response.setSocket(mSocket);
+                    response.setKeepAlive(keepAlive);
+                    response.send();//Отправка ответа
+                    if (!keepAlive) {
+                        return;
+                    }
+                } finally {
+                    if (mVirtualLimit != null) {
+                        mVirtualLimit.release();
                     }
-                    param[1] = sb.toString();
-                } else {
-                    param = buf;
                 }
-                result.put(param[0], param[1]);
             }
-            return result;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,208 @@
+package ru.pflb.httpserver.core;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики сервера. Источники (сервер, модули) регистрируются через {@link #register(Source)} и при съеме
+ * сами пишут свои значения в текстовом формате Prometheus. Счетчики - {@link LongAdder}, поэтому запись
+ * из многих потоков не упирается в одну ячейку памяти, а сложение происходит только при съеме.
+ */
+public final class Metrics {
+    private final CopyOnWriteArrayList<Source> mSources = new CopyOnWriteArrayList<>(); //Источники метрик
+
+    /**
+     * Регистрация источника метрик.
+     *
+     * @param source Источник.
+     */
+    public void register(Source source) {
+        mSources.add(source);
+    }
+
+    /**
+     * Съем всех метрик.
+     *
+     * @return Метрики в текстовом формате Prometheus.
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Source source : mSources) {
+            source.write(sb);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Заголовок метрики.
+     *
+     * @param sb   Буфер.
+     * @param name Имя метрики.
+     * @param help Описание.
+     * @param type Тип: counter, gauge, histogram.
+     */
+    public static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Метрика без меток с заголовком.
+     *
+     * @param sb    Буфер.
+     * @param name  Имя метрики.
+     * @param help  Описание.
+     * @param type  Тип.
+     * @param value Значение.
+     */
+    public static void single(StringBuilder sb, String name, String help, String type, long value) {
+        header(sb, name, help, type);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Значение метки с экранированием.
+     *
+     * @param sb    Буфер.
+     * @param value Значение.
+     * @return Тот же буфер.
+     */
+    public static StringBuilder label(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Секунды из наносекунд без экспоненты.
+     *
+     * @param nanos Наносекунды.
+     * @return Строка.
+     */
+    public static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Источник метрик.
+     */
+    public interface Source {
+        /**
+         * Запись метрик источника.
+         *
+         * @param sb Буфер.
+         */
+        void write(StringBuilder sb);
+    }
+
+    /**
+     * Учет операции: количество, ошибки, время ожидания блокировок и гистограмма длительности
+     * с фиксированными границами от 10 мкс до 10 с.
+     */
+    public static final class Operation {
+        private static final long[] BOUNDS = { //Верхние границы ячеек, нс
+                10000L, 25000L, 50000L, 100000L, 250000L, 500000L,
+                1000000L, 2500000L, 5000000L, 10000000L, 25000000L, 50000000L,
+                100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L};
+        private static final String[] LE = new String[BOUNDS.length]; //Границы для метки le
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                LE[i] = seconds(BOUNDS[i]);
+            }
+        }
+
+        private final LongAdder[] mBuckets = new LongAdder[BOUNDS.length + 1]; //Количество по ячейкам, последняя - больше всех границ
+        private final LongAdder mSum = new LongAdder(); //Суммарная длительность, нс
+        private final LongAdder mErrors = new LongAdder(); //Ошибки
+        private final LongAdder mLockWait = new LongAdder(); //Ожидание блокировок, нс
+
+        public Operation() {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Запись выполненной операции.
+         *
+         * @param nanos    Длительность, нс.
+         * @param lockWait Ожидание блокировок, нс.
+         * @param error    Признак ошибки.
+         */
+        public void record(long nanos, long lockWait, boolean error) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            mBuckets[i].increment();
+            mSum.add(nanos);
+            if (error) {
+                mErrors.increment();
+            }
+            if (lockWait > 0) {
+                mLockWait.add(lockWait);
+            }
+        }
+
+        /**
+         * Количество операций.
+         *
+         * @return Количество.
+         */
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : mBuckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long getErrors() {
+            return mErrors.sum();
+        }
+
+        /**
+         * Время ожидания блокировок.
+         *
+         * @return Время, нс.
+         */
+        public long getLockWait() {
+            return mLockWait.sum();
+        }
+
+        /**
+         * Запись строк гистограммы (без заголовка).
+         *
+         * @param sb     Буфер.
+         * @param name   Имя метрики (без суффиксов _bucket, _sum, _count).
+         * @param labels Метки без фигурных скобок, уже экранированные.
+         */
+        public void writeHistogram(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                cumulative += mBuckets[i].sum();
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(i < LE.length ? LE[i] : "+Inf").append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(mSum.sum())).append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package ru.pflb.httpserver.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Неблокирующий движок сервера.
+ * Поток-акцептор принимает подключения и раздает их по циклам событий (у каждого свой {@link Selector}),
+ * поэтому количество соединений не зависит от количества потоков: простаивающий клиент не занимает поток.
+ * Байты читаются в direct буфер соединения и сразу разбираются {@link HTTPRequestParser}, модулю передается только полный запрос.
+ * Ответ асинхронного пути ({@link Router.AsyncHandler}) отправляется, когда будет готов: ни цикл, ни поток обработки
+ * его не ждут, а соединение читается только для того, чтобы заметить отключение клиента и отменить ожидание.
+ */
+class NIOServer extends HTTPServer.Engine {
+    private static final int BUFFER_SIZE = 4 * 1024; //Начальный размер буфера соединения
+    private static final int MAX_IDLE_BUFFER = 64 * 1024; //Буфер тела больше этого не хранится между ответами
+    private static final long IDLE_CHECK_INTERVAL = 1000; //Период проверки простаивающих соединений, мс
+
+    private final HTTPServer mServer; //Сервер с модулями
+    private final int mPort; //Порт
+    private final EventLoop[] mLoops; //Циклы событий
+    private volatile boolean mStopped = false; //Состояние
+    private ServerSocketChannel mServerChannel; //Канал входящих соединений
+    private int mNextLoop = 0; //Следующий цикл для нового соединения
+
+    /**
+     * Конструктор.
+     *
+     * @param server Сервер.
+     * @param port   Порт.
+     * @param loops  Количество циклов событий.
+     */
+    NIOServer(HTTPServer server, int port, int loops) {
+        super("VTS-nio-acceptor");
+        mServer = server;
+        mPort = port;
+        mLoops = new EventLoop[loops];
+    }
+
+    /**
+     * Открытие порта и запуск циклов событий.
+     */
+    @Override
+    public synchronized void start() {
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.bind(new InetSocketAddress(mPort));
+            for (int i = 0; i < mLoops.length; i++) {
+                mLoops[i] = new EventLoop(i);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Невозможно открыть порт " + mPort + ". Проверьте, не занят ли он");
+        }
+        for (EventLoop loop : mLoops) {
+            loop.start();
+        }
+        super.start();
+    }
+
+    /**
+     * Прием входящих соединений.
+     */
+    @Override
+    public void run() {
+        System.out.println("Сервер (nio, циклов событий: " + mLoops.length + ") запущен на порту " + mPort);
+        try {
+            while (!mStopped) {
+                try {
+                    SocketChannel channel = mServerChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    mServer.connectionOpened();
+                    mLoops[mNextLoop].register(channel);
+                    mNextLoop = (mNextLoop + 1) % mLoops.length;
+                } catch (ClosedChannelException e) {
+                    if (!mStopped)
+                        throw e;
+                }
+            }
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+        }
+    }
+
+    /**
+     * Остановка сервера.
+     *
+     * @throws IOException При ошибках.
+     */
+    @Override
+    public void safeStop() throws IOException {
+        mStopped = true;
+        mServerChannel.close();
+        for (EventLoop loop : mLoops) {
+            if (loop != null) {
+                loop.mSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Состояние соединения.
+     */
+    private static class Connection {
+        private final SocketChannel mChannel; //Канал
+        private SelectionKey mKey; //Ключ регистрации
+        private final ByteBuffer mIn = ByteBuffer.allocateDirect(BUFFER_SIZE); //Входящие данные (режим записи)
+        private final HTTPRequestParser mParser = new HTTPRequestParser(); //Парсер запросов соединения
+        private final ByteBuffer[] mOut = new ByteBuffer[2]; //Буферы ответа: заголовок и тело
+        private boolean mWriting = false; //Ответ отправляется
+        private boolean mBusy = false; //Запрос обрабатывается или ответ отправляется
+        private boolean mCloseAfterWrite = false; //Закрыть после отправки ответа
+        private boolean mClosed = false; //Соединение закрыто
+        private CompletableFuture<HTTPModule.Response> mPending; //Ответ асинхронного пути, которого ждет соединение
+        private int mServed = 0; //Обработано запросов
+        private long mLastActive = System.currentTimeMillis(); //Время последней активности
+
+        private Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+    }
+
+    /**
+     * Цикл событий: чтение запросов, передача модулям и запись ответов для своей группы соединений.
+     */
+    private class EventLoop extends Thread {
+        private final Selector mSelector; //Селектор
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>(); //Задачи из других потоков
+        private long mLastIdleCheck = System.currentTimeMillis(); //Время последней проверки простоя
+
+        /**
+         * Конструктор.
+         *
+         * @param index Номер цикла.
+         * @throws IOException При ошибке открытия селектора.
+         */
+        private EventLoop(int index) throws IOException {
+            super("VTS-nio-loop-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        /**
+         * Регистрация нового соединения (из потока-акцептора).
+         *
+         * @param channel Канал.
+         */
+        private void register(final SocketChannel channel) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    Connection conn = new Connection(channel);
+                    try {
+                        conn.mKey = channel.register(mSelector, SelectionKey.OP_READ, conn);
+                    } catch (IOException e) {
+                        close(conn);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Выполнение задачи в потоке цикла.
+         *
+         * @param task Задача.
+         */
+        private void post(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mStopped) {
+                    mSelector.select(IDLE_CHECK_INTERVAL);
+                    Runnable task;
+                    while ((task = mTasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                onReadable(conn);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                onWritable(conn);
+                            }
+                        } catch (CancelledKeyException | IOException e) {
+                            close(conn);
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                            close(conn);
+                        }
+                    }
+                    closeIdle();
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                for (SelectionKey key : mSelector.keys()) {
+                    close((Connection) key.attachment());
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Чтение данных из соединения.
+         *
+         * @param conn Соединение.
+         * @throws IOException При ошибках.
+         */
+        private void onReadable(Connection conn) throws IOException {
+            int n = conn.mChannel.read(conn.mIn);
+            if (n < 0) {
+                close(conn);
+                return;
+            }
+            conn.mLastActive = System.currentTimeMillis();
+            if (!conn.mBusy) {
+                processBuffered(conn);
+            } else if (!conn.mIn.hasRemaining()) {
+                conn.mKey.interestOps(0);//Ждем ответ, буфер заполнен следующими запросами
+            }
+        }
+
+        /**
+         * Запуск обработки следующего полного запроса из буфера, если он есть.
+         *
+         * @param conn Соединение.
+         * @throws IOException При ошибках.
+         */
+        private void processBuffered(final Connection conn) throws IOException {
+            conn.mIn.flip();
+            HTTPRequest parsed;
+            IllegalArgumentException error = null; //Ошибка разбора
+            try {
+                parsed = conn.mParser.parse(conn.mIn);
+            } catch (IllegalArgumentException e) {
+                parsed = null;
+                error = e;
+            } finally {
+                conn.mIn.compact();
+            }
+            if (error != null) {
+                //Ответ 400/413, соединение закрывается после отправки
+                conn.mBusy = true;
+                conn.mKey.interestOps(0);
+                encode(conn, mServer.createParseErrorResponse(conn.mChannel.socket(), error), false);
+                respond(conn, false);
+                return;
+            }
+            final HTTPRequest request = parsed;
+            if (request == null) {
+                conn.mKey.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            //Пока запрос обрабатывается, следующие (pipelining) ждут в буфере
+            conn.mBusy = true;
+            conn.mKey.interestOps(0);
+            conn.mServed++;
+            final boolean keepAlive = mServer.isKeepAlive(request, conn.mServed);
+            if (!mServer.hasExecutor()) {
+                if (process(conn, request, keepAlive)) {
+                    respond(conn, keepAlive);
+                }
+                return;
+            }
+            boolean accepted = mServer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (process(conn, request, keepAlive)) {
+                        post(respondTask(conn, keepAlive));
+                    }
+                }
+            });
+            if (!accepted) {
+                mServer.createOverloadResponse(conn.mChannel.socket()).encode(conn.mOut);
+                respond(conn, false);
+            }
+        }
+
+        /**
+         * Обработка запроса модулями и кодирование ответа в буферы соединения.
+         * Соединение занято, поэтому буферы можно заполнять из любого потока.
+         *
+         * @param conn      Соединение.
+         * @param request   Запрос.
+         * @param keepAlive Признак постоянного соединения.
+         * @return {@code true}, если ответ готов, {@code false} - ответ асинхронного пути отправится, когда будет готов.
+         */
+        private boolean process(final Connection conn, HTTPRequest request, final boolean keepAlive) {
+            final CompletableFuture<HTTPModule.Response> response = mServer.handle(request, conn.mChannel.socket());
+            if (response.isDone()) {
+                encode(conn, response.join(), keepAlive);
+                return true;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    //Пока ждем ответ, читаем соединение, чтобы заметить отключение клиента
+                    conn.mPending = response;
+                    if (conn.mClosed) {
+                        response.cancel(false);
+                    } else if (!response.isDone()) {
+                        conn.mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            });
+            response.thenAccept(new Consumer<HTTPModule.Response>() {
+                @Override
+                public void accept(HTTPModule.Response res) {
+                    encode(conn, res, keepAlive);
+                    post(respondTask(conn, keepAlive));
+                }
+            });
+            return false;
+        }
+
+        /**
+         * Кодирование ответа в буферы соединения.
+         *
+         * @param conn      Соединение.
+         * @param response  Ответ.
+         * @param keepAlive Признак постоянного соединения.
+         */
+        private void encode(Connection conn, HTTPModule.Response response, boolean keepAlive) {
+            response.setKeepAlive(keepAlive);
+            response.encode(conn.mOut);
+        }
+
+        /**
+         * Задача отправки ответа для цикла.
+         *
+         * @param conn      Соединение.
+         * @param keepAlive Оставить соединение открытым.
+         * @return Задача.
+         */
+        private Runnable respondTask(final Connection conn, final boolean keepAlive) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(conn, keepAlive);
+                    } catch (IOException | CancelledKeyException e) {
+                        close(conn);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Отправка закодированного ответа (в потоке цикла).
+         *
+         * @param conn      Соединение.
+         * @param keepAlive Оставить соединение открытым.
+         * @throws IOException При ошибках.
+         */
+        private void respond(Connection conn, boolean keepAlive) throws IOException {
+            conn.mPending = null;
+            if (!conn.mChannel.isOpen()) {
+                return;
+            }
+            conn.mWriting = true;
+            conn.mCloseAfterWrite = !keepAlive;
+            onWritable(conn);
+        }
+
+        /**
+         * Дозапись ответа.
+         *
+         * @param conn Соединение.
+         * @throws IOException При ошибках.
+         */
+        private void onWritable(Connection conn) throws IOException {
+            if (!conn.mWriting) {
+                return;
+            }
+            //Заголовок и тело одной gathering записью
+            conn.mChannel.write(conn.mOut);
+            if (conn.mOut[0].hasRemaining() || conn.mOut[1].hasRemaining()) {
+                conn.mKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            conn.mWriting = false;
+            if (conn.mOut[1].capacity() > MAX_IDLE_BUFFER) {
+                conn.mOut[1] = null;//Не держим большой буфер после крупного ответа
+            }
+            conn.mLastActive = System.currentTimeMillis();
+            if (conn.mCloseAfterWrite) {
+                close(conn);
+                return;
+            }
+            conn.mBusy = false;
+            processBuffered(conn);
+        }
+
+        /**
+         * Закрытие соединений, простаивающих дольше таймаута keep-alive.
+         */
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - mLastIdleCheck < IDLE_CHECK_INTERVAL) {
+                return;
+            }
+            mLastIdleCheck = now;
+            long timeout = mServer.getKeepAliveTimeout();
+            for (SelectionKey key : mSelector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (!conn.mBusy && now - conn.mLastActive > (timeout > 0 ? timeout : IDLE_CHECK_INTERVAL * 30)) {
+                    close(conn);
+                }
+            }
+        }
+
+        /**
+         * Закрытие соединения.
+         *
+         * @param conn Соединение.
+         */
+        private void close(Connection conn) {
+            if (conn == null || conn.mClosed) {
+                return;
+            }
+            conn.mClosed = true;
+            if (conn.mPending != null) {
+                conn.mPending.cancel(false);//Обработчик больше не ждет ответа для этого клиента
+            }
+            mServer.connectionClosed();
+            if (conn.mKey != null) {
+                conn.mKey.cancel();
+            }
+            try {
+                conn.mChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package ru.pflb.httpserver.core;
+
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Маршрутизатор запросов: дерево (trie) по уровням URL, которое модули заполняют в {@link HTTPModule#registerUrls(Router)}.
+ * Уровень пути - точное имя или {@link #ANY} (любое значение уровня, например имя таблицы).
+ * Обработчик пути - синхронный {@link Handler} или асинхронный {@link AsyncHandler}, который может ответить позже
+ * (движок nio на время ожидания не занимает поток, blocking ждет ответа в потоке соединения).
+ * Запрос разбирается за один проход по уровням без исключений и создания объектов: побеждает самый длинный
+ * зарегистрированный путь, точное имя уровня проверяется раньше {@link #ANY}.
+ * Заполняется до запуска сервера, после этого только читается.
+ */
+public final class Router {
+    public static final String ANY = "*"; //Любое значение уровня
+
+    private final Route mRoot = new Route(0); //Корень
+    private final LinkedHashMap<String, HTTPModule> mModules = new LinkedHashMap<>(); //Пути модулей для справки
+
+    /**
+     * Регистрация пути модуля: запросы обрабатывает {@link HTTPModule#processSocket}.
+     *
+     * @param path   Путь вида "vts" или "vts/table/*".
+     * @param module Модуль.
+     */
+    public void add(String path, final HTTPModule module) {
+        add(path, new Handler() {
+            @Override
+            public void handle(HTTPModule.Response response, Socket socket, HTTPRequest request, int level) {
+                module.processSocket(response, socket, request.getMethod(), request.getUrls(), level,
+                        request.getHeader(), request.getParams(), request.getData());
+            }
+        });
+        mModules.put(path, module);
+    }
+
+    /**
+     * Регистрация обработчика пути.
+     *
+     * @param path    Путь вида "vts" или "vts/table/*".
+     * @param handler Обработчик.
+     */
+    public void add(String path, Handler handler) {
+        route(path).mHandler = handler;
+    }
+
+    /**
+     * Регистрация асинхронного обработчика пути.
+     *
+     * @param path    Путь вида "vts" или "vts/table/*".
+     * @param handler Обработчик.
+     */
+    public void add(String path, AsyncHandler handler) {
+        route(path).mAsync = handler;
+    }
+
+    /**
+     * Узел пути для регистрации обработчика.
+     *
+     * @param path Путь.
+     * @return Узел без обработчика.
+     */
+    private Route route(String path) {
+        Route route = mRoot;
+        for (String segment : path.toLowerCase(Locale.ROOT).split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            route = route.child(segment);
+        }
+        if (route == mRoot) {
+            throw new IllegalArgumentException("Пустой путь");
+        }
+        if (route.mHandler != null || route.mAsync != null) {
+            throw new IllegalArgumentException("Путь уже зарегистрирован: " + path);
+        }
+        return route;
+    }
+
+    /**
+     * Поиск обработчика для уровней URL (уже в нижнем регистре, как их отдает {@link HTTPRequestParser}).
+     *
+     * @param urls Уровни URL.
+     * @return Самый длинный подходящий путь или {@code null}.
+     */
+    public Route match(String[] urls) {
+        Route route = mRoot;
+        Route found = null;
+        for (String segment : urls) {
+            Route next = route.mChildren == null ? null : route.mChildren.get(segment);
+            if (next == null) {
+                next = route.mAny;
+            }
+            if (next == null) {
+                break;
+            }
+            route = next;
+            if (route.mHandler != null || route.mAsync != null) {
+                found = route;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Пути, зарегистрированные модулями целиком.
+     *
+     * @return Пути и модули в порядке регистрации.
+     */
+    public Map<String, HTTPModule> getModules() {
+        return mModules;
+    }
+
+    /**
+     * Обработчик пути.
+     */
+    public interface Handler {
+        /**
+         * Обработка запроса.
+         *
+         * @param response Ответ.
+         * @param socket   Сокет подключения.
+         * @param request  Запрос.
+         * @param level    Количество уровней URL, совпавших с путем (индекс первого не разобранного уровня).
+         */
+        void handle(HTTPModule.Response response, Socket socket, HTTPRequest request, int level);
+    }
+
+    /**
+     * Асинхронный обработчик пути: получает разобранный запрос без сокета и возвращает ответ, который может
+     * быть готов позже (например, когда в таблице появится строка). Ответ создается без сокета, его отправляет сервер.
+     * Исключение при вызове или завершение с ошибкой превращается в ответ 400 ({@link IllegalArgumentException}) или 500.
+     * Если клиент отключился раньше ответа, сервер отменяет ожидание ({@code cancel}), если это поддерживает результат.
+ * Поток освобождается на время ожидания только на движке nio: blocking ждет ответа в потоке соединения.
+     */
+    public interface AsyncHandler {
+        /**
+         * Обработка запроса.
+         *
+         * @param request Запрос.
+         * @param level   Количество уровней URL, совпавших с путем (индекс первого не разобранного уровня).
+         * @return Ответ.
+         */
+        CompletionStage<HTTPModule.Response> handle(HTTPRequest request, int level);
+    }
+
+    /**
+     * Узел дерева путей.
+     */
+    public static final class Route {
+        private final int mLevel; //Глубина узла
+        private HashMap<String, Route> mChildren; //Точные имена уровня
+        private Route mAny; //Любое имя уровня
+        private Handler mHandler; //Обработчик, если путь зарегистрирован
+        private AsyncHandler mAsync; //Асинхронный обработчик, если путь зарегистрирован
+
+        private Route(int level) {
+            mLevel = level;
+        }
+
+        /**
+         * Дочерний узел, создается при первом обращении.
+         *
+         * @param segment Уровень пути.
+         * @return Узел.
+         */
+        private Route child(String segment) {
+            if (segment.equals(ANY)) {
+                if (mAny == null) {
+                    mAny = new Route(mLevel + 1);
+                }
+                return mAny;
+            }
+            if (mChildren == null) {
+                mChildren = new HashMap<>();
+            }
+            Route route = mChildren.get(segment);
+            if (route == null) {
+                route = new Route(mLevel + 1);
+                mChildren.put(segment, route);
+            }
+            return route;
+        }
+
+        /**
+         * Вызов обработчика.
+         *
+         * @param response Ответ.
+         * @param socket   Сокет подключения.
+         * @param request  Запрос.
+         */
+        public void handle(HTTPModule.Response response, Socket socket, HTTPRequest request) {
+            mHandler.handle(response, socket, request, mLevel);
+        }
+
+        /**
+         * Вызов асинхронного обработчика.
+         *
+         * @param request Запрос.
+         * @return Ответ.
+         */
+        public CompletionStage<HTTPModule.Response> handleAsync(HTTPRequest request) {
+            return mAsync.handle(request, mLevel);
+        }
+
+        /**
+         * Признак асинхронного обработчика.
+         *
+         * @return {@code true}, если путь обрабатывает {@link AsyncHandler}.
+         */
+        public boolean isAsync() {
+            return mAsync != null;
+        }
+
+        /**
+         * Количество уровней пути.
+         *
+         * @return Глубина.
+         */
+        public int getLevel() {
+            return mLevel;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.pflb.httpserver.modules;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Бинарный протокол доступа к таблицам (аргумент -vtsbin &lt;port&gt;): кадры с длиной впереди, числа big-endian.
+ * <pre>
+ * Кадр:     int32 длина остатка кадра, int32 id запроса, uint8 код, данные
+ * Строка:   int32 длина в байтах (-1 - null), байты UTF-8
+ * Запросы (код - данные запроса / данные ответа OK):
+ *   OPEN  - строка имя таблицы / int32 номер таблицы в соединении
+ *   GET   - int32 таблица, int32 строка (-1 - текущая), int32 столбец (-1 - вся строка), int32 количество / int32 n, n строк
+ *   POP   - int32 таблица, int32 строка, int32 столбец, uint8 удалять строку, int32 количество / int32 n, n строк
+ *   PUSH  - int32 таблица, int32 строка (-1 - перед текущей), int32 строк, для каждой int32 ячеек и ячейки (не null) / строка результата
+ *   FIND  - int32 таблица, int32 столбец, uint8 забрать, строка значение / int32 ячеек, ячейки
+ *   SIZE  - int32 таблица / int32 строк
+ * Ответ:    тот же id, код - статус (OK, BAD_REQUEST, NO_TABLE, ERROR), при ошибке - строка с описанием.
+ * </pre>
+ * Целые строки в ответах GET и POP - ячейки через разделитель таблицы. Клиент может отправлять запросы,
+ * не дожидаясь ответов, и сопоставлять ответы по id. Сервер выполняет запросы соединения по очереди и отвечает
+ * в том же порядке, поэтому медленный запрос задерживает ответы на следующие; для независимых запросов нужны разные соединения.
+ * Если соединений больше допустимого (-vtsbinconnections), сервер присылает ERROR с id 0 и закрывает соединение.
+ */
+public final class BinaryProtocol {
+    public static final byte OPEN = 1; //Номер таблицы по имени
+    public static final byte GET = 2; //Получение строк/ячеек
+    public static final byte POP = 3; //Забор строк/ячеек
+    public static final byte PUSH = 4; //Вставка строк
+    public static final byte FIND = 5; //Поиск по индексу
+    public static final byte SIZE = 6; //Количество строк
+
+    public static final byte OK = 0; //Успешно
+    public static final byte BAD_REQUEST = 1; //Ошибка в запросе (как 400)
+    public static final byte NO_TABLE = 2; //Таблица не найдена
+    public static final byte ERROR = 3; //Прочие ошибки (как 500)
+
+    public static final int NONE = -1; //Строка или столбец не указаны
+    public static final int MAX_FRAME = 16 * 1024 * 1024; //Максимальная длина кадра
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Чтение кадра.
+     *
+     * @param in    Поток.
+     * @param frame Буфер для кадра, заменяется большим, если не хватает.
+     * @return Буфер с кадром без длины (позиция 0, предел - конец кадра) или {@code null} в конце потока.
+     * @throws IOException При ошибке чтения или неверной длине.
+     */
+    public static ByteBuffer readFrame(DataInputStream in, ByteBuffer frame) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        if (length < 5 || length > MAX_FRAME) {
+            throw new IOException("Неверная длина кадра: " + length);
+        }
+        if (frame == null || frame.capacity() < length) {
+            frame = ByteBuffer.allocate(Math.max(length, 1024));
+        }
+        in.readFully(frame.array(), 0, length);
+        frame.clear();
+        frame.limit(length);
+        return frame;
+    }
+
+    /**
+     * Чтение строки.
+     *
+     * @param buf Буфер.
+     * @return Строка или {@code null}.
+     */
+    public static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buf.remaining()) {
+            throw new IllegalArgumentException("Длина строки больше кадра: " + length);
+        }
+        String res = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return res;
+    }
+
+    /**
+     * Запись строки.
+     *
+     * @param out   Поток.
+     * @param value Строка или {@code null}.
+     * @throws IOException При ошибке записи.
+     */
+    public static void putString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Сборщик кадра: данные пишутся в {@link #data()}, затем {@link #writeTo(OutputStream)} отправляет кадр с длиной.
+     */
+    public static final class FrameWriter {
+        private final Buffer mBuffer = new Buffer(); //Кадр
+        private final DataOutputStream mData = new DataOutputStream(mBuffer); //Запись в кадр
+
+        /**
+         * Начало кадра.
+         *
+         * @param id   Id запроса.
+         * @param code Код запроса или статус ответа.
+         * @return Поток для данных кадра.
+         * @throws IOException Не бросается (запись в память).
+         */
+        public DataOutputStream start(int id, byte code) throws IOException {
+            mBuffer.reset();
+            mData.writeInt(0);//Место для длины
+            mData.writeInt(id);
+            mData.writeByte(code);
+            return mData;
+        }
+
+        public DataOutputStream data() {
+            return mData;
+        }
+
+        /**
+         * Отправка кадра.
+         *
+         * @param out Поток.
+         * @throws IOException При ошибке записи.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            mBuffer.writeLength();
+            mBuffer.writeTo(out);
+        }
+
+        /**
+         * Буфер с доступом к началу для записи длины.
+         */
+        private static final class Buffer extends ByteArrayOutputStream {
+            private Buffer() {
+                super(256);
+            }
+
+            private void writeLength() {
+                int length = count - 4;
+                buf[0] = (byte) (length >>> 24);
+                buf[1] = (byte) (length >>> 16);
+                buf[2] = (byte) (length >>> 8);
+                buf[3] = (byte) length;
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package ru.pflb.httpserver.modules;
+
+import ru.pflb.httpserver.core.Metrics;
+import ru.pflb.httpserver.utils.LockWait;
+import ru.pflb.httpserver.utils.Table;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Прием подключений по {@link BinaryProtocol}: поток из пула на соединение, запросы выполняются прямо над {@link Table}
+ * без HTTP разбора и HTML ответов. Ответы копятся в буфере и отправляются, когда во входящем буфере не осталось
+ * запросов, поэтому клиент, отправивший пачку запросов без ожидания, получает ответы пачкой.
+ * Запросы соединения выполняются по очереди, и ответы идут в порядке запросов: медленный запрос задерживает
+ * ответы на все следующие за ним id. Соединений не больше заданного числа (-vtsbinconnections), лишнее
+ * получает кадр ERROR с id 0 и закрывается.
+ */
+class BinaryServer extends Thread {
+    static final int DEFAULT_CONNECTIONS = 1024; //Соединений по умолчанию
+    private static final int BUFFER_SIZE = 64 * 1024; //Буферы потоков соединения
+    private static final long IDLE_THREAD_TIMEOUT = 60; //Простой потока пула до завершения, с
+
+    private final VTSModule mModule; //Модуль (учет в метриках)
+    private final TableRegistry mTables; //Таблицы
+    private final int mPort; //Порт
+    private final int mMaxConnections; //Максимум соединений
+    private final ThreadPoolExecutor mExecutor; //Потоки соединений
+    private final Set<Socket> mConnections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>()); //Открытые соединения
+    private volatile boolean mStopped = false; //Состояние
+    private ServerSocket mServerSocket; //Входящие подключения
+
+    /**
+     * Конструктор.
+     *
+     * @param module Модуль.
+     * @param tables Таблицы.
+     * @param port           Порт.
+     * @param maxConnections Максимум соединений.
+     */
+    BinaryServer(VTSModule module, TableRegistry tables, int port, int maxConnections) {
+        super("VTS-binary-acceptor");
+        setDaemon(true);
+        mModule = module;
+        mTables = tables;
+        mPort = port;
+        mMaxConnections = maxConnections;
+        //Без очереди: поток берется свободный или создается, пока их меньше максимума, иначе соединение отклоняется
+        mExecutor = new ThreadPoolExecutor(0, maxConnections, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCounter = new AtomicInteger(); //Номер потока
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VTS-binary-" + mCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Открытие порта и запуск приема.
+     */
+    @Override
+    public synchronized void start() {
+        try {
+            mServerSocket = new ServerSocket();
+            mServerSocket.bind(new InetSocketAddress(mPort));
+        } catch (IOException e) {
+            throw new RuntimeException("Невозможно открыть порт " + mPort + " бинарного протокола. Проверьте, не занят ли он");
+        }
+        super.start();
+    }
+
+    /**
+     * Прием подключений.
+     */
+    @Override
+    public void run() {
+        System.out.println("Бинарный протокол VTS запущен на порту " + mPort);
+        try {
+            while (!mStopped) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (SocketException e) {
+                    if (!mStopped)
+                        throw e;
+                    return;
+                }
+                socket.setTcpNoDelay(true);
+                mConnections.add(socket);
+                try {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                serve(socket);
+                            } catch (IOException e) {
+                                //Клиент отключился или прислал неверный кадр
+                            } catch (Throwable t) {
+                                t.printStackTrace();
+                            } finally {
+                                mConnections.remove(socket);
+                                try {
+                                    socket.close();
+                                } catch (IOException ignored) {
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    mConnections.remove(socket);
+                    reject(socket);
+                }
+            }
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+        }
+    }
+
+    /**
+     * Отказ в соединении сверх максимума: кадр ERROR с id 0 и закрытие.
+     *
+     * @param socket Сокет.
+     */
+    private void reject(Socket socket) {
+        try {
+            socket.setSoLinger(true, 1);
+            BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+            BinaryProtocol.putString(writer.start(0, BinaryProtocol.ERROR), "Слишком много соединений: " + mMaxConnections);
+            writer.writeTo(socket.getOutputStream());
+        } catch (IOException ignored) {
+            //Клиент уже отключился
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Остановка: закрытие порта и всех соединений.
+     */
+    void safeStop() {
+        mStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Socket socket : mConnections) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Обработка запросов соединения.
+     *
+     * @param socket Сокет.
+     * @throws IOException При ошибке соединения.
+     */
+    private void serve(Socket socket) throws IOException {
+        InputStream raw = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        DataInputStream in = new DataInputStream(raw);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter();
+        List<String> names = new ArrayList<>(); //Таблицы соединения по номерам
+        ByteBuffer frame = null;
+        while (true) {
+            frame = BinaryProtocol.readFrame(in, frame);
+            if (frame == null) {
+                return;
+            }
+            int id = frame.getInt();
+            byte code = frame.get();
+            try {
+                execute(code, frame, names, writer, id);
+            } catch (BufferUnderflowException e) {
+                BinaryProtocol.putString(writer.start(id, BinaryProtocol.BAD_REQUEST), "Неполные данные запроса");
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                BinaryProtocol.putString(writer.start(id, BinaryProtocol.BAD_REQUEST), String.valueOf(e.getMessage()));
+            } catch (RuntimeException e) {
+                BinaryProtocol.putString(writer.start(id, BinaryProtocol.ERROR), e.toString());
+            }
+            writer.writeTo(out);
+            //Отправляем, когда все присланные запросы обработаны
+            if (raw.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Выполнение запроса.
+     *
+     * @param code   Код запроса.
+     * @param frame  Данные запроса.
+     * @param names  Таблицы соединения.
+     * @param writer Ответ.
+     * @param id     Id запроса.
+     * @throws IOException Не бросается (ответ собирается в памяти).
+     */
+    private void execute(byte code, ByteBuffer frame, List<String> names, BinaryProtocol.FrameWriter writer, int id) throws IOException {
+        if (code == BinaryProtocol.OPEN) {
+            String name = BinaryProtocol.getString(frame);
+            Table table = name == null ? null : mTables.get(name);
+            if (table == null) {
+                BinaryProtocol.putString(writer.start(id, BinaryProtocol.NO_TABLE), "Таблица " + name + " не найдена");
+                return;
+            }
+            int number = names.indexOf(table.getName());
+            if (number < 0) {
+                number = names.size();
+                names.add(table.getName());
+            }
+            writer.start(id, BinaryProtocol.OK).writeInt(number);
+            return;
+        }
+
+        int number = frame.getInt();
+        TableRegistry.Entry entry = number >= 0 && number < names.size() ? mTables.acquire(names.get(number)) : null;
+        if (entry == null) {
+            BinaryProtocol.putString(writer.start(id, BinaryProtocol.NO_TABLE), "Таблица " + number + " не открыта или удалена");
+            return;
+        }
+        try {
+            Table table = entry.table();
+            VTSModule.COMMANDS cmd = command(code);
+            Metrics.Operation operation = cmd == null ? null : mModule.operation(table.getName(), cmd);
+            long lockWait = LockWait.total();
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                execute(code, table, frame, writer, id);
+                error = false;
+            } finally {
+                if (operation != null) {
+                    operation.record(System.nanoTime() - start, LockWait.total() - lockWait, error);
+                }
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Выполнение команды таблицы.
+     *
+     * @param code   Код запроса.
+     * @param table  Таблица.
+     * @param frame  Данные запроса после номера таблицы.
+     * @param writer Ответ.
+     * @param id     Id запроса.
+     * @throws IOException Не бросается (ответ собирается в памяти).
+     */
+    private void execute(byte code, Table table, ByteBuffer frame, BinaryProtocol.FrameWriter writer, int id) throws IOException {
+        switch (code) {
+            case BinaryProtocol.GET: {
+                Integer row = optional(frame.getInt());
+                Integer col = optional(frame.getInt());
+                List<String> res = table.getRows(row, col, frame.getInt());
+                putStrings(writer.start(id, BinaryProtocol.OK), res);
+                break;
+            }
+            case BinaryProtocol.POP: {
+                Integer row = optional(frame.getInt());
+                Integer col = optional(frame.getInt());
+                boolean deleteRow = frame.get() != 0;
+                List<String> res = table.popRows(row, col, deleteRow, frame.getInt());
+                putStrings(writer.start(id, BinaryProtocol.OK), res);
+                break;
+            }
+            case BinaryProtocol.PUSH: {
+                Integer row = optional(frame.getInt());
+                int count = frame.getInt();
+                if (count < 0 || count > frame.remaining() / 4) {
+                    throw new IllegalArgumentException("Неверное количество строк: " + count);
+                }
+                List<String[]> rows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int cells = frame.getInt();
+                    if (cells <= 0 || cells > frame.remaining() / 4) {
+                        throw new IllegalArgumentException("Неверное количество ячеек: " + cells);
+                    }
+                    String[] cellValues = new String[cells];
+                    for (int c = 0; c < cells; c++) {
+                        cellValues[c] = BinaryProtocol.getString(frame);
+                        if (cellValues[c] == null) {
+                            throw new IllegalArgumentException("Ячейка " + c + " строки " + i + " не передана (длина -1)");
+                        }
+                    }
+                    rows.add(cellValues);
+                }
+                BinaryProtocol.putString(writer.start(id, BinaryProtocol.OK), table.pushRows(row, rows));
+                mModule.pushed(table.getName());
+                break;
+            }
+            case BinaryProtocol.FIND: {
+                int col = frame.getInt();
+                boolean take = frame.get() != 0;
+                String[] res = table.findRow(col, BinaryProtocol.getString(frame), take);
+                DataOutputStream out = writer.start(id, BinaryProtocol.OK);
+                out.writeInt(res.length);
+                for (String cell : res) {
+                    BinaryProtocol.putString(out, cell);
+                }
+                break;
+            }
+            case BinaryProtocol.SIZE:
+                writer.start(id, BinaryProtocol.OK).writeInt(table.size());
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный код запроса: " + code);
+        }
+    }
+
+    /**
+     * Команда для метрик.
+     *
+     * @param code Код запроса.
+     * @return Команда или {@code null}, если запрос не учитывается.
+     */
+    private static VTSModule.COMMANDS command(byte code) {
+        switch (code) {
+            case BinaryProtocol.GET:
+                return VTSModule.COMMANDS.GET;
+            case BinaryProtocol.POP:
+                return VTSModule.COMMANDS.POP;
+            case BinaryProtocol.PUSH:
+                return VTSModule.COMMANDS.PUSH;
+            case BinaryProtocol.FIND:
+                return VTSModule.COMMANDS.FIND;
+            default:
+                return null;
+        }
+    }
+
+    private static Integer optional(int value) {
+        return value == BinaryProtocol.NONE ? null : value;
+    }
+
+    /**
+     * Запись списка строк.
+     *
+     * @param out    Поток.
+     * @param values Строки.
+     * @throws IOException Не бросается.
+     */
+    private static void putStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            BinaryProtocol.putString(out, value);
+        }
+    }
+}
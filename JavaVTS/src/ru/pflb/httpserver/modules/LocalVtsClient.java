@@ -0,0 +1,118 @@
+package ru.pflb.httpserver.modules;
+
+import ru.pflb.httpserver.client.VtsClient;
+import ru.pflb.httpserver.core.Metrics;
+import ru.pflb.httpserver.utils.LockWait;
+import ru.pflb.httpserver.utils.Table;
+
+import java.util.List;
+
+/**
+ * Клиент в том же процессе: таблица берется из реестра модуля со ссылкой на время вызова и вызывается напрямую,
+ * как в {@link BinaryServer}. Команды учитываются в метриках модуля. Получается через {@link VTSModule#getClient()}.
+ */
+class LocalVtsClient implements VtsClient {
+    private final VTSModule mModule; //Модуль (учет в метриках)
+    private final TableRegistry mTables; //Таблицы
+
+    /**
+     * Конструктор.
+     *
+     * @param module Модуль.
+     * @param tables Таблицы.
+     */
+    LocalVtsClient(VTSModule module, TableRegistry tables) {
+        mModule = module;
+        mTables = tables;
+    }
+
+    @Override
+    public List<String> get(String table, final Integer row, final Integer col, final int count) {
+        return call(table, VTSModule.COMMANDS.GET, new Call<List<String>>() {
+            @Override
+            List<String> run(Table t) {
+                return t.getRows(row, col, count);
+            }
+        });
+    }
+
+    @Override
+    public List<String> pop(String table, final Integer row, final Integer col, final boolean deleteRow, final int count) {
+        return call(table, VTSModule.COMMANDS.POP, new Call<List<String>>() {
+            @Override
+            List<String> run(Table t) {
+                return t.popRows(row, col, deleteRow, count);
+            }
+        });
+    }
+
+    @Override
+    public String push(String table, final Integer row, final List<String[]> rows) {
+        return call(table, VTSModule.COMMANDS.PUSH, new Call<String>() {
+            @Override
+            String run(Table t) {
+                String res = t.pushRows(row, rows);
+                mModule.pushed(t.getName());
+                return res;
+            }
+        });
+    }
+
+    @Override
+    public String find(String table, final int col, final String value, final boolean take) {
+        return call(table, VTSModule.COMMANDS.FIND, new Call<String>() {
+            @Override
+            String run(Table t) {
+                return String.join(t.getDelimiter(), t.findRow(col, value, take));
+            }
+        });
+    }
+
+    /**
+     * Нечего закрывать: таблицы принадлежат модулю.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Вызов команды над таблицей с учетом в метриках.
+     *
+     * @param name Таблица.
+     * @param cmd  Команда.
+     * @param call Вызов.
+     * @param <T>  Тип результата.
+     * @return Результат.
+     */
+    private <T> T call(String name, VTSModule.COMMANDS cmd, Call<T> call) {
+        TableRegistry.Entry entry = name == null ? null : mTables.acquire(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("Таблица " + name + " не найдена");
+        }
+        try {
+            Table table = entry.table();
+            Metrics.Operation operation = mModule.operation(table.getName(), cmd);
+            long lockWait = LockWait.total();
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                T res = call.run(table);
+                error = false;
+                return res;
+            } finally {
+                operation.record(System.nanoTime() - start, LockWait.total() - lockWait, error);
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Команда над таблицей.
+     *
+     * @param <T> Тип результата.
+     */
+    private abstract static class Call<T> {
+        abstract T run(Table table);
+    }
+}
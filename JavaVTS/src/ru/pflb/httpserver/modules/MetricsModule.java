@@ -0,0 +1,124 @@
+package ru.pflb.httpserver.modules;
+
+import ru.pflb.httpserver.core.HTTPConstants;
+import ru.pflb.httpserver.core.HTTPModule;
+import ru.pflb.httpserver.core.Metrics;
+import ru.pflb.httpserver.core.Router;
+import ru.pflb.httpserver.utils.LockWait;
+
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Модуль метрик: отдает метрики сервера и модулей в текстовом формате Prometheus по адресу /metrics.
+ */
+public class MetricsModule extends HTTPModule {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"; //Тип содержимого для Prometheus
+    private Metrics mMetrics = new Metrics(); //Метрики (заменяются метриками сервера)
+
+    /**
+     * Парсит параметры запуска: -lockwait включает учет ожидания блокировок.
+     *
+     * @param arg    Текущий аргумент.
+     * @param args   Список всех аргументов.
+     * @param curPos Текущий индекс аргумента.
+     * @return Количество распарсеных параметров.
+     */
+    @Override
+    public int parseArgs(String arg, String[] args, int curPos) {
+        if (arg.equalsIgnoreCase(ArgCommands.LOCK_WAIT.toString())) {
+            LockWait.setEnabled(true);
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public void init() throws Exception {
+    }
+
+    /**
+     * Сохранение метрик сервера.
+     *
+     * @param metrics Метрики сервера.
+     */
+    @Override
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Отдача метрик.
+     *
+     * @param response Объект ответа.
+     * @param socket   Сокет входящего подключения.
+     * @param method   Метод.
+     * @param urls     URL структура запроса.
+     * @param level    Текущий уровень в URL структуре.
+     * @param header   Заголовок запроса.
+     * @param params   Параметры запроса (url?params...).
+     * @param data     POST body запроса.
+     */
+    @Override
+    public void processSocket(Response response, Socket socket, HTTPConstants.METHOD method, String[] urls, int level, String[] header, HashMap<String, String> params, String data) {
+        response.setContentType(CONTENT_TYPE);
+        response.setData(mMetrics.scrape());
+    }
+
+    /**
+     * Возвращает описание модуля.
+     *
+     * @return Описание модуля.
+     */
+    @Override
+    public String getModuleDescription() {
+        return "/" + URLS.METRICS + " - MetricsModule - метрики сервера и таблиц в формате Prometheus. " +
+                "Аргумент " + ArgCommands.LOCK_WAIT + " включает учет ожидания блокировок.";
+    }
+
+    /**
+     * Регистрация URL.
+     *
+     * @param router Маршрутизатор сервера.
+     */
+    @Override
+    public void registerUrls(Router router) {
+        router.add(URLS.METRICS.toString(), this);
+    }
+
+    /**
+     * Команды запуска.
+     */
+    private enum ArgCommands {
+        LOCK_WAIT("-lockwait");
+
+        private final String mValue;
+
+        ArgCommands(String value) {
+            mValue = value;
+        }
+
+        @Override
+        public final String toString() {
+            return mValue;
+        }
+    }
+
+    /**
+     * URL модуля.
+     */
+    private enum URLS {
+        METRICS("metrics");
+
+        private final String mValue;
+
+        URLS(String value) {
+            mValue = value;
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package ru.pflb.httpserver.modules;
+
+import ru.pflb.httpserver.core.HTTPConstants;
+import ru.pflb.httpserver.core.HTTPModule.Response;
+import ru.pflb.httpserver.utils.Table;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Ожидающие pop с параметром wait (long-poll): запрос к пустой таблице ждет вставки. На движке nio ожидание не занимает
+ * поток сервера, blocking ждет ответа в потоке соединения.
+ * Ожидания обслуживает один поток: после вставки он забирает строки ожидающим в порядке прихода, по истечении wait
+ * отвечает как обычный pop (пустая таблица - 400). Отключение клиента (отмена ответа) снимает ожидание.
+ */
+final class PopWaiters {
+    static final int MAX_WAIT = 5 * 60 * 1000; //Максимальное ожидание, мс
+
+    private final VTSModule mModule; //Модуль (выполнение pop с учетом в метриках)
+    private final TableRegistry mTables; //Таблицы
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Waiter>> mWaiters = new ConcurrentHashMap<>(); //Ожидающие по таблицам
+    private final ScheduledThreadPoolExecutor mExecutor; //Поток ожиданий (создается при первом ожидании)
+
+    /**
+     * Конструктор.
+     *
+     * @param module Модуль.
+     * @param tables Таблицы.
+     */
+    PopWaiters(VTSModule module, TableRegistry tables) {
+        mModule = module;
+        mTables = tables;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VTS-pop-wait");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Pop с ожиданием: сразу, если в таблице есть строки, иначе после вставки или по истечении ожидания.
+     *
+     * @param name   Таблица.
+     * @param params Параметры pop.
+     * @param wait   Ожидание, мс.
+     * @return Ответ.
+     */
+    CompletableFuture<Response> pop(String name, HashMap<String, String> params, int wait) {
+        if (wait < 0 || wait > MAX_WAIT) {
+            throw new IllegalArgumentException("Время ожидания wait должно быть от 0 до " + MAX_WAIT + " мс: " + wait);
+        }
+        final Waiter waiter = new Waiter(TableRegistry.canonical(name), params);
+        if (wait == 0 || attempt(waiter)) {
+            if (!waiter.mResult.isDone()) {
+                finish(waiter);
+            }
+            return waiter.mResult;
+        }
+
+        final ConcurrentLinkedDeque<Waiter> queue = queue(waiter.mName);
+        queue.add(waiter);
+        try {
+            final ScheduledFuture<?> timeout = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (queue.remove(waiter)) {
+                        finish(waiter);
+                    }
+                }
+            }, wait, TimeUnit.MILLISECONDS);
+            waiter.mResult.whenComplete(new BiConsumer<Response, Throwable>() {
+                @Override
+                public void accept(Response response, Throwable throwable) {
+                    //Ответ отправлен или клиент отключился
+                    timeout.cancel(false);
+                    queue.remove(waiter);
+                }
+            });
+            //Вставка могла пройти между попыткой и постановкой в очередь
+            mExecutor.execute(drain(waiter.mName));
+        } catch (RejectedExecutionException e) {
+            queue.remove(waiter);
+            waiter.mResult.complete(stopped());
+        }
+        return waiter.mResult;
+    }
+
+    /**
+     * Уведомление о вставке строк: ожидающие этой таблицы получат строки в потоке ожиданий.
+     *
+     * @param name Таблица.
+     */
+    void pushed(String name) {
+        ConcurrentLinkedDeque<Waiter> queue = mWaiters.get(TableRegistry.canonical(name));
+        if (queue != null && !queue.isEmpty()) {
+            try {
+                mExecutor.execute(drain(TableRegistry.canonical(name)));
+            } catch (RejectedExecutionException ignored) {
+                //Модуль остановлен
+            }
+        }
+    }
+
+    /**
+     * Остановка: ожидающие получают ответ 503.
+     */
+    void stop() {
+        mExecutor.shutdownNow();
+        for (Map.Entry<String, ConcurrentLinkedDeque<Waiter>> e : mWaiters.entrySet()) {
+            Waiter waiter;
+            while ((waiter = e.getValue().poll()) != null) {
+                waiter.mResult.complete(stopped());
+            }
+        }
+    }
+
+    /**
+     * Очередь ожидающих таблицы, создается при первом обращении.
+     *
+     * @param name Таблица.
+     * @return Очередь.
+     */
+    private ConcurrentLinkedDeque<Waiter> queue(String name) {
+        ConcurrentLinkedDeque<Waiter> queue = mWaiters.get(name);
+        if (queue == null) {
+            queue = new ConcurrentLinkedDeque<>();
+            ConcurrentLinkedDeque<Waiter> previous = mWaiters.putIfAbsent(name, queue);
+            if (previous != null) {
+                queue = previous;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Выдача строк ожидающим по порядку, пока в таблице есть строки.
+     *
+     * @param name Таблица.
+     * @return Задача для потока ожиданий.
+     */
+    private Runnable drain(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ConcurrentLinkedDeque<Waiter> queue = mWaiters.get(name);
+                Waiter waiter;
+                while (queue != null && (waiter = queue.peek()) != null) {
+                    if (!waiter.mResult.isDone() && !attempt(waiter)) {
+                        return;//Строк нет, ждем следующей вставки
+                    }
+                    queue.remove(waiter);
+                }
+            }
+        };
+    }
+
+    /**
+     * Попытка забрать строки для ожидающего.
+     *
+     * @param waiter Ожидающий.
+     * @return {@code false}, если таблица пуста и нужно ждать, иначе ответ завершен.
+     */
+    private boolean attempt(Waiter waiter) {
+        TableRegistry.Entry entry = mTables.acquire(waiter.mName);
+        if (entry == null) {
+            waiter.mResult.completeExceptionally(new IllegalArgumentException("Таблица " + waiter.mName + " не найдена"));
+            return true;
+        }
+        try {
+            Table table = entry.table();
+            if (table.size() == 0) {
+                return false;
+            }
+            Response response = new Response(HTTPConstants.CODE.C200, null);
+            try {
+                mModule.invokeTable(response, HTTPConstants.METHOD.GET, table, waiter.mParams, null);
+            } catch (IllegalArgumentException e) {
+                if (table.size() == 0) {
+                    return false;//Строки забрали параллельно
+                }
+                waiter.mResult.completeExceptionally(e);
+                return true;
+            }
+            waiter.mResult.complete(response);
+            return true;
+        } catch (RuntimeException e) {
+            waiter.mResult.completeExceptionally(e);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * Ответ как у обычного pop (по истечении ожидания): строки, если появились, иначе ошибка пустой таблицы.
+     *
+     * @param waiter Ожидающий.
+     */
+    private void finish(Waiter waiter) {
+        TableRegistry.Entry entry = mTables.acquire(waiter.mName);
+        if (entry == null) {
+            waiter.mResult.completeExceptionally(new IllegalArgumentException("Таблица " + waiter.mName + " не найдена"));
+            return;
+        }
+        try {
+            Response response = new Response(HTTPConstants.CODE.C200, null);
+            mModule.invokeTable(response, HTTPConstants.METHOD.GET, entry.table(), waiter.mParams, null);
+            waiter.mResult.complete(response);
+        } catch (RuntimeException e) {
+            waiter.mResult.completeExceptionally(e);
+        } finally {
+            entry.release();
+        }
+    }
+
+    private static Response stopped() {
+        return new Response(HTTPConstants.CODE.C503, "Сервер останавливается");
+    }
+
+    /**
+     * Ожидающий запрос.
+     */
+    private static final class Waiter {
+        private final String mName; //Таблица
+        private final HashMap<String, String> mParams; //Параметры pop
+        private final CompletableFuture<Response> mResult = new CompletableFuture<>(); //Ответ
+
+        private Waiter(String name, HashMap<String, String> params) {
+            mName = name;
+            mParams = params;
+        }
+    }
+}
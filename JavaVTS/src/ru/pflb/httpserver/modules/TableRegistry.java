@@ -0,0 +1,234 @@
+package ru.pflb.httpserver.modules;
+
+import ru.pflb.httpserver.utils.Table;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Реестр таблиц модуля. Таблицы хранятся в {@link ConcurrentHashMap} под каноническим (в нижнем регистре) именем,
+ * запросы берут таблицу со счетчиком ссылок через {@link #acquire(String)} и отпускают через {@link Entry#release()}.
+ * Удаленная или замененная таблица сразу пропадает из реестра, а закрывается, когда завершится последний
+ * начатый с ней запрос, поэтому удаление и создание таблиц во время нагрузки не закрывают таблицу под запросом.
+ */
+final class TableRegistry {
+    private static final long DRAIN_TIMEOUT = 30; //Ожидание закрытия прежней таблицы перед открытием ее журнала, с
+    private static final int NAME_LOCKS = 64; //Блокировок имен
+
+    private final ConcurrentHashMap<String, Entry> mTables = new ConcurrentHashMap<>(); //Таблицы по каноническому имени
+    private final Object[] mNameLocks = new Object[NAME_LOCKS]; //Блокировки имен для создания и удаления
+
+    TableRegistry() {
+        for (int i = 0; i < NAME_LOCKS; i++) {
+            mNameLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Каноническое имя таблицы.
+     *
+     * @param name Имя.
+     * @return Имя в нижнем регистре.
+     */
+    static String canonical(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Блокировка имени: создание и удаление таблиц с одним именем выполняются под ней по очереди,
+     * чтобы две таблицы не открывали один журнал одновременно. Запросы к таблицам ее не берут.
+     *
+     * @param name Имя таблицы.
+     * @return Объект блокировки (общий для нескольких имен).
+     */
+    Object lock(String name) {
+        return mNameLocks[(canonical(name).hashCode() & Integer.MAX_VALUE) % NAME_LOCKS];
+    }
+
+    /**
+     * Поиск записи: сначала по имени как есть (обычно оно уже каноническое, и строка не создается), затем по каноническому.
+     *
+     * @param name Имя.
+     * @return Запись или {@code null}.
+     */
+    private Entry lookup(String name) {
+        Entry entry = mTables.get(name);
+        if (entry == null) {
+            String canonical = canonical(name);
+            if (!canonical.equals(name)) {
+                entry = mTables.get(canonical);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Таблица для обработки запроса. После запроса нужно вызвать {@link Entry#release()}.
+     *
+     * @param name Имя таблицы.
+     * @return Запись таблицы со взятой ссылкой или {@code null}, если таблицы нет.
+     */
+    Entry acquire(String name) {
+        while (true) {
+            Entry entry = lookup(name);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.retain()) {
+                return entry;
+            }
+            //Таблицу убрали из реестра между поиском и захватом, ищем заново
+        }
+    }
+
+    /**
+     * Таблица без взятия ссылки (для менеджера).
+     *
+     * @param name Имя таблицы.
+     * @return Таблица или {@code null}.
+     */
+    Table get(String name) {
+        Entry entry = lookup(name);
+        return entry == null ? null : entry.mTable;
+    }
+
+    /**
+     * Добавление таблицы под ее именем. Прежняя таблица с тем же именем закрывается после завершения запросов к ней.
+     *
+     * @param table Таблица.
+     */
+    void put(Table table) {
+        Entry previous = mTables.put(canonical(table.getName()), new Entry(table));
+        if (previous != null) {
+            previous.retire();
+        }
+    }
+
+    /**
+     * Замена таблицы, если под ее именем все еще та же таблица.
+     *
+     * @param table Текущая таблица.
+     * @param fresh Новая таблица.
+     * @return {@code true}, если заменена; иначе новую таблицу нужно закрыть.
+     */
+    boolean replace(Table table, Table fresh) {
+        String name = canonical(table.getName());
+        Entry current = mTables.get(name);
+        if (current == null || current.mTable != table || !mTables.replace(name, current, new Entry(fresh))) {
+            return false;
+        }
+        current.retire();
+        return true;
+    }
+
+    /**
+     * Удаление таблицы без ожидания: она закроется, когда завершатся начатые с ней запросы.
+     *
+     * @param name Имя таблицы.
+     * @return {@code false}, если таблицы нет.
+     */
+    boolean remove(String name) {
+        Entry entry = mTables.remove(canonical(name));
+        if (entry == null) {
+            return false;
+        }
+        entry.retire();
+        return true;
+    }
+
+    /**
+     * Удаление таблицы с ожиданием ее закрытия (не дольше {@link #DRAIN_TIMEOUT}). Нужно только перед созданием
+     * таблицы с тем же журналом: прежняя таблица должна закрыть журнал до того, как новая начнет его восстанавливать.
+     *
+     * @param name Имя таблицы.
+     */
+    void drain(String name) {
+        Entry entry = mTables.remove(canonical(name));
+        if (entry == null) {
+            return;
+        }
+        entry.retire();
+        try {
+            if (!entry.mClosed.await(DRAIN_TIMEOUT, TimeUnit.SECONDS)) {
+                System.out.println("Таблица " + entry.mTable.getName() + " не закрылась за " + DRAIN_TIMEOUT
+                        + " с: запросы к ней еще выполняются");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Снимок таблиц, упорядоченный по имени.
+     *
+     * @return Таблицы по именам.
+     */
+    TreeMap<String, Table> snapshot() {
+        TreeMap<String, Table> res = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : mTables.entrySet()) {
+            res.put(e.getKey(), e.getValue().mTable);
+        }
+        return res;
+    }
+
+    /**
+     * Таблица в реестре со счетчиком ссылок: одна ссылка у самого реестра, по одной у каждого запроса.
+     */
+    static final class Entry {
+        private final Table mTable; //Таблица
+        private final AtomicInteger mRefs = new AtomicInteger(1); //Ссылки, 0 - таблица закрыта
+        private final CountDownLatch mClosed = new CountDownLatch(1); //Закрытие таблицы
+
+        private Entry(Table table) {
+            mTable = table;
+        }
+
+        Table table() {
+            return mTable;
+        }
+
+        /**
+         * Взятие ссылки.
+         *
+         * @return {@code false}, если таблица уже закрыта.
+         */
+        private boolean retain() {
+            while (true) {
+                int refs = mRefs.get();
+                if (refs == 0) {
+                    return false;
+                }
+                if (mRefs.compareAndSet(refs, refs + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Освобождение ссылки, последняя закрывает таблицу.
+         */
+        void release() {
+            if (mRefs.decrementAndGet() == 0) {
+                try {
+                    mTable.close();
+                } finally {
+                    mClosed.countDown();
+                }
+            }
+        }
+
+        /**
+         * Вывод из реестра: освобождение ссылки реестра. Таблицу закроет последний из начатых запросов
+         * (или сам вызов, если запросов нет), вызывающий не ждет.
+         * Запись должна быть уже удалена из карты, иначе новые запросы продолжат брать ссылки.
+         */
+        private void retire() {
+            release();
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package ru.pflb.httpserver.modules;
 
+import ru.pflb.httpserver.client.VtsClient;
 import ru.pflb.httpserver.core.HTTPConstants;
 import ru.pflb.httpserver.core.HTTPModule;
+import ru.pflb.httpserver.core.HTTPRequest;
+import ru.pflb.httpserver.core.Metrics;
+import ru.pflb.httpserver.core.Router;
+import ru.pflb.httpserver.utils.LockWait;
+import ru.pflb.httpserver.utils.ShardedTable;
 import ru.pflb.httpserver.utils.Table;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static ru.pflb.httpserver.core.HTTPConstants.CODE.C400;
 
@@ -16,8 +30,32 @@ import static ru.pflb.httpserver.core.HTTPConstants.CODE.C400;
  * Модуль виртуальных таблиц.
  */
 public class VTSModule extends HTTPModule {
+    private static final COMMANDS[] TABLE_COMMANDS = {COMMANDS.GET, COMMANDS.POP, COMMANDS.PUSH, COMMANDS.FIND}; //Команды таблиц (в метриках)
     private final ArrayList<Table.TableParams> mTableParams = new ArrayList<>(); //параметры таблиц
-    private final HashMap<String, Table> mTables = new HashMap<>(); //Таблицы
+    private final TableRegistry mTables = new TableRegistry(); //Таблицы
+    private final Set<String> mReloading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); //Таблицы, которые сейчас перезагружаются
+    private final ConcurrentHashMap<String, Metrics.Operation[]> mOperations = new ConcurrentHashMap<>(); //Учет команд таблиц (по ordinal команды)
+    private int mBinaryPort = 0; //Порт бинарного протокола, 0 - выключен
+    private int mBinaryConnections = BinaryServer.DEFAULT_CONNECTIONS; //Максимум соединений бинарного протокола
+    private BinaryServer mBinaryServer; //Прием подключений по бинарному протоколу
+    private final LocalVtsClient mClient = new LocalVtsClient(this, mTables); //Доступ к таблицам в том же процессе
+    private final PopWaiters mWaiters = new PopWaiters(this, mTables); //Ожидающие pop с wait
+    private HTTPConstants.ENGINE mEngine = HTTPConstants.ENGINE.BLOCKING; //Движок сервера (от него зависит, занимает ли wait поток)
+
+    /**
+     * Регистрация метрик таблиц в метриках сервера.
+     *
+     * @param metrics Метрики сервера.
+     */
+    @Override
+    public void setMetrics(Metrics metrics) {
+        metrics.register(new TableMetrics());
+    }
+
+    @Override
+    public void setEngine(HTTPConstants.ENGINE engine) {
+        mEngine = engine;
+    }
 
     /**
      * Парсит параметры запуска.
@@ -34,6 +72,25 @@ public class VTSModule extends HTTPModule {
             mTableParams.add(params);
             return parseParams(params, args, curPos + 1) + 1;
         }
+        if (arg.equalsIgnoreCase(ArgCommands.BINARY_PORT.toString())) {
+            try {
+                mBinaryPort = Integer.parseInt(args[curPos + 1]);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Невозможно распарсить порт бинарного протокола: " + (curPos + 1 < args.length ? args[curPos + 1] : ""), e);
+            }
+            return 2;
+        }
+        if (arg.equalsIgnoreCase(ArgCommands.BINARY_CONNECTIONS.toString())) {
+            try {
+                mBinaryConnections = Integer.parseInt(args[curPos + 1]);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Невозможно распарсить количество соединений бинарного протокола: " + (curPos + 1 < args.length ? args[curPos + 1] : ""), e);
+            }
+            if (mBinaryConnections <= 0) {
+                throw new IllegalArgumentException("Количество соединений бинарного протокола должно быть больше нуля: " + mBinaryConnections);
+            }
+            return 2;
+        }
         return 0;
     }
 
@@ -90,6 +147,38 @@ public class VTSModule extends HTTPModule {
                     params.delimiter = value;
                     parsedCount++;
                     break;
+                case TYPE:
+                    params.type = value;
+                    parsedCount++;
+                    break;
+                case STORAGE:
+                    params.storage = value;
+                    parsedCount++;
+                    break;
+                case FOLLOW:
+                    params.follow = Boolean.parseBoolean(value);
+                    parsedCount++;
+                    break;
+                case JOURNAL:
+                    params.journal = value;
+                    parsedCount++;
+                    break;
+                case SNAPSHOTINTERVAL:
+                    params.snapshotInterval = Integer.parseInt(value);
+                    parsedCount++;
+                    break;
+                case SYNC:
+                    params.sync = Boolean.parseBoolean(value);
+                    parsedCount++;
+                    break;
+                case INDEX:
+                    params.index = value;
+                    parsedCount++;
+                    break;
+                case SHARDS:
+                    params.shards = Integer.parseInt(value);
+                    parsedCount++;
+                    break;
                 default:
                     end = true;
                     break;
@@ -109,9 +198,65 @@ public class VTSModule extends HTTPModule {
             if (params.name == null || params.name.isEmpty()) {
                 throw new IllegalArgumentException("Не задано имя таблицы");
             }
-            params.name = params.name.toLowerCase();
-            mTables.put(params.name, new Table(params));//Вставка новой таблицы
+            params.name = TableRegistry.canonical(params.name);
+            mTables.put(notifying(Table.create(params)));//Вставка новой таблицы
+        }
+    }
+
+    /**
+     * Клиент для кода в том же процессе: команды таблиц вызываются напрямую, без HTTP, с учетом в метриках.
+     *
+     * @return Клиент.
+     */
+    public VtsClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Запуск приема подключений по бинарному протоколу, если задан порт.
+     */
+    @Override
+    public void start() {
+        if (mBinaryPort > 0) {
+            mBinaryServer = new BinaryServer(this, mTables, mBinaryPort, mBinaryConnections);
+            mBinaryServer.start();
+        }
+    }
+
+    /**
+     * Остановка бинарного протокола и ожиданий pop.
+     */
+    @Override
+    public void stop() {
+        if (mBinaryServer != null) {
+            mBinaryServer.safeStop();
         }
+        mWaiters.stop();
+    }
+
+    /**
+     * Уведомление о новых строках в таблице для ожидающих pop.
+     *
+     * @param tableName Имя таблицы.
+     */
+    void pushed(String tableName) {
+        mWaiters.pushed(tableName);
+    }
+
+    /**
+     * Подписка ожидающих pop на строки, которые слежение за файлом дописывает в таблицу.
+     *
+     * @param table Таблица.
+     * @return Та же таблица.
+     */
+    private Table notifying(final Table table) {
+        table.setAppendListener(new Runnable() {
+            @Override
+            public void run() {
+                pushed(table.getName());
+            }
+        });
+        return table;
     }
 
     /**
@@ -128,9 +273,8 @@ public class VTSModule extends HTTPModule {
      */
     @Override
     public void processSocket(Response response, Socket socket, HTTPConstants.METHOD method, String[] urls, int level, String[] header, HashMap<String, String> params, String data) {
-        if (HTTPConstants.checkUrlLength(urls, level)) {
-
-            URLS url = URLS.valueOf(urls[level].toUpperCase());
+        URLS url = HTTPConstants.checkUrlLength(urls, level) ? URLS.parse(urls[level]) : null;
+        if (url != null) {
             switch (url) {
                 case TABLE:
                     invokeTable(response, method, urls, level + 1, params, data);
@@ -173,18 +317,13 @@ public class VTSModule extends HTTPModule {
             return;
         }
 
-        COMMANDS cmd;
-        //Разбор команды команду
-        if (params.get(Table.PARAMS.CMD.toString()) == null) {
-            cmd = COMMANDS.GET;
-        } else {
-            try {
-                cmd = COMMANDS.valueOf(params.get(Table.PARAMS.CMD.toString()).toUpperCase());
-            } catch (IllegalArgumentException e) {//Команда не найдена
-                response.setData("Неизвестная команда " + params.get(Table.PARAMS.CMD.toString()) + "<br/><br/>" + getTableDescription());
-                response.setCode(C400);
-                return;
-            }
+        //Разбор команды
+        String cmdName = params.get(Table.PARAMS.CMD.toString());
+        COMMANDS cmd = cmdName == null ? COMMANDS.GET : COMMANDS.parse(cmdName);
+        if (cmd == null) {//Команда не найдена
+            response.setData("Неизвестная команда " + cmdName + "<br/><br/>" + getTableDescription());
+            response.setCode(C400);
+            return;
         }
 
         invokeManagerCmd(response, cmd, params, data);
@@ -202,16 +341,30 @@ public class VTSModule extends HTTPModule {
                     return;
                 }
                 Table.TableParams tableParams = new Table.TableParams();
-                tableParams.name = tableName.toLowerCase();
+                tableParams.name = TableRegistry.canonical(tableName);
                 tableParams.filename = fileName;
                 tableParams.delimiter = delimiter;
-
-                try {
-                    Table table = new Table(tableParams);
-                    mTables.put(tableName, table);
-                } catch (IOException e) {
-                    throw new RuntimeException("Невозможно создать таблицу", e);
+                tableParams.type = params.get("type");
+                tableParams.storage = params.get("storage");
+                tableParams.follow = HTTPConstants.getValue(params, "follow", false);
+                tableParams.journal = params.get("journal");
+                tableParams.snapshotInterval = HTTPConstants.getValue(params, "snapshotinterval", (Integer) null);
+                tableParams.sync = HTTPConstants.getValue(params, "sync", false);
+                tableParams.index = params.get("index");
+                tableParams.shards = HTTPConstants.getValue(params, "shards", (Integer) null);
+
+                synchronized (mTables.lock(tableParams.name)) {
+                    if (tableParams.journal != null) {
+                        //Прежняя таблица должна закрыть журнал до того, как новая начнет его восстанавливать
+                        mTables.drain(tableParams.name);
+                    }
+                    try {
+                        mTables.put(notifying(Table.create(tableParams)));
+                    } catch (IOException e) {
+                        throw new RuntimeException("Невозможно создать таблицу", e);
+                    }
                 }
+                pushed(tableParams.name);
                 response.setData("OK");
                 break;
             case DELETE:
@@ -221,13 +374,17 @@ public class VTSModule extends HTTPModule {
                     response.setCode(C400);
                     return;
                 }
-                if (!mTables.containsKey(tableName.toLowerCase())) {
+                //Таблица закроется после запросов, начатых с ней, ответ их не ждет
+                boolean deleted;
+                synchronized (mTables.lock(tableName)) {
+                    deleted = mTables.remove(tableName);
+                }
+                if (!deleted) {
                     response.setData("Таблица " + tableName + " не найдена");
                     response.setCode(C400);
                     return;
                 }
-
-                mTables.remove(tableName);
+                mOperations.remove(TableRegistry.canonical(tableName));
                 response.setData("OK");
                 break;
             case RELOAD:
@@ -239,18 +396,31 @@ public class VTSModule extends HTTPModule {
                     response.setCode(C400);
                     return;
                 }
-                if (!mTables.containsKey(tableName.toLowerCase())) {
+                String name = TableRegistry.canonical(tableName);
+                Table table = mTables.get(name);
+                if (table == null) {
                     response.setData("Таблица " + tableName + " не найдена");
                     response.setCode(C400);
                     return;
                 }
-                Table table = mTables.get(tableName);
-                try {
-                    table.reload(fileName, delimiter);
-                } catch (IOException e) {
-                    throw new RuntimeException("Невозможно перезагрузить таблицу", e);
+                Table.CURSOR cursor = Table.CURSOR.parse(params.get("cursor"));
+                boolean wait = HTTPConstants.getValue(params, "wait", true);
+                if (!mReloading.add(name)) {
+                    response.setData("Таблица " + tableName + " уже перезагружается");
+                    response.setCode(C400);
+                    return;
+                }
+                if (wait) {
+                    try {
+                        reloadTable(name, table, fileName, delimiter, cursor);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Невозможно перезагрузить таблицу", e);
+                    }
+                    response.setData("OK");
+                } else {
+                    startReload(name, table, fileName, delimiter, cursor);
+                    response.setData("Перезагрузка запущена");
                 }
-                response.setData("OK");
                 break;
             default:
                 response.setData("Команда " + cmd.toString() + " не найдена");
@@ -259,6 +429,75 @@ public class VTSModule extends HTTPModule {
         }
     }
 
+    /**
+     * Перезагрузка таблицы без простоя: новая таблица загружается рядом со старой, которая продолжает обслуживать
+     * запросы, затем ссылка в списке таблиц подменяется одной операцией. Если за время загрузки таблицу удалили
+     * или пересоздали, результат отбрасывается.
+     *
+     * @param name      Имя таблицы.
+     * @param table     Текущая таблица.
+     * @param fileName  Файл, {@code null} - прежний.
+     * @param delimiter Разделитель, {@code null} - прежний.
+     * @param cursor    Перенос курсора.
+     * @throws IOException При ошибке загрузки.
+     */
+    private void reloadTable(String name, Table table, String fileName, String delimiter, Table.CURSOR cursor) throws IOException {
+        try {
+            Table fresh = notifying(table.reload(fileName, delimiter));
+            if (cursor == Table.CURSOR.KEEP) {
+                fresh.setCursor(table.getCursor());
+                fresh.keepClientCursors(table);
+            }
+            //Журнал переходит к новой таблице перед подменой: изменения старой после этого подмену все равно не переживут
+            boolean journal;
+            try {
+                journal = table.handOverJournal(fresh);
+            } catch (IOException e) {
+                fresh.close();
+                throw e;
+            }
+            if (mTables.replace(table, fresh)) {
+                pushed(name);
+            } else {
+                if (journal) {
+                    fresh.handOverJournal(table);
+                }
+                fresh.close();
+                if (journal && mTables.get(name) != table) {
+                    //Таблицу удалили во время перезагрузки: возвращенный журнал закрывается вместе с ней
+                    table.close();
+                }
+            }
+        } finally {
+            mReloading.remove(name);
+        }
+    }
+
+    /**
+     * Перезагрузка таблицы в фоне.
+     *
+     * @param name      Имя таблицы.
+     * @param table     Текущая таблица.
+     * @param fileName  Файл, {@code null} - прежний.
+     * @param delimiter Разделитель, {@code null} - прежний.
+     * @param cursor    Перенос курсора.
+     */
+    private void startReload(final String name, final Table table, final String fileName, final String delimiter, final Table.CURSOR cursor) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reloadTable(name, table, fileName, delimiter, cursor);
+                } catch (Throwable t) {
+                    System.out.println("Ошибка при перезагрузке таблицы " + name);
+                    t.printStackTrace();
+                }
+            }
+        }, "VTS-reload-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     private String getManagerDescription() {
         return "Менеджер таблиц:<br/>" +
                 "Пример: http://localhost:8080/vts/manager??param=value&amp;...&amp;param=value<br/>" +
@@ -268,12 +507,22 @@ public class VTSModule extends HTTPModule {
                 space(2, "table, имя таблицы<br/>") +
                 space(2, "[filename], если указано - будет загружена из файла<br/>") +
                 space(2, "[delimiter], если не указан, используется '" + Table.DEFAULT_DELIMITER + "'<br/>") +
+                space(2, "[type], тип таблицы: " + Table.TYPE.LIST + " (по умолчанию, общая блокировка) или " + Table.TYPE.CONCURRENT + " (чтение и забор строк без блокировок) или " + Table.TYPE.QUEUE + " (очередь: pop с головы, push в хвост) или " + Table.TYPE.SHARDED + " (части со своими блокировками для запросов с row)<br/>") +
+                space(2, "[shards], количество частей таблицы типа " + Table.TYPE.SHARDED + ", по умолчанию " + ShardedTable.DEFAULT_SHARDS + "<br/>") +
+                space(2, "[storage], хранение строк для типа " + Table.TYPE.LIST + ": " + Table.STORAGE.HEAP + " (по умолчанию) или " + Table.STORAGE.PACKED + " (компактно в UTF-8, для больших таблиц) или " + Table.STORAGE.MAPPED + " (файл отображается в память, только get; файл не переписывать на месте, а заменять переименованием и перезагружать таблицу)<br/>") +
+                space(2, "[follow], true - дозагружать строки, дописываемые в файл (только для таблиц из файла)<br/>") +
+                space(2, "[journal], путь к журналу изменений: pop/push переживают перезапуск (типы " + Table.TYPE.LIST + " и " + Table.TYPE.QUEUE + "). При существующем журнале таблица восстанавливается из него<br/>") +
+                space(2, "[snapshotinterval], период снимков таблицы с журналом в секундах, по умолчанию " + Table.DEFAULT_SNAPSHOT_INTERVAL + "<br/>") +
+                space(2, "[sync], true - ответ на pop/push только после записи журнала на диск<br/>") +
+                space(2, "[index], номера столбцов через запятую для хеш-индексов (команда find; типы " + Table.TYPE.LIST + " с хранилищем " + Table.STORAGE.HEAP + " и " + Table.TYPE.QUEUE + ")<br/>") +
                 space(1, "delete - удалить таблицу. Параметры:<br/>") +
                 space(2, "table, имя таблицы для удаления<br/>") +
                 space(1, "reload - перезагрузить таблицу из файла. Параметры:<br/>") +
                 space(2, "table, имя таблицы<br/>") +
                 space(2, "[filename], обязателен для таблиц, созданных не из файлов. Указывает путь к файлу<br/>") +
-                space(2, "[delimiter], если не указан, используется '" + Table.DEFAULT_DELIMITER + "'<br/>") +
+                space(2, "[delimiter], если не указан, используется прежний<br/>") +
+                space(2, "[cursor], курсор новой таблицы: " + Table.CURSOR.KEEP + " (по умолчанию, та же позиция, курсоры клиентов сохраняются) или " + Table.CURSOR.RESET + " (с первой строки)<br/>") +
+                space(2, "[wait], false - не ждать окончания загрузки. До подмены запросы обслуживает старая таблица<br/>") +
                 //space(2, "")+
 
                 "Список имеющихся таблиц:<br/>" +
@@ -292,36 +541,14 @@ public class VTSModule extends HTTPModule {
      */
     private void invokeTable(Response response, HTTPConstants.METHOD method, String[] urls, int level, HashMap<String, String> params, String data) {
         if (HTTPConstants.checkUrlLength(urls, level)) {
-            String tableName = urls[level].toLowerCase();//Имя таблицы
-            Table table = mTables.get(tableName); //Сама таблица
-            if (table != null) {
-                COMMANDS cmd;
-                //Разбор команды команду
-                if (params.get(Table.PARAMS.CMD.toString()) == null) {
-                    cmd = COMMANDS.GET;
-                } else {
-                    try {
-                        cmd = COMMANDS.valueOf(params.get(Table.PARAMS.CMD.toString()).toUpperCase());
-                    } catch (IllegalArgumentException e) {//Команда не найдена
-                        response.setData("Неизвестная команда " + params.get(Table.PARAMS.CMD.toString()) + "<br/><br/>" + getTableDescription());
-                        response.setCode(C400);
-                        return;
-                    }
-                }
-
-                //Проверяем метод
-                if ((cmd.equals(COMMANDS.GET) || cmd.equals(COMMANDS.POP)) && !method.equals(HTTPConstants.METHOD.GET)) {
-                    response.setCode(C400);
-                    response.setData("Неверный тип запроса. Используйте GET запрос.");
-                    return;
-                } else if ((cmd.equals(COMMANDS.PUSH)) && !method.equals(HTTPConstants.METHOD.POST) && !method.equals(HTTPConstants.METHOD.PUT)) {
-                    response.setCode(C400);
-                    response.setData("Неверный тип запроса. Используйте POST или PUT запрос.");
-                    return;
+            String tableName = urls[level];//Имя таблицы
+            TableRegistry.Entry entry = mTables.acquire(tableName); //Таблица со ссылкой на время запроса
+            if (entry != null) {
+                try {
+                    invokeTable(response, method, entry.table(), params, data);
+                } finally {
+                    entry.release();
                 }
-
-                //Вызываем обработку
-                invokeTableCmd(response, table, cmd, params, data);
             } else {
                 response.setData("Таблица " + tableName + " не найдена!<br/><br/>" + getTableDescription());
                 response.setCode(C400);
@@ -331,6 +558,76 @@ public class VTSModule extends HTTPModule {
         }
     }
 
+    /**
+     * Разбор команды таблицы и ее выполнение с учетом в метриках.
+     *
+     * @param response Ответ.
+     * @param method   Метод.
+     * @param table    Таблица.
+     * @param params   Параметры.
+     * @param data     Пост-боди.
+     */
+    void invokeTable(Response response, HTTPConstants.METHOD method, Table table, HashMap<String, String> params, String data) {
+        //Разбор команды
+        String cmdName = params.get(Table.PARAMS.CMD.toString());
+        COMMANDS cmd = cmdName == null ? COMMANDS.GET : COMMANDS.parse(cmdName);
+        if (cmd == null) {//Команда не найдена
+            response.setData("Неизвестная команда " + cmdName + "<br/><br/>" + getTableDescription());
+            response.setCode(C400);
+            return;
+        }
+
+        //Проверяем метод
+        if ((cmd.equals(COMMANDS.GET) || cmd.equals(COMMANDS.POP) || cmd.equals(COMMANDS.FIND)) && !method.equals(HTTPConstants.METHOD.GET)) {
+            response.setCode(C400);
+            response.setData("Неверный тип запроса. Используйте GET запрос.");
+            return;
+        } else if ((cmd.equals(COMMANDS.PUSH)) && !method.equals(HTTPConstants.METHOD.POST) && !method.equals(HTTPConstants.METHOD.PUT)) {
+            response.setCode(C400);
+            response.setData("Неверный тип запроса. Используйте POST или PUT запрос.");
+            return;
+        }
+
+        //Вызываем обработку с учетом в метриках, команды не для таблицы (create, delete...) получат 400
+        Metrics.Operation operation = operation(table.getName(), cmd);
+        if (operation == null) {
+            invokeTableCmd(response, table, cmd, params, data);
+            return;
+        }
+        long lockWait = LockWait.total();
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            invokeTableCmd(response, table, cmd, params, data);
+            error = response.getCode() != HTTPConstants.CODE.C200;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            operation.record(nanos, LockWait.total() - lockWait, error);
+        }
+    }
+
+    /**
+     * Учет команды таблицы, создается при первом обращении.
+     *
+     * @param tableName Имя таблицы.
+     * @param cmd       Команда.
+     * @return Учет команды или {@code null}, если команда не относится к таблице (не из TABLE_COMMANDS).
+     */
+    Metrics.Operation operation(String tableName, COMMANDS cmd) {
+        Metrics.Operation[] operations = mOperations.get(tableName);
+        if (operations == null) {
+            operations = new Metrics.Operation[COMMANDS.values().length];
+            for (COMMANDS c : TABLE_COMMANDS) {
+                operations[c.ordinal()] = new Metrics.Operation();
+            }
+            Metrics.Operation[] previous = mOperations.putIfAbsent(tableName, operations);
+            if (previous != null) {
+                operations = previous;
+            }
+        }
+        return operations[cmd.ordinal()];
+    }
+
     /**
      * Обработка команды.
      *
@@ -341,15 +638,22 @@ public class VTSModule extends HTTPModule {
      * @param data     POST-body.
      */
     private void invokeTableCmd(Response response, Table table, COMMANDS cmd, HashMap<String, String> params, String data) {
+        Integer count = HTTPConstants.getValue(params, Table.PARAMS.COUNT.toString(), (Integer) null);
         switch (cmd) {
             case GET:
-                response.setData(table.get(params));
+                response.setData(count == null ? table.get(params) : joinRows(table.get(params, count)));
                 break;
             case POP:
-                response.setData(table.pop(params));
+                response.setData(count == null ? table.pop(params) : joinRows(table.pop(params, count)));
+                break;
+            case FIND:
+                response.setData(table.find(params));
                 break;
             case PUSH:
-                response.setData(table.push(params, data));
+                //Тело из нескольких строк вставляется пакетом только без col: ячейка сохраняется как есть, с переводами строк
+                boolean rows = params.get(Table.PARAMS.COL.toString()) == null && data != null && data.indexOf('\n') >= 0;
+                response.setData(rows ? table.pushRows(params, data) : table.push(params, data));
+                pushed(table.getName());
                 break;
             default:
                 response.setData("Команда не найдена<br/><br/>" + getTableDescription());
@@ -358,6 +662,23 @@ public class VTSModule extends HTTPModule {
         }
     }
 
+    /**
+     * Ответ пакетной команды: строки через перевод строки.
+     *
+     * @param rows Строки.
+     * @return Ответ.
+     */
+    private static String joinRows(List<String> rows) {
+        StringBuilder sb = new StringBuilder();
+        for (String row : rows) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(row);
+        }
+        return sb.toString();
+    }
+
     /**
      * Описание таблицы.
      *
@@ -374,10 +695,21 @@ public class VTSModule extends HTTPModule {
                 space(2, "[delimiter], если не указан, используется '" + Table.DEFAULT_DELIMITER + "'<br/>") +
                 space(1, "pop - забрать строку/ячейку из таблицы с удалением строки. Если забирается последний элемент, строка будет удалена в любом случае. Параметры: см. get, а так же:<br/>") +
                 space(2, "[deleterow] -  удалить целую строку, иначе только указанную ячейку. По умолчанию - true<br/>") +
-                space(1, "push - вставить строку в таблицу. Значение передаётся в POST Body. Параметры:<br/>") +
+                space(2, "[client] - для get: идентификатор клиента (виртуального пользователя) со своим курсором, общий курсор не сдвигается<br/>") +
+                space(2, "[slices] - для get с client: таблица делится на slices частей, каждому новому клиенту по порядку достается своя часть (строки k, k + slices, ...), части не пересекаются<br/>") +
+                space(2, "[key] - для get: строка по ключу, для одного ключа всегда одна и та же строка, пока не меняется размер таблицы<br/>") +
+                space(2, "[count] - для get и pop: вернуть сразу несколько строк/ячеек (через перевод строки) за одну блокировку таблицы, не больше " + Table.MAX_COUNT + ". get идет по кругу, pop отдает сколько есть, если строк меньше<br/>") +
+                space(2, "[wait] - для pop: если таблица пуста, ждать вставки до wait мс (не больше " + PopWaiters.MAX_WAIT + "). Ожидающие получают строки в порядке прихода. " + waitThreadNote() + "<br/>") +
+                space(1, "push - вставить строку в таблицу. Значение передаётся в POST Body, без col несколько строк через перевод строки вставляются подряд одним пакетом (с col значение ячейки сохраняется целиком). Параметры:<br/>") +
                 space(2, "[row], при указании - вставить перед указанной позицией, иначе - перед текущей<br/>") +
                 space(2, "[col], вставить новую ячейку перед указанной позицией, если значение не указано - в конец<br/>") +
                 space(2, "[delimiter], если не указан, используется '" + Table.DEFAULT_DELIMITER + "'<br/>") +
+                space(1, "find - найти строку по значению столбца с индексом (см. index при создании таблицы). Параметры:<br/>") +
+                space(2, "col, столбец с индексом<br/>") +
+                space(2, "value, искомое значение<br/>") +
+                space(2, "[take], true - забрать найденную строку из таблицы<br/>") +
+                space(2, "[result], если указан - вернуть только эту ячейку найденной строки<br/>") +
+                space(2, "[delimiter], если не указан, используется '" + Table.DEFAULT_DELIMITER + "'<br/>") +
                 //space(2, "")+
 
                 "Список имеющихся таблиц:<br/>" +
@@ -387,6 +719,19 @@ public class VTSModule extends HTTPModule {
         //space(, "<br/>")
     }
 
+    /**
+     * Справка о потоке на время ожидания pop с wait для текущего движка.
+     *
+     * @return Описание.
+     */
+    private String waitThreadNote() {
+        if (mEngine == HTTPConstants.ENGINE.NIO) {
+            return "Ожидание не занимает поток сервера";
+        }
+        return "Движок " + mEngine + ": на время ожидания занят поток соединения (в режиме pool - поток пула), "
+                + "поэтому ожидающих должно быть заметно меньше -threads; для долгих ожиданий используйте -engine " + HTTPConstants.ENGINE.NIO;
+    }
+
     /**
      * Возвращает список имен таблиц.
      *
@@ -394,7 +739,7 @@ public class VTSModule extends HTTPModule {
      */
     private String getTablesName(int level) {
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, Table> t : mTables.entrySet()) {
+        for (Map.Entry<String, Table> t : mTables.snapshot().entrySet()) {
             sb.append(space(level, t.getValue().getName() + " - " + t.getValue().size() + " строк<br/>"));
         }
         return sb.toString();
@@ -407,17 +752,96 @@ public class VTSModule extends HTTPModule {
      */
     @Override
     public String getModuleDescription() {
-        return "/" + URLS.VTS + " - VTSModule - сервер виртуальных таблиц.";
+        return "/" + URLS.VTS + " - VTSModule - сервер виртуальных таблиц." +
+                (mBinaryPort > 0 ? " Бинарный протокол на порту " + mBinaryPort + "." : "");
     }
 
     /**
      * Регистрация URL.
      *
-     * @param requests Карта запросов и модулей.
+     * @param router Маршрутизатор сервера.
      */
     @Override
-    public void registerUrls(HashMap<String, HTTPModule> requests) {
-        requests.put(URLS.VTS.toString(), this);
+    public void registerUrls(Router router) {
+        router.add(URLS.VTS.toString(), this);
+        //Таблица: имя на следующем после table уровне, ссылка на таблицу берется одним поиском в реестре.
+        //Асинхронный путь: pop с wait ждет строки (на движке nio - не занимая поток сервера), остальные команды отвечают сразу
+        router.add(URLS.VTS + "/" + URLS.TABLE + "/" + Router.ANY, new Router.AsyncHandler() {
+            @Override
+            public CompletionStage<Response> handle(HTTPRequest request, int level) {
+                HashMap<String, String> params = request.getParams();
+                Integer wait = HTTPConstants.getValue(params, Table.PARAMS.WAIT.toString(), (Integer) null);
+                if (wait != null && request.getMethod() == HTTPConstants.METHOD.GET
+                        && COMMANDS.parse(String.valueOf(params.get(Table.PARAMS.CMD.toString()))) == COMMANDS.POP) {
+                    return mWaiters.pop(request.getUrls()[level - 1], params, wait);
+                }
+                Response response = new Response(HTTPConstants.CODE.C200, null);
+                invokeTable(response, request.getMethod(), request.getUrls(), level - 1, params, request.getData());
+                return CompletableFuture.completedFuture(response);
+            }
+        });
+        router.add(URLS.VTS + "/" + URLS.MANAGER, new Router.Handler() {
+            @Override
+            public void handle(Response response, Socket socket, HTTPRequest request, int level) {
+                invokeManager(response, request.getMethod(), request.getUrls(), level, request.getParams(), request.getData());
+            }
+        });
+    }
+
+    /**
+     * Метрики таблиц: строки и клиенты, а также количество, ошибки, ожидание блокировок и длительность по командам.
+     */
+    private class TableMetrics implements Metrics.Source {
+        @Override
+        public void write(StringBuilder sb) {
+            TreeMap<String, Table> tables = mTables.snapshot();
+            TreeMap<String, Metrics.Operation[]> operations = new TreeMap<>(mOperations);
+
+            Metrics.header(sb, "vts_table_rows", "Строк в таблице", "gauge");
+            for (Map.Entry<String, Table> t : tables.entrySet()) {
+                Metrics.label(sb.append("vts_table_rows{table=\""), t.getKey()).append("\"} ").append(t.getValue().size()).append('\n');
+            }
+            Metrics.header(sb, "vts_table_clients", "Клиентов с курсорами (параметр client)", "gauge");
+            for (Map.Entry<String, Table> t : tables.entrySet()) {
+                Metrics.label(sb.append("vts_table_clients{table=\""), t.getKey()).append("\"} ").append(t.getValue().getClientCount()).append('\n');
+            }
+
+            Metrics.header(sb, "vts_table_requests_total", "Команды таблицы", "counter");
+            for (Map.Entry<String, Metrics.Operation[]> o : operations.entrySet()) {
+                for (COMMANDS c : TABLE_COMMANDS) {
+                    sb.append("vts_table_requests_total{").append(labels(o.getKey(), c)).append("} ").append(o.getValue()[c.ordinal()].getCount()).append('\n');
+                }
+            }
+            Metrics.header(sb, "vts_table_errors_total", "Команды таблицы с ошибкой (ответ не 200)", "counter");
+            for (Map.Entry<String, Metrics.Operation[]> o : operations.entrySet()) {
+                for (COMMANDS c : TABLE_COMMANDS) {
+                    sb.append("vts_table_errors_total{").append(labels(o.getKey(), c)).append("} ").append(o.getValue()[c.ordinal()].getErrors()).append('\n');
+                }
+            }
+            Metrics.header(sb, "vts_table_lock_wait_seconds_total", "Ожидание блокировок при выполнении команд (учитывается с аргументом -lockwait)", "counter");
+            for (Map.Entry<String, Metrics.Operation[]> o : operations.entrySet()) {
+                for (COMMANDS c : TABLE_COMMANDS) {
+                    sb.append("vts_table_lock_wait_seconds_total{").append(labels(o.getKey(), c)).append("} ").append(Metrics.seconds(o.getValue()[c.ordinal()].getLockWait())).append('\n');
+                }
+            }
+            Metrics.header(sb, "vts_table_request_duration_seconds", "Длительность выполнения команд таблицы", "histogram");
+            for (Map.Entry<String, Metrics.Operation[]> o : operations.entrySet()) {
+                for (COMMANDS c : TABLE_COMMANDS) {
+                    o.getValue()[c.ordinal()].writeHistogram(sb, "vts_table_request_duration_seconds", labels(o.getKey(), c));
+                }
+            }
+        }
+
+        /**
+         * Метки таблицы и команды.
+         *
+         * @param table Таблица.
+         * @param cmd   Команда.
+         * @return Метки.
+         */
+        private String labels(String table, COMMANDS cmd) {
+            return Metrics.label(new StringBuilder("table=\""), table).append("\",cmd=\"").append(cmd).append('"').toString();
+        }
     }
 
     /**
@@ -425,9 +849,19 @@ public class VTSModule extends HTTPModule {
      */
     private enum ArgCommands {
         MODULE_CMD("-vts"),
+        BINARY_PORT("-vtsbin"),
+        BINARY_CONNECTIONS("-vtsbinconnections"),
         NAME("name"),
         FILENAME("filename"),
-        DELIMITER("delimiter");
+        DELIMITER("delimiter"),
+        TYPE("type"),
+        STORAGE("storage"),
+        FOLLOW("follow"),
+        JOURNAL("journal"),
+        SNAPSHOTINTERVAL("snapshotinterval"),
+        SYNC("sync"),
+        INDEX("index"),
+        SHARDS("shards");
 
         private final String mValue;
 
@@ -455,6 +889,21 @@ public class VTSModule extends HTTPModule {
             mValue = value;
         }
 
+        /**
+         * Разбор уровня URL.
+         *
+         * @param value Уровень URL (в нижнем регистре).
+         * @return Значение или {@code null}, если такого нет.
+         */
+        static URLS parse(String value) {
+            for (URLS url : values()) {
+                if (url.mValue.equals(value)) {
+                    return url;
+                }
+            }
+            return null;
+        }
+
         @Override
         public String toString() {
             return mValue;
@@ -464,20 +913,41 @@ public class VTSModule extends HTTPModule {
     /**
      * Команды.
      */
-    private enum COMMANDS {
+    enum COMMANDS {
         GET("get"),
         POP("pop"),
         PUSH("push"),
+        FIND("find"),
         CREATE("create"),
         DELETE("delete"),
         RELOAD("reload");
 
         private final String mValue;
 
+        private static final HashMap<String, COMMANDS> BY_VALUE = new HashMap<>(); //Команды по имени
+
+        static {
+            for (COMMANDS c : values()) {
+                BY_VALUE.put(c.mValue, c);
+            }
+        }
+
         COMMANDS(String value) {
             mValue = value;
         }
 
+        /**
+         * Разбор команды без исключений. Парсер переводит в нижний регистр только имена параметров, но не значения,
+         * поэтому сначала ищется точное совпадение (обычный случай), затем без учета регистра.
+         *
+         * @param value Имя команды.
+         * @return Команда или {@code null}, если такой нет.
+         */
+        static COMMANDS parse(String value) {
+            COMMANDS cmd = BY_VALUE.get(value);
+            return cmd != null ? cmd : BY_VALUE.get(value.toLowerCase(Locale.ROOT));
+        }
+
         @Override
         public String toString() {
             return mValue;
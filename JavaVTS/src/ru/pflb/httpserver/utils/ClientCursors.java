@@ -0,0 +1,71 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Курсоры клиентов таблицы (виртуальных пользователей): у каждого клиента свой счетчик для перебора по кругу
+ * и порядковый номер, по которому клиенту достается своя часть строк. Клиенты живут в {@link ConcurrentHashMap},
+ * курсоры - атомарные счетчики, поэтому общей блокировки нет и десятки тысяч клиентов друг другу не мешают.
+ */
+final class ClientCursors {
+    private final ConcurrentHashMap<String, Client> mClients = new ConcurrentHashMap<>(); //Клиенты по идентификатору
+    private final AtomicInteger mNumbers = new AtomicInteger(); //Счетчик порядковых номеров клиентов
+    private final Function<String, Client> mFactory = new Function<String, Client>() {
+        @Override
+        public Client apply(String id) {
+            return new Client(mNumbers.getAndIncrement());
+        }
+    };
+
+    /**
+     * Клиент по идентификатору, новый получает следующий порядковый номер.
+     *
+     * @param id Идентификатор клиента.
+     * @return Клиент.
+     */
+    Client get(String id) {
+        Client client = mClients.get(id);
+        return client != null ? client : mClients.computeIfAbsent(id, mFactory);
+    }
+
+    /**
+     * Количество клиентов.
+     *
+     * @return Количество клиентов.
+     */
+    int size() {
+        return mClients.size();
+    }
+
+    /**
+     * Клиент таблицы.
+     */
+    static final class Client {
+        private final int mNumber; //Порядковый номер (по первому обращению)
+        private final AtomicInteger mCursor = new AtomicInteger(); //Курсор клиента
+
+        private Client(int number) {
+            mNumber = number;
+        }
+
+        /**
+         * Порядковый номер клиента.
+         *
+         * @return Номер, начиная с 0.
+         */
+        int number() {
+            return mNumber;
+        }
+
+        /**
+         * Следующее значение курсора.
+         *
+         * @return Неотрицательное значение курсора.
+         */
+        int next() {
+            return mCursor.getAndIncrement() & Integer.MAX_VALUE;
+        }
+    }
+}
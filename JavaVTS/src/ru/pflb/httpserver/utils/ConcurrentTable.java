@@ -0,0 +1,576 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Таблица без блокировок на чтении и заборе строк.
+ * Строки лежат в неизменяемом снимке (массив + длина), get сдвигает атомарный курсор по снимку, pop забирает строку
+ * через CAS по ее флагу. Забранные строки остаются в снимке до уплотнения, которое выполняет один поток, когда их
+ * становится много. Вставка и изменение ячеек идут под блокировкой записи: вставка в конец дописывает массив на месте
+ * (читатели старого снимка не видят новые элементы за своей длиной), вставка в середину копирует массив.
+ * Явный номер строки (row) - номер среди живых строк: get и одиночный pop отсчитывают его по снимку без блокировок,
+ * пропуская еще не убранные забранные строки, запись и пачка pop по номеру строки сначала уплотняют снимок.
+ */
+public class ConcurrentTable extends Table {
+    private static final int MIN_COMPACT_DEAD = 1024; //Минимум забранных строк для уплотнения
+
+    private final Object mWriteLock = new Object(); //Блокировка записи (вставка, уплотнение, очистка)
+    private final AtomicInteger mCursor = new AtomicInteger(); //Курсор для перебора по кругу
+    //Забранные строки в текущем снимке. Забор учитывается уже после CAS, поэтому уплотнение и очистка
+    //вычитают убранные забранные строки, а не записывают новое значение поверх еще не учтенных
+    private final AtomicInteger mDead = new AtomicInteger();
+    private final AtomicBoolean mCompacting = new AtomicBoolean(); //Уплотнение уже выполняется
+    private volatile Snapshot mSnapshot = new Snapshot(new Row[16], 0); //Текущий снимок
+
+    /**
+     * Конструктор.
+     *
+     * @param params Параметры таблицы
+     */
+    public ConcurrentTable(TableParams params) {
+        super(params);
+    }
+
+    @Override
+    protected void addRows(List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            Snapshot s = mSnapshot;
+            Row[] array = ensureCapacity(s, s.mLength + rows.size());
+            int length = s.mLength;
+            for (String[] row : rows) {
+                array[length++] = new Row(row);
+            }
+            mSnapshot = new Snapshot(array, length);
+        }
+    }
+
+    @Override
+    protected void clear() {
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            Snapshot s = mSnapshot;
+            mSnapshot = new Snapshot(new Row[16], 0);
+            mDead.addAndGet(-claimed(s.mRows, s.mLength));
+            mCursor.set(0);
+        }
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, mSnapshot.mLength - mDead.get());
+    }
+
+    /**
+     * Позиция курсора в снимке.
+     *
+     * @return Позиция курсора.
+     */
+    @Override
+    public int getCursor() {
+        int length = mSnapshot.mLength;
+        return length == 0 ? 0 : (mCursor.get() & Integer.MAX_VALUE) % length;
+    }
+
+    @Override
+    public void setCursor(int cursor) {
+        int length = mSnapshot.mLength;
+        mCursor.set(length == 0 ? 0 : Math.abs(cursor % length));
+    }
+
+    /**
+     * Получение строки/ячейки.
+     *
+     * @param row       Номер живой строки, {@code null} - следующая по кругу живая строка.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String get(Integer row, Integer col, String delimiter) {
+        Snapshot s = mSnapshot;
+        Row res = row == null ? next(s) : live(s, livePosition(s, row));
+        if (col == null) {
+            return createStringFromRow(res.mCells, delimiter);
+        }
+        checkColumn(res.mCells, col);
+        return res.mCells[col];
+    }
+
+    /**
+     * Получение нескольких строк/ячеек. Чтение идет без блокировок, по снимку.
+     *
+     * @param row       Номер первой живой строки, {@code null} - следующие по кругу живые строки.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> get(Integer row, Integer col, String delimiter, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        if (row == null) {
+            for (int i = 0; i < count; i++) {
+                res.add(get(null, col, delimiter));
+            }
+            return res;
+        }
+        //Следующие живые строки идут за первой, забранные пропускаются
+        Snapshot s = mSnapshot;
+        int pos = livePosition(s, row);
+        for (int i = 0; i < count; i++, pos++) {
+            while (pos < s.mLength && s.mRows[pos].isClaimed()) {
+                pos++;
+            }
+            if (pos >= s.mLength) {
+                throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + (row + i) + " из " + size());
+            }
+            Row r = s.mRows[pos];
+            if (col == null) {
+                res.add(createStringFromRow(r.mCells, delimiter));
+            } else {
+                checkColumn(r.mCells, col);
+                res.add(r.mCells[col]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Забор нескольких строк/ячеек. Если строк меньше, чем запрошено, забираются все.
+     * Без номера строки каждая строка забирается своим CAS, с номером - подряд идущие позиции под блокировкой записи,
+     * чтобы уплотнение не сдвинуло позиции посреди пачки.
+     *
+     * @param row       Номер первой живой строки, {@code null} - следующие по кругу живые строки.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> pop(Integer row, Integer col, String delimiter, boolean deleteRow, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        if (row == null || col != null && !deleteRow) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    res.add(pop(row, col, delimiter, deleteRow));
+                } catch (IllegalArgumentException e) {
+                    if (res.isEmpty()) {
+                        throw e;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+        int claimed = 0;
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            compactForRow(row);
+            Snapshot s = mSnapshot;
+            live(s, row);
+            for (int pos = row; pos < s.mLength && res.size() < count; pos++) {
+                Row r = s.mRows[pos];
+                if (col != null && col >= r.mCells.length) {
+                    if (res.isEmpty()) {
+                        checkColumn(r.mCells, col);
+                    }
+                    break;
+                }
+                if (r.claim()) {
+                    claimed++;
+                    res.add(col == null ? createStringFromRow(r.mCells, delimiter) : r.mCells[col]);
+                }
+            }
+        }
+        for (int i = 0; i < claimed; i++) {
+            onClaimed();
+        }
+        return res;
+    }
+
+    /**
+     * Забор из таблицы.
+     *
+     * @param row       Номер живой строки, {@code null} - следующая по кругу живая строка.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String pop(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        if (col != null && !deleteRow) {
+            return popCell(row, col, delimiter);
+        }
+        long lockStart = 0; //Начало повторов CAS
+        while (true) {
+            Snapshot s = mSnapshot;
+            Row res = row == null ? next(s) : live(s, livePosition(s, row));
+            if (col != null) {
+                checkColumn(res.mCells, col);
+            }
+            if (res.claim()) {
+                LockWait.acquired(lockStart);
+                onClaimed();
+                return col == null ? createStringFromRow(res.mCells, delimiter) : res.mCells[col];
+            }
+            //Строку забрал другой поток
+            if (row != null) {
+                throw new IllegalArgumentException("Строка " + row + " уже забрана");
+            }
+            if (lockStart == 0) {
+                lockStart = LockWait.start();
+            }
+        }
+    }
+
+    /**
+     * Забор одной ячейки: строка заменяется копией без ячейки.
+     *
+     * @param row       Позиция в снимке.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @return Ячейка или вся строка, если ячейка была последней.
+     */
+    private String popCell(Integer row, int col, String delimiter) {
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            compactForRow(row);
+            Snapshot s = mSnapshot;
+            int pos = row == null ? position(s, next(s)) : row;
+            Row res = live(s, pos);
+            checkColumn(res.mCells, col);
+            if (!res.claim()) {
+                throw new IllegalArgumentException("Строка " + pos + " уже забрана");
+            }
+            if (res.mCells.length <= 1) {
+                onClaimed();
+                return createStringFromRow(res.mCells, delimiter);
+            }
+            s.mRows[pos] = new Row(removeCell(res.mCells, col));
+            return res.mCells[col];
+        }
+    }
+
+    /**
+     * Загрузить в таблицу.
+     *
+     * @param row       Позиция в снимке, {@code null} - в конец.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param data      Данные.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, Integer col, String delimiter, String data) {
+        String[] cells = col == null ? createRowFromString(data, delimiter) : null;
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            compactForRow(row);
+            Snapshot s = mSnapshot;
+            if (col != null) {
+                int pos = row == null ? position(s, next(s)) : row;
+                Row res = live(s, pos);
+                if (!res.claim()) {
+                    throw new IllegalArgumentException("Строка " + pos + " уже забрана");
+                }
+                s.mRows[pos] = new Row(insertCell(res.mCells, col, data));
+                return "OK";
+            }
+            if (row == null || row == s.mLength) {
+                Row[] array = ensureCapacity(s, s.mLength + 1);
+                array[s.mLength] = new Row(cells);
+                mSnapshot = new Snapshot(array, s.mLength + 1);
+            } else {
+                if (row > s.mLength || row < 0) {
+                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + s.mLength);
+                }
+                Row[] array = new Row[Math.max(16, s.mLength + 1 + (s.mLength >> 1))];
+                System.arraycopy(s.mRows, 0, array, 0, row);
+                array[row] = new Row(cells);
+                System.arraycopy(s.mRows, row, array, row + 1, s.mLength - row);
+                mSnapshot = new Snapshot(array, s.mLength + 1);
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Вставка нескольких строк подряд одной заменой снимка.
+     *
+     * @param row  Позиция первой строки, {@code null} - в конец.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (mWriteLock) {
+            LockWait.acquired(lockStart);
+            compactForRow(row);
+            Snapshot s = mSnapshot;
+            if (row == null || row == s.mLength) {
+                Row[] array = ensureCapacity(s, s.mLength + rows.size());
+                int length = s.mLength;
+                for (String[] cells : rows) {
+                    array[length++] = new Row(cells);
+                }
+                mSnapshot = new Snapshot(array, length);
+            } else {
+                if (row > s.mLength || row < 0) {
+                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + s.mLength);
+                }
+                Row[] array = new Row[Math.max(16, s.mLength + rows.size() + (s.mLength >> 1))];
+                System.arraycopy(s.mRows, 0, array, 0, row);
+                for (int i = 0; i < rows.size(); i++) {
+                    array[row + i] = new Row(rows.get(i));
+                }
+                System.arraycopy(s.mRows, row, array, row + rows.size(), s.mLength - row);
+                mSnapshot = new Snapshot(array, s.mLength + rows.size());
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Следующая живая строка по кругу.
+     *
+     * @param s Снимок.
+     * @return Строка.
+     */
+    private Row next(Snapshot s) {
+        int length = s.mLength;
+        for (int probe = 0; probe < length; probe++) {
+            Row r = s.mRows[(mCursor.getAndIncrement() & Integer.MAX_VALUE) % length];
+            if (r != null && !r.isClaimed()) {
+                return r;
+            }
+        }
+        throw new IllegalArgumentException("Таблица пуста");
+    }
+
+    /**
+     * Живая строка из части снимка: забранные строки пропускаются в пределах части.
+     *
+     * @param slice   Часть.
+     * @param slices  Количество частей.
+     * @param counter Счетчик.
+     * @return Строка.
+     */
+    @Override
+    protected String[] getSliceRow(int slice, int slices, int counter) {
+        Snapshot s = mSnapshot;
+        int count = sliceSize(s.mLength, slice, slices);
+        for (int probe = 0; probe < count; probe++) {
+            Row r = s.mRows[sliceRow(s.mLength, slice, slices, (counter + probe) & Integer.MAX_VALUE)];
+            if (r != null && !r.isClaimed()) {
+                return r.mCells;
+            }
+        }
+        throw new IllegalArgumentException(size() == 0 ? "Таблица пуста" : "В части " + slice + " из " + slices + " нет строк");
+    }
+
+    /**
+     * Живая строка по позиции.
+     *
+     * @param s   Снимок.
+     * @param row Позиция.
+     * @return Строка.
+     */
+    private static Row live(Snapshot s, int row) {
+        if (row >= s.mLength || row < 0) {
+            throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + s.mLength);
+        }
+        Row r = s.mRows[row];
+        if (r.isClaimed()) {
+            throw new IllegalArgumentException("Строка " + row + " уже забрана");
+        }
+        return r;
+    }
+
+    /**
+     * Позиция живой строки с заданным номером: без забранных строк номер и есть позиция,
+     * иначе забранные строки до нее пропускаются.
+     *
+     * @param s   Снимок.
+     * @param row Номер среди живых строк.
+     * @return Позиция в снимке.
+     */
+    private int livePosition(Snapshot s, int row) {
+        if (row < 0 || row >= s.mLength) {
+            throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + size());
+        }
+        if (mDead.get() == 0) {
+            return row;
+        }
+        int live = 0;
+        for (int pos = 0; pos < s.mLength; pos++) {
+            if (!s.mRows[pos].isClaimed() && live++ == row) {
+                return pos;
+            }
+        }
+        throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + size());
+    }
+
+    /**
+     * Позиция строки в снимке (под блокировкой записи).
+     *
+     * @param s   Снимок.
+     * @param row Строка.
+     * @return Позиция.
+     */
+    private static int position(Snapshot s, Row row) {
+        for (int i = 0; i < s.mLength; i++) {
+            if (s.mRows[i] == row) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Строка не найдена в снимке");
+    }
+
+    /**
+     * Массив снимка с местом под нужное количество строк.
+     * Дописывать в общий массив можно: строки за длиной старого снимка его читателям не видны.
+     *
+     * @param s        Снимок.
+     * @param capacity Нужная емкость.
+     * @return Массив (тот же или новый).
+     */
+    private static Row[] ensureCapacity(Snapshot s, int capacity) {
+        if (s.mRows.length >= capacity) {
+            return s.mRows;
+        }
+        Row[] array = new Row[Math.max(capacity, s.mRows.length + (s.mRows.length >> 1))];
+        System.arraycopy(s.mRows, 0, array, 0, s.mLength);
+        return array;
+    }
+
+    /**
+     * Учет забранной строки и уплотнение снимка, если забранных стало много.
+     */
+    private void onClaimed() {
+        int dead = mDead.incrementAndGet();
+        Snapshot s = mSnapshot;
+        if (dead < MIN_COMPACT_DEAD || dead < s.mLength >> 2 || !mCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long lockStart = LockWait.start();
+            synchronized (mWriteLock) {
+                LockWait.acquired(lockStart);
+                compactLocked();
+            }
+        } finally {
+            mCompacting.set(false);
+        }
+    }
+
+    /**
+     * Уплотнение снимка: новый массив только из живых строк (под блокировкой записи).
+     * Курсор переносится на ту же строку в новом массиве, иначе перебор по кругу пропустил бы столько живых строк,
+     * сколько забранных было до курсора.
+     */
+    private void compactLocked() {
+        Snapshot s = mSnapshot;
+        Row[] array = new Row[Math.max(16, s.mLength - mDead.get() + (s.mLength >> 3))];
+        int cursor = s.mLength == 0 ? 0 : (mCursor.get() & Integer.MAX_VALUE) % s.mLength;
+        int newCursor = 0;
+        int length = 0;
+        for (int i = 0; i < s.mLength; i++) {
+            Row r = s.mRows[i];
+            if (i == cursor) {
+                newCursor = length;
+            }
+            if (!r.isClaimed()) {
+                if (length == array.length) {
+                    array = Arrays.copyOf(array, array.length * 2);
+                }
+                array[length++] = r;
+            }
+        }
+        mSnapshot = new Snapshot(array, length);
+        mCursor.set(newCursor);
+        //Строки, забранные во время копирования, попали в новый снимок и остаются в счетчике
+        mDead.addAndGet(length - s.mLength);
+    }
+
+    /**
+     * Количество забранных строк в массиве.
+     *
+     * @param rows   Строки.
+     * @param length Количество строк.
+     * @return Количество забранных.
+     */
+    private static int claimed(Row[] rows, int length) {
+        int res = 0;
+        for (int i = 0; i < length; i++) {
+            if (rows[i].isClaimed()) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Уплотнение перед записью по явному номеру строки, чтобы номер совпадал с номером среди живых строк.
+     *
+     * @param row Номер строки из запроса.
+     */
+    private void compactForRow(Integer row) {
+        if (row != null && mDead.get() > 0) {
+            compactLocked();
+        }
+    }
+
+    /**
+     * Снимок строк: массив и количество используемых элементов.
+     */
+    private static final class Snapshot {
+        private final Row[] mRows; //Строки
+        private final int mLength; //Количество строк в снимке
+
+        private Snapshot(Row[] rows, int length) {
+            mRows = rows;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Строка с флагом забора.
+     */
+    private static final class Row {
+        private static final AtomicIntegerFieldUpdater<Row> CLAIMED = AtomicIntegerFieldUpdater.newUpdater(Row.class, "mClaimed");
+
+        private final String[] mCells; //Ячейки
+        private volatile int mClaimed = 0; //1, если строка забрана
+
+        private Row(String[] cells) {
+            mCells = cells;
+        }
+
+        private boolean isClaimed() {
+            return mClaimed != 0;
+        }
+
+        /**
+         * Атомарный забор строки.
+         *
+         * @return {@code true}, если строку забрал текущий поток.
+         */
+        private boolean claim() {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Разбор CSV по RFC 4180: разделитель - обычная строка (не регулярное выражение), поле в кавычках может содержать
+ * разделитель и переводы строк, "" внутри кавычек - кавычка, пустые ячейки в конце строки сохраняются.
+ * Загрузка файла потоковая: файл читается кусками, граница куска ставится на перевод строки вне кавычек,
+ * куски разбираются параллельно в общем пуле ForkJoin и отдаются таблице по порядку.
+ */
+final class CsvParser {
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024; //Размер куска файла
+    private static final char QUOTE = '"';
+
+    private CsvParser() {
+    }
+
+    /**
+     * Разбор одной строки таблицы. Переводы строк здесь обычные символы.
+     *
+     * @param data      Строка.
+     * @param delimiter Разделитель.
+     * @return Ячейки.
+     */
+    static String[] parseLine(String data, String delimiter) {
+        ArrayList<String[]> rows = new ArrayList<>(1);
+        parse(data, delimiter, false, rows);
+        return rows.get(0);
+    }
+
+    /**
+     * Разбор текста из нескольких строк таблицы (\n или \r\n). После последнего перевода строки пустая строка не добавляется.
+     *
+     * @param text      Текст.
+     * @param delimiter Разделитель.
+     * @return Строки таблицы.
+     */
+    static List<String[]> parseRows(String text, String delimiter) {
+        ArrayList<String[]> rows = new ArrayList<>();
+        if (!text.isEmpty()) {
+            parse(text, delimiter, true, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Потоковая загрузка файла в таблицу.
+     *
+     * @param file      Файл.
+     * @param delimiter Разделитель.
+     * @param charset   Кодировка файла.
+     * @param table     Таблица, строки добавляются через {@link Table#addRows(List)} по порядку.
+     * @throws IOException При ошибке чтения или разбора.
+     */
+    static void load(File file, String delimiter, Charset charset, Table table) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            load(in, delimiter, charset, table, false);
+        }
+    }
+
+    /**
+     * Потоковая загрузка из потока в таблицу.
+     *
+     * @param in         Поток.
+     * @param delimiter  Разделитель.
+     * @param charset    Кодировка.
+     * @param table      Таблица, строки добавляются через {@link Table#addRows(List)} по порядку.
+     * @param wholeLines Загружать только строки, завершенные переводом строки (файл может дописываться).
+     * @return Количество загруженных байт.
+     * @throws IOException При ошибке чтения или разбора.
+     */
+    static long load(InputStream in, String delimiter, Charset charset, Table table, boolean wholeLines) throws IOException {
+        checkDelimiter(delimiter);
+        byte[] delim = delimiter.getBytes(charset);
+        int maxPending = Math.max(1, ForkJoinPool.commonPool().getParallelism()) * 2;
+        ArrayDeque<Future<List<String[]>>> pending = new ArrayDeque<>();
+        long consumed = 0;
+        try {
+            byte[] buf = new byte[CHUNK_SIZE];
+            int limit = 0; //Прочитано в буфер
+            int scanned = 0; //Просмотрено
+            int boundary = 0; //Конец последней целой строки
+            boolean fieldStart = true, quoted = false, quotePending = false; //Состояние просмотра
+            boolean eof = false;
+            while (!eof) {
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+                //Поиск переводов строк вне кавычек. Разделитель из нескольких байт не должен разрываться концом буфера
+                int end = eof ? limit : limit - delim.length + 1;
+                while (scanned < end) {
+                    byte b = buf[scanned++];
+                    if (quoted) {
+                        if (!quotePending) {
+                            quotePending = b == QUOTE;
+                            continue;
+                        }
+                        quotePending = false;
+                        if (b == QUOTE) {
+                            continue;
+                        }
+                        quoted = false;
+                    }
+                    if (b == '\n') {
+                        fieldStart = true;
+                        boundary = scanned;
+                    } else if (fieldStart && b == QUOTE) {
+                        quoted = true;
+                        fieldStart = false;
+                    } else if (b == delim[0] && matches(buf, scanned - 1, limit, delim)) {
+                        fieldStart = true;
+                        scanned += delim.length - 1;
+                    } else {
+                        fieldStart = false;
+                    }
+                }
+                if (eof && !wholeLines) {
+                    boundary = limit;
+                }
+                if (boundary > 0 && (limit == buf.length || eof)) {
+                    pending.add(submit(buf, boundary, delimiter, charset));
+                    consumed += boundary;
+                    byte[] next = new byte[Math.max(CHUNK_SIZE, limit - boundary + 1)];
+                    System.arraycopy(buf, boundary, next, 0, limit - boundary);
+                    buf = next;
+                    limit -= boundary;
+                    scanned -= boundary;
+                    boundary = 0;
+                } else if (limit == buf.length) {
+                    //Строка длиннее куска
+                    byte[] next = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, next, 0, limit);
+                    buf = next;
+                }
+                while (pending.size() > maxPending || (eof && !pending.isEmpty())) {
+                    table.addRows(take(pending.poll()));
+                }
+            }
+        } finally {
+            for (Future<List<String[]>> f : pending) {
+                f.cancel(false);
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Запуск разбора куска.
+     *
+     * @param bytes     Байты.
+     * @param length    Длина куска.
+     * @param delimiter Разделитель.
+     * @param charset   Кодировка.
+     * @return Результат разбора.
+     */
+    private static Future<List<String[]>> submit(final byte[] bytes, final int length, final String delimiter,
+                                                 final Charset charset) {
+        return ForkJoinPool.commonPool().submit(new Callable<List<String[]>>() {
+            @Override
+            public List<String[]> call() {
+                return parseRows(new String(bytes, 0, length, charset), delimiter);
+            }
+        });
+    }
+
+    /**
+     * Ожидание результата разбора куска.
+     *
+     * @param f Результат.
+     * @return Строки.
+     * @throws IOException При ошибке разбора.
+     */
+    private static List<String[]> take(Future<List<String[]>> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Загрузка файла прервана", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Ошибка разбора файла", e.getCause());
+        }
+    }
+
+    /**
+     * Разбор текста.
+     *
+     * @param text      Текст.
+     * @param delimiter Разделитель.
+     * @param records   Перевод строки завершает строку таблицы.
+     * @param rows      Куда добавлять строки.
+     */
+    private static void parse(String text, String delimiter, boolean records, List<String[]> rows) {
+        checkDelimiter(delimiter);
+        ArrayList<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        int n = text.length();
+        int i = 0;
+        while (true) {
+            //Начало ячейки
+            String value;
+            int start;
+            if (i < n && text.charAt(i) == QUOTE) {
+                cell.setLength(0);
+                i++;
+                while (i < n) {
+                    char c = text.charAt(i++);
+                    if (c != QUOTE) {
+                        cell.append(c);
+                    } else if (i < n && text.charAt(i) == QUOTE) {
+                        cell.append(QUOTE);
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                //Все после закрывающей кавычки до разделителя берется как есть
+                start = i;
+                i = fieldEnd(text, i, delimiter, records);
+                cell.append(text, start, trimCr(text, start, i, records));
+                value = cell.toString();
+            } else {
+                start = i;
+                i = fieldEnd(text, i, delimiter, records);
+                value = text.substring(start, trimCr(text, start, i, records));
+            }
+            cells.add(value);
+            if (i < n && text.charAt(i) != '\n') {
+                i += delimiter.length();
+                continue;
+            }
+            rows.add(cells.toArray(new String[cells.size()]));
+            cells.clear();
+            if (i >= n || ++i >= n) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Конец ячейки без кавычек.
+     *
+     * @param text      Текст.
+     * @param i         Начало.
+     * @param delimiter Разделитель.
+     * @param records   Перевод строки завершает строку таблицы.
+     * @return Позиция разделителя, перевода строки или конца текста.
+     */
+    private static int fieldEnd(String text, int i, String delimiter, boolean records) {
+        char d = delimiter.charAt(0);
+        int n = text.length();
+        for (; i < n; i++) {
+            char c = text.charAt(i);
+            if (c == d && (delimiter.length() == 1 || text.startsWith(delimiter, i)) || records && c == '\n') {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Отбрасывание \r перед концом строки таблицы.
+     *
+     * @param text    Текст.
+     * @param start   Начало ячейки.
+     * @param end     Конец ячейки.
+     * @param records Перевод строки завершает строку таблицы.
+     * @return Конец ячейки без \r.
+     */
+    private static int trimCr(String text, int start, int end, boolean records) {
+        if (records && end > start && text.charAt(end - 1) == '\r' && (end == text.length() || text.charAt(end) == '\n')) {
+            return end - 1;
+        }
+        return end;
+    }
+
+    private static boolean matches(byte[] buf, int pos, int limit, byte[] delim) {
+        if (pos + delim.length > limit) {
+            return false;
+        }
+        for (int i = 1; i < delim.length; i++) {
+            if (buf[pos + i] != delim[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkDelimiter(String delimiter) {
+        if (delimiter == null || delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Пустой разделитель");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Хранилище строк в куче: список массивов строк Java.
+ */
+class HeapRowStore implements RowStore {
+    private final ArrayList<String[]> mRows = new ArrayList<>(); //Строки
+
+    @Override
+    public int size() {
+        return mRows.size();
+    }
+
+    @Override
+    public String[] row(int row) {
+        return mRows.get(row);
+    }
+
+    @Override
+    public String format(int row, String delimiter) {
+        return Table.createStringFromRow(mRows.get(row), delimiter);
+    }
+
+    @Override
+    public int width(int row) {
+        return mRows.get(row).length;
+    }
+
+    @Override
+    public String cell(int row, int col) {
+        return mRows.get(row)[col];
+    }
+
+    @Override
+    public void add(int row, String[] cells) {
+        mRows.add(row, cells);
+    }
+
+    @Override
+    public void addAll(List<String[]> rows) {
+        mRows.addAll(rows);
+    }
+
+    @Override
+    public void set(int row, String[] cells) {
+        mRows.set(row, cells);
+    }
+
+    @Override
+    public void remove(int row) {
+        mRows.remove(row);
+    }
+
+    @Override
+    public void clear() {
+        mRows.clear();
+    }
+}
@@ -0,0 +1,14 @@
+package ru.pflb.httpserver.utils;
+
+/**
+ * Таблица с хеш-индексами по столбцам ({@link TableIndex}). Поддерживают таблицы типа list с хранилищем heap и queue.
+ */
+interface Indexed {
+
+    /**
+     * Удаление строки, найденной по индексу. Вызывается под блокировкой таблицы (монитор самой таблицы).
+     *
+     * @param row Строка из индекса.
+     */
+    void removeIndexedRow(TableIndex.Entry row);
+}
@@ -0,0 +1,80 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.List;
+
+/**
+ * Хранилище строк в куче с поддержкой хеш-индексов: строки лежат в {@link RowRing}, который сразу отражает
+ * все изменения строк в {@link TableIndex} и по записи индекса находит номер строки за O(log n).
+ */
+class IndexedRowStore implements RowStore {
+    private final RowRing mRows; //Строки
+
+    /**
+     * Конструктор.
+     *
+     * @param index Индексы.
+     */
+    IndexedRowStore(TableIndex index) {
+        mRows = new RowRing(index);
+    }
+
+    /**
+     * Номер строки, найденной по индексу.
+     *
+     * @param entry Запись индекса.
+     * @return Номер строки.
+     */
+    int position(TableIndex.Entry entry) {
+        return mRows.position(entry);
+    }
+
+    @Override
+    public int size() {
+        return mRows.size();
+    }
+
+    @Override
+    public String[] row(int row) {
+        return mRows.get(row);
+    }
+
+    @Override
+    public String format(int row, String delimiter) {
+        return Table.createStringFromRow(mRows.get(row), delimiter);
+    }
+
+    @Override
+    public int width(int row) {
+        return mRows.get(row).length;
+    }
+
+    @Override
+    public String cell(int row, int col) {
+        return mRows.get(row)[col];
+    }
+
+    @Override
+    public void add(int row, String[] cells) {
+        mRows.insert(row, cells);
+    }
+
+    @Override
+    public void addAll(List<String[]> rows) {
+        mRows.addAll(rows);
+    }
+
+    @Override
+    public void set(int row, String[] cells) {
+        mRows.set(row, cells);
+    }
+
+    @Override
+    public void remove(int row) {
+        mRows.remove(row);
+    }
+
+    @Override
+    public void clear() {
+        mRows.clear();
+    }
+}
@@ -0,0 +1,40 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.List;
+
+/**
+ * Таблица, изменения которой можно вести в {@link TableJournal}: снимок строк и применение записей журнала
+ * при восстановлении. Поддерживают таблицы типа list и queue.
+ */
+interface Journaled {
+
+    /**
+     * Копия строк для снимка. Вызывается под блокировкой таблицы (монитор самой таблицы).
+     *
+     * @return Строки.
+     */
+    List<String[]> copyRows();
+
+    /**
+     * Вставка строки при восстановлении из журнала.
+     *
+     * @param row   Строка.
+     * @param cells Ячейки.
+     */
+    void applyInsert(int row, String[] cells);
+
+    /**
+     * Удаление строки при восстановлении из журнала.
+     *
+     * @param row Строка.
+     */
+    void applyRemove(int row);
+
+    /**
+     * Замена строки при восстановлении из журнала.
+     *
+     * @param row   Строка.
+     * @param cells Ячейки.
+     */
+    void applySet(int row, String[] cells);
+}
@@ -0,0 +1,129 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.Arrays;
+
+/**
+ * Гистограмма задержек в духе HdrHistogram: логарифмические диапазоны (степени двойки), каждый поделен
+ * на 64 равные части, поэтому относительная погрешность значения не больше 1/64 во всем диапазоне от наносекунд до часов,
+ * а запись - это несколько битовых операций и инкремент элемента массива.
+ * Не потокобезопасна: каждый поток пишет в свою гистограмму, затем они складываются через {@link #add(LatencyHistogram)}.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6; //Частей в диапазоне: 2^SUB_BITS
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR = SUB_COUNT * 2; //Значения меньше этого хранятся точно
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT; //Всего ячеек
+
+    private final long[] mCounts = new long[BUCKETS]; //Количество значений по ячейкам
+    private long mTotal = 0; //Всего значений
+    private long mSum = 0; //Сумма значений
+    private long mMax = 0; //Максимум
+
+    /**
+     * Запись значения.
+     *
+     * @param value Неотрицательное значение (отрицательные считаются нулем).
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[index(value)]++;
+        mTotal++;
+        mSum += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * Добавление значений другой гистограммы.
+     *
+     * @param other Гистограмма.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotal += other.mTotal;
+        mSum += other.mSum;
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * Сброс.
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotal = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Среднее значение.
+     *
+     * @return Среднее, 0 - если значений нет.
+     */
+    public double getMean() {
+        return mTotal == 0 ? 0 : (double) mSum / mTotal;
+    }
+
+    /**
+     * Значение процентиля: наибольшее значение ячейки, до которой набирается нужная доля записей.
+     *
+     * @param percentile Процентиль, от 0 до 100.
+     * @return Значение, 0 - если значений нет.
+     */
+    public long getPercentile(double percentile) {
+        if (mTotal == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotal));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Ячейка значения.
+     *
+     * @param value Значение.
+     * @return Номер ячейки.
+     */
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; //Сколько младших бит отбрасывается
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Наибольшее значение, попадающее в ячейку.
+     *
+     * @param index Номер ячейки.
+     * @return Значение.
+     */
+    private static long highest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long mantissa = index % SUB_COUNT + SUB_COUNT;
+        return (mantissa << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,58 @@
+package ru.pflb.httpserver.utils;
+
+/**
+ * Учет ожидания блокировок таблиц. Таблица засекает {@link System#nanoTime()} перед входом в монитор
+ * (повтором CAS, ожиданием записи журнала) и сразу после входа прибавляет ожидание к счетчику текущего потока.
+ * Вызывающий берет разность {@link #total()} до и после команды. Включается аргументом -lockwait модуля метрик,
+ * выключенный учет не вызывает nanoTime.
+ */
+public final class LockWait {
+    private static volatile boolean sEnabled = false; //Учет включен
+    private static final ThreadLocal<long[]> WAITED = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private LockWait() {
+    }
+
+    /**
+     * Включение учета.
+     *
+     * @param enabled {@code true} - учитывать.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Начало ожидания: вызывается перед входом в блокировку.
+     *
+     * @return Отметка времени или 0, если учет выключен.
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Конец ожидания: вызывается сразу после входа в блокировку.
+     *
+     * @param start Отметка из {@link #start()}.
+     */
+    public static void acquired(long start) {
+        if (start != 0) {
+            WAITED.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Суммарное ожидание текущего потока.
+     *
+     * @return Время, нс (0, если учет выключен).
+     */
+    public static long total() {
+        return sEnabled ? WAITED.get()[0] : 0;
+    }
+}
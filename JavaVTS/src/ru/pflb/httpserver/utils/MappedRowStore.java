@@ -0,0 +1,329 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Хранилище строк только для чтения поверх отображенного в память файла.
+ * При загрузке строится лишь индекс начал строк (параллельно по кускам файла), сами строки
+ * читаются из отображения и разбиваются на ячейки только при запросе. В куче живет один long на строку,
+ * данные держит страничный кэш ОС, поэтому старт на файлах в гигабайты занимает секунды.
+ * Файлы больше 2 ГБ отображаются несколькими сегментами. Строка таблицы - строка файла, поэтому переводы строк
+ * внутри кавычек здесь не поддерживаются. Разобранная строка запоминается, поэтому get с col (проверка ширины и ячейка)
+ * разбирает строку один раз.
+ * Файл нельзя переписывать на месте, пока таблица загружена: усечение отображенного файла приводит к SIGBUS
+ * (InternalError в JVM), а перезапись - к неверным строкам. Новую версию нужно записать в другой файл и переименовать
+ * поверх старого (отображение продолжает читать прежний файл), затем перезагрузить таблицу. Изменение размера
+ * или времени изменения того же файла (не замененного) проверяется не чаще {@link #CHECK_INTERVAL},
+ * после него запросы получают ошибку.
+ */
+class MappedRowStore implements RowStore {
+    private static final int SEGMENT_SIZE = 1 << 30; //Размер сегмента отображения
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024; //Размер куска файла для параллельной индексации
+    private static final int SCAN_BUFFER = 64 * 1024; //Буфер просмотра куска
+    private static final long CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); //Период проверки файла на изменение
+
+    private MappedByteBuffer[] mSegments = new MappedByteBuffer[0]; //Сегменты отображения
+    private long[] mOffsets = new long[1]; //Начала строк, последний элемент - конец последней строки + 1
+    private int mSize = 0; //Количество строк
+    private String mDelimiter; //Разделитель ячеек в файле
+    private Charset mCharset = Charset.defaultCharset(); //Кодировка файла (как у загрузки через FileReader)
+    private byte[] mScratch = new byte[256]; //Буфер для чтения строки
+    private File mFile; //Отображенный файл
+    private long mLength; //Размер файла при отображении
+    private long mModified; //Время изменения файла при отображении
+    private Object mFileKey; //Идентификатор файла (inode), {@code null} - не поддерживается ОС
+    private long mChecked; //Время последней проверки файла (System.nanoTime)
+    private int mParsedRow = -1; //Номер последней разобранной строки
+    private String[] mParsedCells; //Ячейки последней разобранной строки
+
+    /**
+     * Отображение файла и построение индекса строк.
+     *
+     * @param file      Файл.
+     * @param delimiter Разделитель ячеек.
+     * @throws IOException При ошибке чтения.
+     */
+    void map(File file, String delimiter) throws IOException {
+        MappedByteBuffer[] segments;
+        long length;
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        }
+        long[] offsets = index(segments, length);
+        mSegments = segments;
+        mOffsets = offsets;
+        mSize = offsets.length - 1;
+        mDelimiter = delimiter;
+        mFile = file;
+        mLength = length;
+        mModified = attributes.lastModifiedTime().toMillis();
+        mFileKey = attributes.fileKey();
+        mChecked = System.nanoTime();
+        mParsedRow = -1;
+        mParsedCells = null;
+    }
+
+    /**
+     * Построение индекса: куски файла просматриваются параллельно, затем переводы строк склеиваются по порядку.
+     *
+     * @param segments Сегменты.
+     * @param length   Длина файла.
+     * @return Начала строк и конец последней строки + 1.
+     * @throws IOException При ошибке индексации.
+     */
+    private static long[] index(final MappedByteBuffer[] segments, long length) throws IOException {
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        for (int s = 0; s < segments.length; s++) {
+            final int segment = s;
+            for (int from = 0; from < segments[s].limit(); from += CHUNK_SIZE) {
+                final int start = from;
+                final int end = Math.min(from + CHUNK_SIZE, segments[s].limit());
+                tasks.add(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        return scan(segments[segment], (long) segment * SEGMENT_SIZE, start, end);
+                    }
+                });
+            }
+        }
+        List<long[]> parts = new ArrayList<>();
+        int lines = 0;
+        try {
+            for (Future<long[]> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                long[] part = f.get();
+                parts.add(part);
+                lines += (int) part[0];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Индексация файла прервана", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Ошибка индексации файла", e.getCause());
+        }
+        //Строка после последнего перевода строки считается, только если она не пустая (как у readLine)
+        long lastStart = lines == 0 ? 0 : lastNewLine(parts) + 1;
+        boolean tail = lastStart < length;
+        long[] offsets = new long[lines + (tail ? 2 : 1)];
+        offsets[0] = 0;
+        int pos = 1;
+        for (long[] part : parts) {
+            System.arraycopy(part, 1, offsets, pos, (int) part[0]);
+            pos += (int) part[0];
+        }
+        if (tail) {
+            offsets[pos] = length + 1;
+        }
+        return offsets;
+    }
+
+    /**
+     * Поиск переводов строк в куске сегмента.
+     *
+     * @param segment Сегмент.
+     * @param base    Смещение сегмента в файле.
+     * @param from    Начало куска в сегменте.
+     * @param to      Конец куска в сегменте.
+     * @return Количество найденных строк в [0], за ним начала следующих строк (позиция перевода строки + 1).
+     */
+    private static long[] scan(MappedByteBuffer segment, long base, int from, int to) {
+        ByteBuffer buf = segment.duplicate();
+        buf.position(from).limit(to);
+        byte[] bytes = new byte[Math.min(SCAN_BUFFER, to - from)];
+        long[] found = new long[64];
+        int count = 0;
+        while (buf.hasRemaining()) {
+            int pos = buf.position();
+            int n = Math.min(bytes.length, buf.remaining());
+            buf.get(bytes, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] == '\n') {
+                    if (++count >= found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[count] = base + pos + i + 1;
+                }
+            }
+        }
+        found[0] = count;
+        return found;
+    }
+
+    /**
+     * Позиция последнего перевода строки в файле по результатам просмотра.
+     *
+     * @param parts Результаты просмотра кусков.
+     * @return Позиция.
+     */
+    private static long lastNewLine(List<long[]> parts) {
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            long[] part = parts.get(i);
+            if (part[0] > 0) {
+                return part[(int) part[0]] - 1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public String[] row(int row) {
+        return cells(row).clone();
+    }
+
+    @Override
+    public String format(int row, String delimiter) {
+        String line = line(row);
+        if (delimiter.equals(mDelimiter)) {
+            return line;
+        }
+        return Table.createStringFromRow(CsvParser.parseLine(line, mDelimiter), delimiter);
+    }
+
+    @Override
+    public int width(int row) {
+        return cells(row).length;
+    }
+
+    @Override
+    public String cell(int row, int col) {
+        return cells(row)[col];
+    }
+
+    /**
+     * Ячейки строки: последняя разобранная строка берется повторно.
+     *
+     * @param row Номер строки.
+     * @return Ячейки (не изменять).
+     */
+    private String[] cells(int row) {
+        if (row != mParsedRow) {
+            mParsedCells = CsvParser.parseLine(line(row), mDelimiter);
+            mParsedRow = row;
+        }
+        return mParsedCells;
+    }
+
+    @Override
+    public void add(int row, String[] cells) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addAll(List<String[]> rows) {
+        throw readOnly();
+    }
+
+    @Override
+    public void set(int row, String[] cells) {
+        throw readOnly();
+    }
+
+    @Override
+    public void remove(int row) {
+        throw readOnly();
+    }
+
+    /**
+     * Сброс отображения. Память освободится, когда сегменты соберет GC.
+     */
+    @Override
+    public void clear() {
+        mSegments = new MappedByteBuffer[0];
+        mOffsets = new long[1];
+        mSize = 0;
+        mFile = null;
+        mParsedRow = -1;
+        mParsedCells = null;
+    }
+
+    /**
+     * Чтение строки файла без перевода строки.
+     *
+     * @param row Номер строки.
+     * @return Строка.
+     */
+    private String line(int row) {
+        checkFile();
+        long start = mOffsets[row];
+        int length = (int) (mOffsets[row + 1] - 1 - start);
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        int done = 0;
+        try {
+            while (done < length) {
+                long pos = start + done;
+                ByteBuffer segment = mSegments[(int) (pos / SEGMENT_SIZE)].duplicate();
+                segment.position((int) (pos % SEGMENT_SIZE));
+                int n = Math.min(length - done, segment.remaining());
+                segment.get(mScratch, done, n);
+                done += n;
+            }
+        } catch (InternalError e) {
+            //SIGBUS: файл усечен после отображения
+            throw changed();
+        }
+        if (length > 0 && mScratch[length - 1] == '\r') {
+            length--;
+        }
+        return new String(mScratch, 0, length, mCharset);
+    }
+
+    /**
+     * Проверка, что файл не изменили на месте (по размеру и времени изменения, не чаще {@link #CHECK_INTERVAL}).
+     */
+    private void checkFile() {
+        long now = System.nanoTime();
+        if (mFile == null || now - mChecked < CHECK_INTERVAL) {
+            return;
+        }
+        mChecked = now;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(mFile.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;//Файл удален или переименован: отображение держит прежний файл
+        }
+        if (mFileKey != null && !mFileKey.equals(attributes.fileKey())) {
+            return;//Файл заменен новым, отображение читает прежний
+        }
+        if (attributes.size() != mLength || attributes.lastModifiedTime().toMillis() != mModified) {
+            throw changed();
+        }
+    }
+
+    private IllegalStateException changed() {
+        return new IllegalStateException("Файл " + mFile + " изменен на месте после загрузки таблицы. Перезагрузите таблицу;"
+                + " файл нужно заменять переименованием новой версии, а не перезаписью");
+    }
+
+    private static IllegalArgumentException readOnly() {
+        return new IllegalArgumentException("Таблица только для чтения");
+    }
+}
@@ -0,0 +1,324 @@
+package ru.pflb.httpserver.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Компактное хранилище строк: ячейки лежат в UTF-8 подряд в больших страницах байт, разделенные байтом 0x1F,
+ * а на строку приходится только ссылка (страница + смещение) и длина в примитивных массивах.
+ * Объектов на строку нет, поэтому миллионы строк почти не нагружают GC, а память близка к размеру исходного CSV.
+ * Строки Java создаются только при выдаче ответа. Удаленные и измененные строки оставляют дыры в страницах,
+ * которые убираются уплотнением, когда мусора становится больше, чем данных.
+ */
+class PackedRowStore implements RowStore {
+    private static final int PAGE_SIZE = 16 * 1024 * 1024; //Размер страницы
+    private static final byte SEPARATOR = 0x1F; //Разделитель ячеек внутри строки
+    private static final long[] EMPTY_REFS = new long[0];
+    private static final int[] EMPTY_LENGTHS = new int[0];
+
+    private final ArrayList<byte[]> mPages = new ArrayList<>(); //Страницы с данными
+    private int mPageUsed = 0; //Занято в последней странице
+    private long[] mRefs = EMPTY_REFS; //Ссылки на строки: номер страницы << 32 | смещение
+    private int[] mLengths = EMPTY_LENGTHS; //Длины строк в байтах
+    private int mSize = 0; //Количество строк
+    private long mUsed = 0; //Байт в живых строках
+    private long mGarbage = 0; //Байт в удаленных строках
+    private byte[] mScratch = new byte[256]; //Буфер для сборки ответа
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public String[] row(int row) {
+        byte[] page = page(row);
+        int start = offset(row);
+        int end = start + mLengths[row];
+        String[] cells = new String[width(row)];
+        int idx = 0;
+        int cellStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || page[i] == SEPARATOR) {
+                cells[idx++] = new String(page, cellStart, i - cellStart, StandardCharsets.UTF_8);
+                cellStart = i + 1;
+            }
+        }
+        return cells;
+    }
+
+    @Override
+    public String format(int row, String delimiter) {
+        byte[] page = page(row);
+        int start = offset(row);
+        int length = mLengths[row];
+        byte[] delim = delimiter.getBytes(StandardCharsets.UTF_8);
+        if (delim.length == 1) {
+            //Частый случай: разделитель в один байт, подменяем на месте
+            ensureScratch(length);
+            System.arraycopy(page, start, mScratch, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (mScratch[i] == SEPARATOR) {
+                    mScratch[i] = delim[0];
+                }
+            }
+            return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+        }
+        ensureScratch(length + (width(row) - 1) * delim.length);
+        int pos = 0;
+        for (int i = start; i < start + length; i++) {
+            if (page[i] == SEPARATOR) {
+                System.arraycopy(delim, 0, mScratch, pos, delim.length);
+                pos += delim.length;
+            } else {
+                mScratch[pos++] = page[i];
+            }
+        }
+        return new String(mScratch, 0, pos, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int width(int row) {
+        byte[] page = page(row);
+        int start = offset(row);
+        int count = 1;
+        for (int i = start; i < start + mLengths[row]; i++) {
+            if (page[i] == SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String cell(int row, int col) {
+        byte[] page = page(row);
+        int start = offset(row);
+        int end = start + mLengths[row];
+        int idx = 0;
+        int cellStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || page[i] == SEPARATOR) {
+                if (idx == col) {
+                    return new String(page, cellStart, i - cellStart, StandardCharsets.UTF_8);
+                }
+                idx++;
+                cellStart = i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + idx);
+    }
+
+    @Override
+    public void add(int row, String[] cells) {
+        int length = length(cells); //Проверка до изменения индекса
+        ensureIndex(mSize + 1);
+        System.arraycopy(mRefs, row, mRefs, row + 1, mSize - row);
+        System.arraycopy(mLengths, row, mLengths, row + 1, mSize - row);
+        mSize++;
+        write(row, cells, length);
+    }
+
+    @Override
+    public void addAll(List<String[]> rows) {
+        //Все строки проверяются до вставки, чтобы пакет не вставился частично
+        int[] lengths = new int[rows.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = length(rows.get(i));
+        }
+        ensureIndex(mSize + rows.size());
+        for (int i = 0; i < lengths.length; i++) {
+            write(mSize++, rows.get(i), lengths[i]);
+        }
+    }
+
+    @Override
+    public void set(int row, String[] cells) {
+        int length = length(cells);
+        mGarbage += mLengths[row];
+        mUsed -= mLengths[row];
+        write(row, cells, length);
+        compactIfNeeded();
+    }
+
+    @Override
+    public void remove(int row) {
+        mGarbage += mLengths[row];
+        mUsed -= mLengths[row];
+        System.arraycopy(mRefs, row + 1, mRefs, row, mSize - row - 1);
+        System.arraycopy(mLengths, row + 1, mLengths, row, mSize - row - 1);
+        mSize--;
+        compactIfNeeded();
+    }
+
+    @Override
+    public void clear() {
+        mPages.clear();
+        mPageUsed = 0;
+        mRefs = EMPTY_REFS;
+        mLengths = EMPTY_LENGTHS;
+        mSize = 0;
+        mUsed = 0;
+        mGarbage = 0;
+    }
+
+    /**
+     * Длина строки в байтах с проверкой ячеек.
+     *
+     * @param cells Ячейки.
+     * @return Длина в UTF-8 с разделителями.
+     */
+    private static int length(String[] cells) {
+        int length = cells.length == 0 ? 0 : cells.length - 1;
+        for (String cell : cells) {
+            length += utf8Length(cell);
+        }
+        return length;
+    }
+
+    /**
+     * Кодирование строки в UTF-8 прямо в страницу.
+     *
+     * @param row    Номер строки в индексе.
+     * @param cells  Ячейки.
+     * @param length Длина из {@link #length(String[])}.
+     */
+    private void write(int row, String[] cells, int length) {
+        byte[] page = allocate(length);
+        int pos = mPageUsed - length;
+        for (int c = 0; c < cells.length; c++) {
+            if (c > 0) {
+                page[pos++] = SEPARATOR;
+            }
+            pos = encode(cells[c], page, pos);
+        }
+        mRefs[row] = (long) (mPages.size() - 1) << 32 | (mPageUsed - length);
+        mLengths[row] = length;
+        mUsed += length;
+    }
+
+    /**
+     * Место под строку в последней странице (при нехватке заводится новая).
+     *
+     * @param length Длина строки.
+     * @return Страница, место в ней - перед {@link #mPageUsed}.
+     */
+    private byte[] allocate(int length) {
+        byte[] page = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1);
+        if (page == null || page.length - mPageUsed < length) {
+            page = new byte[Math.max(PAGE_SIZE, length)];
+            mPages.add(page);
+            mPageUsed = 0;
+        }
+        mPageUsed += length;
+        return page;
+    }
+
+    /**
+     * Уплотнение: перенос живых строк в новые страницы, если мусора больше, чем данных.
+     */
+    private void compactIfNeeded() {
+        if (mGarbage < PAGE_SIZE || mGarbage < mUsed) {
+            return;
+        }
+        ArrayList<byte[]> old = new ArrayList<>(mPages);
+        long[] oldRefs = mRefs;
+        mPages.clear();
+        mPageUsed = 0;
+        for (int row = 0; row < mSize; row++) {
+            byte[] src = old.get((int) (oldRefs[row] >>> 32));
+            int length = mLengths[row];
+            byte[] page = allocate(length);
+            System.arraycopy(src, (int) oldRefs[row], page, mPageUsed - length, length);
+            mRefs[row] = (long) (mPages.size() - 1) << 32 | (mPageUsed - length);
+        }
+        mGarbage = 0;
+    }
+
+    private byte[] page(int row) {
+        return mPages.get((int) (mRefs[row] >>> 32));
+    }
+
+    private int offset(int row) {
+        return (int) mRefs[row];
+    }
+
+    private void ensureIndex(int capacity) {
+        if (mRefs.length < capacity) {
+            int newCapacity = Math.max(capacity, mRefs.length + (mRefs.length >> 1) + 16);
+            mRefs = Arrays.copyOf(mRefs, newCapacity);
+            mLengths = Arrays.copyOf(mLengths, newCapacity);
+        }
+    }
+
+    private void ensureScratch(int capacity) {
+        if (mScratch.length < capacity) {
+            mScratch = new byte[Math.max(capacity, mScratch.length * 2)];
+        }
+    }
+
+    /**
+     * Длина строки в UTF-8.
+     *
+     * @param s Строка.
+     * @return Количество байт.
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == SEPARATOR) {
+                throw new IllegalArgumentException("Символ 0x1F недопустим в ячейке компактной таблицы");
+            }
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Кодирование строки в UTF-8 (одиночные суррогаты заменяются на U+FFFD).
+     *
+     * @param s   Строка.
+     * @param dst Массив.
+     * @param pos Позиция.
+     * @return Позиция после записанных байт.
+     */
+    private static int encode(String s, byte[] dst, int pos) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | c >> 6);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[pos++] = (byte) (0xF0 | cp >> 18);
+                dst[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                //Три байта, как посчитано в utf8Length
+                dst[pos++] = (byte) 0xEF;
+                dst[pos++] = (byte) 0xBF;
+                dst[pos++] = (byte) 0xBD;
+            } else {
+                dst[pos++] = (byte) (0xE0 | c >> 12);
+                dst[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+}
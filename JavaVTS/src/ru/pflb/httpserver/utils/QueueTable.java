@@ -0,0 +1,387 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Таблица-очередь на кольцевом буфере.
+ * pop без номера строки забирает первую строку (голову очереди), push без номера дописывает в хвост - обе операции O(1),
+ * поэтому выборка уникальных данных из таблицы на миллионы строк не замедляется по мере опустошения.
+ * get без номера перебирает строки по кругу своим курсором, доступ по номеру строки тоже O(1).
+ * Вставка и удаление по номеру в середине сдвигают меньшую из половин (с индексами удаление не сдвигает строки, см. {@link RowRing}).
+ */
+public class QueueTable extends Table implements Indexed, Journaled {
+    private final RowRing mRows; //Строки в кольцевом буфере
+    private int mCursor = 0; //Текущая позиция для get (номер строки)
+
+    /**
+     * Конструктор.
+     *
+     * @param params Параметры таблицы
+     */
+    public QueueTable(TableParams params) {
+        super(params);
+        mRows = new RowRing(mIndex);
+    }
+
+    @Override
+    protected void addRows(List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mRows.addAll(rows);
+        }
+    }
+
+    @Override
+    protected void clear() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mRows.clear();
+            mCursor = 0;
+        }
+    }
+
+    @Override
+    public int size() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mRows.size();
+        }
+    }
+
+    @Override
+    public int getCursor() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mCursor;
+        }
+    }
+
+    @Override
+    public void setCursor(int cursor) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mCursor = mRows.size() == 0 ? 0 : Math.abs(cursor % mRows.size());
+        }
+    }
+
+    /**
+     * Получение строки/ячейки.
+     *
+     * @param row       Строка, {@code null} - текущая по кругу.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String get(Integer row, Integer col, String delimiter) {
+        String[] res;
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            res = getLocked(row);
+        }
+        return formatRow(res, col, delimiter);
+    }
+
+    /**
+     * Получение нескольких строк/ячеек подряд под одной блокировкой.
+     *
+     * @param row       Первая строка, {@code null} - с текущей по кругу.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> get(Integer row, Integer col, String delimiter, int count) {
+        ArrayList<String[]> rows = new ArrayList<>(Math.min(count, 1024));
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            for (int i = 0; i < count; i++) {
+                rows.add(getLocked(row == null ? null : row + i));
+            }
+        }
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        for (String[] r : rows) {
+            res.add(formatRow(r, col, delimiter));
+        }
+        return res;
+    }
+
+    /**
+     * Строка для get под блокировкой.
+     *
+     * @param row Строка, {@code null} - текущая по кругу.
+     * @return Строка.
+     */
+    private String[] getLocked(Integer row) {
+        if (mRows.size() == 0) {
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        if (row == null) {
+            row = mCursor;
+        } else {
+            checkRow(row);
+        }
+        String[] res = mRows.get(row);
+        mCursor++;
+        if (mCursor >= mRows.size()) {
+            mCursor = 0;
+        }
+        return res;
+    }
+
+    @Override
+    protected String[] getSliceRow(int slice, int slices, int counter) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mRows.get(sliceRow(mRows.size(), slice, slices, counter));
+        }
+    }
+
+    /**
+     * Забор из таблицы.
+     *
+     * @param row       Строка, {@code null} - голова очереди.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String pop(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return popLocked(row, col, delimiter, deleteRow);
+        }
+    }
+
+    /**
+     * Забор нескольких строк/ячеек под одной блокировкой. Если строк меньше, чем запрошено, забираются все.
+     *
+     * @param row       Строка, {@code null} - голова очереди. Удаленные строки сдвигают следующие на их место.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> pop(Integer row, Integer col, String delimiter, boolean deleteRow, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            if (row != null) {
+                checkRow(row);
+            }
+            int min = row == null ? 0 : row;
+            for (int i = 0; i < count && mRows.size() > min; i++) {
+                res.add(popLocked(row, col, delimiter, deleteRow));
+            }
+            if (res.isEmpty()) {
+                throw new IllegalArgumentException("Таблица пуста");
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Забор из таблицы под блокировкой.
+     *
+     * @param row       Строка, {@code null} - голова очереди.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    private String popLocked(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        if (mRows.size() == 0) {
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        int pos = row == null ? 0 : row;
+        checkRow(pos);
+        String[] res = mRows.get(pos);
+        if (col != null) {
+            checkColumn(res, col);
+        }
+        if (deleteRow || col == null || res.length <= 1) {
+            removeAt(pos);
+            logRemove(pos);
+            return col == null || res.length <= 1 && !deleteRow ? createStringFromRow(res, delimiter) : res[col];
+        }
+        String[] cells = removeCell(res, col);
+        setAt(pos, cells);
+        logSet(pos, cells);
+        return res[col];
+    }
+
+    /**
+     * Загрузить в таблицу.
+     *
+     * @param row       Строка, {@code null} - в хвост очереди.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param data      Данные.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, Integer col, String delimiter, String data) {
+        String[] cells = col == null ? createRowFromString(data, delimiter) : null;
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            if (col == null) {
+                int pos = row == null ? mRows.size() : row;
+                if (pos > mRows.size() || pos < 0) {
+                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + pos + " из " + mRows.size());
+                }
+                insertAt(pos, cells);
+                logInsert(pos, cells);
+            } else {
+                if (mRows.size() == 0) {
+                    throw new IllegalArgumentException("Таблица пуста");
+                }
+                int pos = row == null ? mCursor : row;
+                checkRow(pos);
+                String[] changed = insertCell(mRows.get(pos), col, data);
+                setAt(pos, changed);
+                logSet(pos, changed);
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Вставка нескольких строк подряд под одной блокировкой.
+     *
+     * @param row  Позиция первой строки, {@code null} - в хвост очереди.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            int pos = row == null ? mRows.size() : row;
+            if (pos > mRows.size() || pos < 0) {
+                throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + pos + " из " + mRows.size());
+            }
+            for (String[] cells : rows) {
+                insertAt(pos, cells);
+                logInsert(pos, cells);
+                pos++;
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Удаление строки, найденной по индексу: номер строки и удаление без перебора и сдвига - O(log n).
+     *
+     * @param row Строка из индекса.
+     */
+    @Override
+    public void removeIndexedRow(TableIndex.Entry row) {
+        int pos = mRows.position(row);
+        removeAt(pos);
+        logRemove(pos);
+    }
+
+    @Override
+    public List<String[]> copyRows() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            ArrayList<String[]> rows = new ArrayList<>(mRows.size());
+            mRows.copyTo(rows);
+            return rows;
+        }
+    }
+
+    @Override
+    public void applyInsert(int row, String[] cells) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            insertAt(row, cells);
+        }
+    }
+
+    @Override
+    public void applyRemove(int row) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            removeAt(row);
+        }
+    }
+
+    @Override
+    public void applySet(int row, String[] cells) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            setAt(row, cells);
+        }
+    }
+
+    /**
+     * Проверка индекса строки.
+     *
+     * @param row Строка.
+     */
+    private void checkRow(int row) {
+        if (row >= mRows.size() || row < 0) {
+            throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mRows.size());
+        }
+    }
+
+    /**
+     * Удаление строки с поправкой курсора. Для головы и хвоста O(1).
+     *
+     * @param row Номер строки.
+     */
+    private void removeAt(int row) {
+        mRows.remove(row);
+        if (mCursor > row) {
+            mCursor--;
+        }
+        if (mCursor >= mRows.size()) {
+            mCursor = 0;
+        }
+    }
+
+    /**
+     * Вставка строки с поправкой курсора. Для головы и хвоста O(1).
+     *
+     * @param row   Номер новой строки.
+     * @param cells Строка.
+     */
+    private void insertAt(int row, String[] cells) {
+        mRows.insert(row, cells);
+        if (row <= mCursor && mRows.size() > 1) {
+            mCursor++;
+        }
+    }
+
+    /**
+     * Замена строки.
+     *
+     * @param row   Номер строки.
+     * @param cells Новая строка.
+     */
+    private void setAt(int row, String[] cells) {
+        mRows.set(row, cells);
+    }
+}
@@ -0,0 +1,400 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Строки таблицы в кольцевом буфере: доступ по номеру, вставка и удаление в голове и хвосте за O(1),
+ * в середине сдвигается меньшая из половин.
+ * С индексами удаление не сдвигает строки, а оставляет в буфере пустое место. Номер строки по позиции в буфере и обратно
+ * считает дерево Фенвика за O(log n), поэтому строка, найденная по индексу, удаляется без перебора и сдвига.
+ * Пустые места в голове и хвосте отбрасываются сразу, остальные - при изменении емкости и когда их становится больше, чем строк.
+ * Вызывается под блокировкой таблицы.
+ */
+final class RowRing {
+    private static final int MIN_CAPACITY = 16; //Минимальная емкость буфера (степень двойки)
+    private static final int MIN_COMPACT_HOLES = 64; //Минимум пустых мест для уплотнения
+
+    private final TableIndex mIndex; //Индексы, null - без индексов
+    private String[][] mRing = new String[MIN_CAPACITY][]; //Кольцевой буфер строк
+    private TableIndex.Entry[] mEntries; //Записи индекса по позициям буфера (только с индексами)
+    private int[] mTree; //Дерево Фенвика: количество строк по позициям буфера (только с индексами)
+    private int mHead = 0; //Позиция первой строки в буфере
+    private int mSpan = 0; //Занятые позиции от головы, включая пустые места
+    private int mSize = 0; //Количество строк
+
+    /**
+     * Конструктор.
+     *
+     * @param index Индексы, {@code null} - без индексов.
+     */
+    RowRing(TableIndex index) {
+        mIndex = index;
+        if (index != null) {
+            mEntries = new TableIndex.Entry[MIN_CAPACITY];
+            mTree = new int[MIN_CAPACITY + 1];
+        }
+    }
+
+    /**
+     * Количество строк.
+     *
+     * @return Количество строк.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Строка по номеру (номер проверен вызывающим).
+     *
+     * @param row Номер строки.
+     * @return Ячейки.
+     */
+    String[] get(int row) {
+        return mRing[slot(row)];
+    }
+
+    /**
+     * Замена строки.
+     *
+     * @param row   Номер строки.
+     * @param cells Новые ячейки.
+     */
+    void set(int row, String[] cells) {
+        int slot = slot(row);
+        mRing[slot] = cells;
+        if (mIndex != null) {
+            mIndex.remove(mEntries[slot]);
+            mEntries[slot] = new TableIndex.Entry(cells, slot);
+            mIndex.add(mEntries[slot]);
+        }
+    }
+
+    /**
+     * Добавление строки в хвост.
+     *
+     * @param cells Ячейки.
+     */
+    void add(String[] cells) {
+        insert(mSize, cells);
+    }
+
+    /**
+     * Добавление строк в хвост.
+     *
+     * @param rows Строки.
+     */
+    void addAll(List<String[]> rows) {
+        ensureCapacity(mSpan + rows.size());
+        for (String[] cells : rows) {
+            put(index(mSpan++), cells);
+        }
+    }
+
+    /**
+     * Вставка строки. В голову и хвост - O(1), в середину - сдвиг меньшей половины
+     * (с индексами - после уплотнения и с пересчетом дерева).
+     *
+     * @param row   Номер новой строки (проверен вызывающим).
+     * @param cells Ячейки.
+     */
+    void insert(int row, String[] cells) {
+        ensureCapacity(mSpan + 1);
+        if (row == mSize) {
+            put(index(mSpan++), cells);
+            return;
+        }
+        if (row == 0) {
+            mHead = (mHead - 1) & (mRing.length - 1);
+            mSpan++;
+            put(mHead, cells);
+            return;
+        }
+        if (mSpan != mSize) {
+            resize(mRing.length);
+        }
+        if (row < mSize / 2) {
+            mHead = (mHead - 1) & (mRing.length - 1);
+            for (int i = 0; i < row; i++) {
+                move(index(i + 1), index(i));
+            }
+        } else {
+            for (int i = mSize; i > row; i--) {
+                move(index(i - 1), index(i));
+            }
+        }
+        mSpan++;
+        put(index(row), cells);
+        if (mIndex != null) {
+            rebuildTree();
+        }
+    }
+
+    /**
+     * Удаление строки. Без индексов сдвигается меньшая половина (для головы и хвоста O(1)),
+     * с индексами на месте строки остается пустое место - O(log n).
+     *
+     * @param row Номер строки (проверен вызывающим).
+     */
+    void remove(int row) {
+        if (mIndex != null) {
+            removeSlot(slot(row));
+            return;
+        }
+        if (row < mSize / 2) {
+            for (int i = row; i > 0; i--) {
+                mRing[index(i)] = mRing[index(i - 1)];
+            }
+            mRing[mHead] = null;
+            mHead = index(1);
+        } else {
+            for (int i = row; i < mSize - 1; i++) {
+                mRing[index(i)] = mRing[index(i + 1)];
+            }
+            mRing[index(mSize - 1)] = null;
+        }
+        mSize--;
+        mSpan--;
+        shrink();
+    }
+
+    /**
+     * Номер строки из индекса, O(log n).
+     *
+     * @param entry Запись индекса.
+     * @return Номер строки.
+     */
+    int position(TableIndex.Entry entry) {
+        int slot = entry.mSlot;
+        int res = prefix(slot) - prefix(mHead);
+        return slot < mHead ? res + mSize : res;
+    }
+
+    /**
+     * Копирование строк по порядку.
+     *
+     * @param res Список для строк.
+     */
+    void copyTo(List<String[]> res) {
+        for (int i = 0; i < mSpan; i++) {
+            String[] cells = mRing[index(i)];
+            if (cells != null) {
+                res.add(cells);
+            }
+        }
+    }
+
+    /**
+     * Очистка.
+     */
+    void clear() {
+        mRing = new String[MIN_CAPACITY][];
+        mHead = 0;
+        mSpan = 0;
+        mSize = 0;
+        if (mIndex != null) {
+            mEntries = new TableIndex.Entry[MIN_CAPACITY];
+            mTree = new int[MIN_CAPACITY + 1];
+            mIndex.clear();
+        }
+    }
+
+    /**
+     * Позиция в буфере по смещению от головы.
+     *
+     * @param offset Смещение.
+     * @return Позиция в буфере.
+     */
+    private int index(int offset) {
+        return (mHead + offset) & (mRing.length - 1);
+    }
+
+    /**
+     * Позиция строки в буфере: без пустых мест - смещение от головы, иначе поиск по дереву.
+     *
+     * @param row Номер строки.
+     * @return Позиция в буфере.
+     */
+    private int slot(int row) {
+        if (mSpan == mSize) {
+            return index(row);
+        }
+        int rank = prefix(mHead) + row; //Строки в буфере до головы идут после хвоста
+        return select(rank < mSize ? rank : rank - mSize);
+    }
+
+    /**
+     * Запись новой строки в свободную позицию.
+     *
+     * @param slot  Позиция в буфере.
+     * @param cells Ячейки.
+     */
+    private void put(int slot, String[] cells) {
+        mRing[slot] = cells;
+        mSize++;
+        if (mIndex != null) {
+            mEntries[slot] = new TableIndex.Entry(cells, slot);
+            mIndex.add(mEntries[slot]);
+            addTree(slot, 1);
+        }
+    }
+
+    /**
+     * Перенос строки при сдвиге.
+     *
+     * @param from Откуда.
+     * @param to   Куда.
+     */
+    private void move(int from, int to) {
+        mRing[to] = mRing[from];
+        if (mIndex != null) {
+            mEntries[to] = mEntries[from];
+            mEntries[to].mSlot = to;
+        }
+    }
+
+    /**
+     * Удаление строки с индексами: пустое место вместо сдвига.
+     *
+     * @param slot Позиция в буфере.
+     */
+    private void removeSlot(int slot) {
+        mIndex.remove(mEntries[slot]);
+        mEntries[slot] = null;
+        mRing[slot] = null;
+        addTree(slot, -1);
+        mSize--;
+        while (mSpan > 0 && mRing[mHead] == null) {
+            mHead = index(1);
+            mSpan--;
+        }
+        while (mSpan > 0 && mRing[index(mSpan - 1)] == null) {
+            mSpan--;
+        }
+        int holes = mSpan - mSize;
+        if (holes > MIN_COMPACT_HOLES && holes > mSize) {
+            resize(mRing.length);
+        }
+        shrink();
+    }
+
+    /**
+     * Место под нужное количество позиций от головы: уплотнение, если оно освобождает заметную часть буфера,
+     * иначе увеличение (емкость остается степенью двойки).
+     *
+     * @param span Нужное количество позиций.
+     */
+    private void ensureCapacity(int span) {
+        if (span <= mRing.length) {
+            return;
+        }
+        int needed = mSize + span - mSpan; //Позиций после уплотнения
+        int capacity = mRing.length;
+        while (capacity < needed) {
+            capacity <<= 1;
+        }
+        if (capacity == mRing.length && mSpan - mSize < capacity >> 2) {
+            capacity <<= 1;
+        }
+        resize(capacity);
+    }
+
+    /**
+     * Уменьшение буфера, когда строк почти не осталось.
+     */
+    private void shrink() {
+        if (mRing.length > MIN_CAPACITY && mSize < mRing.length >> 2) {
+            resize(mRing.length >> 1);
+        }
+    }
+
+    /**
+     * Перенос строк в буфер новой емкости без пустых мест, голова в начало.
+     *
+     * @param capacity Емкость.
+     */
+    private void resize(int capacity) {
+        String[][] ring = new String[capacity][];
+        TableIndex.Entry[] entries = mIndex == null ? null : new TableIndex.Entry[capacity];
+        int length = 0;
+        for (int i = 0; i < mSpan; i++) {
+            int slot = index(i);
+            if (mRing[slot] != null) {
+                ring[length] = mRing[slot];
+                if (entries != null) {
+                    entries[length] = mEntries[slot];
+                    entries[length].mSlot = length;
+                }
+                length++;
+            }
+        }
+        mRing = ring;
+        mEntries = entries;
+        mHead = 0;
+        mSpan = length;
+        if (mIndex != null) {
+            mTree = new int[capacity + 1];
+            rebuildTree();
+        }
+    }
+
+    /**
+     * Изменение количества строк в позиции буфера.
+     *
+     * @param slot  Позиция.
+     * @param delta Изменение.
+     */
+    private void addTree(int slot, int delta) {
+        for (int i = slot + 1; i < mTree.length; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    /**
+     * Количество строк в позициях буфера до заданной.
+     *
+     * @param slot Позиция.
+     * @return Количество строк в [0, slot).
+     */
+    private int prefix(int slot) {
+        int res = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            res += mTree[i];
+        }
+        return res;
+    }
+
+    /**
+     * Позиция строки с заданным порядковым номером, считая от начала буфера.
+     *
+     * @param rank Порядковый номер (с нуля).
+     * @return Позиция.
+     */
+    private int select(int rank) {
+        int pos = 0;
+        for (int step = Integer.highestOneBit(mTree.length - 1); step > 0; step >>= 1) {
+            if (pos + step < mTree.length && mTree[pos + step] <= rank) {
+                pos += step;
+                rank -= mTree[pos];
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Пересчет дерева по буферу за O(емкости).
+     */
+    private void rebuildTree() {
+        Arrays.fill(mTree, 0);
+        for (int i = 1; i < mTree.length; i++) {
+            if (mRing[i - 1] != null) {
+                mTree[i]++;
+            }
+            int parent = i + (i & -i);
+            if (parent < mTree.length) {
+                mTree[parent] += mTree[i];
+            }
+        }
+    }
+}
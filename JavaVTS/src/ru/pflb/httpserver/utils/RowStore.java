@@ -0,0 +1,85 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.List;
+
+/**
+ * Хранилище строк таблицы. Вызывается под блокировкой таблицы, поэтому само потокобезопасным не является.
+ */
+interface RowStore {
+
+    /**
+     * Количество строк.
+     *
+     * @return Количество строк.
+     */
+    int size();
+
+    /**
+     * Ячейки строки.
+     *
+     * @param row Номер строки.
+     * @return Ячейки строки.
+     */
+    String[] row(int row);
+
+    /**
+     * Строка целиком с ячейками через разделитель.
+     *
+     * @param row       Номер строки.
+     * @param delimiter Разделитель.
+     * @return Строка.
+     */
+    String format(int row, String delimiter);
+
+    /**
+     * Количество ячеек в строке.
+     *
+     * @param row Номер строки.
+     * @return Количество ячеек.
+     */
+    int width(int row);
+
+    /**
+     * Значение ячейки.
+     *
+     * @param row Номер строки.
+     * @param col Номер столбца (проверен по {@link #width(int)}).
+     * @return Значение ячейки.
+     */
+    String cell(int row, int col);
+
+    /**
+     * Вставка строки.
+     *
+     * @param row   Позиция.
+     * @param cells Ячейки.
+     */
+    void add(int row, String[] cells);
+
+    /**
+     * Добавление строк в конец.
+     *
+     * @param rows Строки.
+     */
+    void addAll(List<String[]> rows);
+
+    /**
+     * Замена строки.
+     *
+     * @param row   Номер строки.
+     * @param cells Новые ячейки.
+     */
+    void set(int row, String[] cells);
+
+    /**
+     * Удаление строки.
+     *
+     * @param row Номер строки.
+     */
+    void remove(int row);
+
+    /**
+     * Очистка.
+     */
+    void clear();
+}
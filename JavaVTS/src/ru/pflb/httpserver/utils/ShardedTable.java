@@ -0,0 +1,547 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Таблица, разбитая на части (шарды) со своей блокировкой и своим курсором.
+ * Номера строк сквозные: сначала строки первой части, затем второй и т.д., поэтому запрос с row блокирует
+ * только ту часть, в которую попадает строка. get, pop и push без номера строки распределяются по частям по кругу,
+ * и потоки, работающие с разными частями, друг друга не ждут. После загрузки из файла строки делятся
+ * между частями поровну, вставки и удаления меняют только свою часть.
+ * Курсор у каждой части свой, поэтому get без номера перебирает строки не в порядке таблицы, а по очереди из частей.
+ */
+public class ShardedTable extends Table {
+    public static final int DEFAULT_SHARDS = 16; //Количество частей по умолчанию
+
+    private final Shard[] mShards; //Части
+    private final AtomicInteger mSelector = new AtomicInteger(); //Выбор части для запросов без номера строки
+
+    /**
+     * Конструктор.
+     *
+     * @param params Параметры таблицы
+     */
+    public ShardedTable(TableParams params) {
+        super(params);
+        int shards = params.shards == null ? DEFAULT_SHARDS : params.shards;
+        if (shards < 1) {
+            throw new IllegalArgumentException("Количество частей должно быть больше нуля: " + shards);
+        }
+        mShards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Загрузка из файла в последнюю часть и деление строк между частями поровну.
+     *
+     * @throws IOException При ошибке.
+     */
+    @Override
+    protected void loadFromFile() throws IOException {
+        super.loadFromFile();
+        rebalance();
+    }
+
+    /**
+     * Добавление строк в конец таблицы, то есть в последнюю часть.
+     *
+     * @param rows Строки.
+     */
+    @Override
+    protected void addRows(List<String[]> rows) {
+        Shard last = mShards[mShards.length - 1];
+        long lockStart = LockWait.start();
+        synchronized (last) {
+            LockWait.acquired(lockStart);
+            last.mRows.addAll(rows);
+            last.mSize = last.mRows.size();
+        }
+    }
+
+    /**
+     * Деление строк между частями поровну с сохранением порядка.
+     * Вызывается после загрузки, пока таблица еще недоступна запросам.
+     */
+    private void rebalance() {
+        ArrayList<String[]> all = new ArrayList<>(size());
+        for (Shard s : mShards) {
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                all.addAll(s.mRows);
+            }
+        }
+        int from = 0;
+        for (int i = 0; i < mShards.length; i++) {
+            int to = (int) ((long) all.size() * (i + 1) / mShards.length);
+            Shard s = mShards[i];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                s.mRows = new ArrayList<>(all.subList(from, to));
+                s.mSize = s.mRows.size();
+                s.mCursor = 0;
+            }
+            from = to;
+        }
+    }
+
+    @Override
+    protected void clear() {
+        for (Shard s : mShards) {
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                s.mRows = new ArrayList<>();
+                s.mSize = 0;
+                s.mCursor = 0;
+            }
+        }
+    }
+
+    /**
+     * Размер таблицы. Части считаются без общей блокировки, при параллельных изменениях размер приблизительный.
+     *
+     * @return Размер таблицы.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Shard s : mShards) {
+            size += s.mSize;
+        }
+        return size;
+    }
+
+    /**
+     * Сквозной номер строки, которую вернет следующий get без номера.
+     *
+     * @return Позиция курсора.
+     */
+    @Override
+    public int getCursor() {
+        int first = (mSelector.get() & Integer.MAX_VALUE) % mShards.length;
+        int offset = 0;
+        for (int i = 0; i < first; i++) {
+            offset += mShards[i].mSize;
+        }
+        long lockStart = LockWait.start();
+        synchronized (mShards[first]) {
+            LockWait.acquired(lockStart);
+            return offset + mShards[first].mCursor;
+        }
+    }
+
+    /**
+     * Установка курсора: перебор начнется с части, в которую попадает строка.
+     *
+     * @param cursor Позиция курсора.
+     */
+    @Override
+    public void setCursor(int cursor) {
+        int size = size();
+        int row = size == 0 ? 0 : Math.abs(cursor % size);
+        for (int i = 0; i < mShards.length; i++) {
+            Shard s = mShards[i];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (row >= 0 && (row < s.mSize || i == mShards.length - 1)) {
+                    s.mCursor = Math.min(row, Math.max(0, s.mSize - 1));
+                    mSelector.set(i);
+                } else {
+                    s.mCursor = 0;
+                }
+                row -= s.mSize;
+            }
+        }
+    }
+
+    /**
+     * Получение строки/ячейки.
+     *
+     * @param row       Строка, {@code null} - текущая строка очередной части.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String get(Integer row, Integer col, String delimiter) {
+        return formatRow(row == null ? nextRow() : rowAt(row), col, delimiter);
+    }
+
+    /**
+     * Получение нескольких строк/ячеек. Без номера строки - подряд из одной части под одной блокировкой.
+     *
+     * @param row       Первая строка, {@code null} - с текущей строки очередной части.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> get(Integer row, Integer col, String delimiter, int count) {
+        ArrayList<String[]> rows = new ArrayList<>(Math.min(count, 1024));
+        if (row == null) {
+            Shard s = nonEmpty();
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (s.mSize == 0) {
+                    throw new IllegalArgumentException("Таблица пуста");
+                }
+                for (int i = 0; i < count; i++) {
+                    rows.add(s.next());
+                }
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                rows.add(rowAt(row + i));
+            }
+        }
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        for (String[] r : rows) {
+            res.add(formatRow(r, col, delimiter));
+        }
+        return res;
+    }
+
+    @Override
+    protected String[] getSliceRow(int slice, int slices, int counter) {
+        return rowAt(sliceRow(size(), slice, slices, counter));
+    }
+
+    /**
+     * Текущая строка очередной части со сдвигом ее курсора.
+     *
+     * @return Строка.
+     */
+    private String[] nextRow() {
+        for (int probe = 0; probe < mShards.length; probe++) {
+            Shard s = mShards[(mSelector.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (s.mSize > 0) {
+                    return s.next();
+                }
+            }
+        }
+        throw new IllegalArgumentException("Таблица пуста");
+    }
+
+    /**
+     * Очередная непустая часть.
+     *
+     * @return Часть (проверять размер нужно еще раз под ее блокировкой).
+     */
+    private Shard nonEmpty() {
+        for (int probe = 0; probe < mShards.length; probe++) {
+            Shard s = mShards[(mSelector.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+            if (s.mSize > 0) {
+                return s;
+            }
+        }
+        throw new IllegalArgumentException("Таблица пуста");
+    }
+
+    /**
+     * Строка по сквозному номеру.
+     *
+     * @param row Номер строки.
+     * @return Строка.
+     */
+    private String[] rowAt(int row) {
+        while (true) {
+            int[] local = new int[1];
+            Shard s = locate(row, local, false);
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (local[0] < s.mSize) {
+                    return s.mRows.get(local[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Часть по сквозному номеру строки. Размеры частей читаются без блокировки, поэтому вызывающий проверяет номер
+     * в части еще раз под ее блокировкой и при расхождении ищет заново.
+     *
+     * @param row    Номер строки.
+     * @param local  Сюда записывается номер строки в части.
+     * @param insert Номер для вставки: допускается позиция сразу за последней строкой.
+     * @return Часть.
+     */
+    private Shard locate(int row, int[] local, boolean insert) {
+        if (row < 0) {
+            throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + size());
+        }
+        int r = row;
+        for (int i = 0; i < mShards.length; i++) {
+            int size = mShards[i].mSize;
+            if (r < size || insert && r == size && i == mShards.length - 1) {
+                local[0] = r;
+                return mShards[i];
+            }
+            r -= size;
+        }
+        throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + size());
+    }
+
+    /**
+     * Забор из таблицы.
+     *
+     * @param row       Строка, {@code null} - текущая строка очередной части.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String pop(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        if (row != null) {
+            while (true) {
+                int[] local = new int[1];
+                Shard s = locate(row, local, false);
+                long lockStart = LockWait.start();
+                synchronized (s) {
+                    LockWait.acquired(lockStart);
+                    if (local[0] < s.mSize) {
+                        return s.pop(local[0], col, delimiter, deleteRow);
+                    }
+                }
+            }
+        }
+        for (int probe = 0; probe < mShards.length; probe++) {
+            Shard s = mShards[(mSelector.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (s.mSize > 0) {
+                    return s.pop(s.mCursor, col, delimiter, deleteRow);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Таблица пуста");
+    }
+
+    /**
+     * Забор нескольких строк/ячеек. Если строк меньше, чем запрошено, забираются все.
+     * Строки каждой части забираются за одну ее блокировку: без номера строки части опустошаются по очереди,
+     * с номером - от этой строки до конца ее части, затем со следующей части. Пачка, захватившая несколько частей,
+     * атомарна только в пределах каждой из них.
+     *
+     * @param row       Строка, {@code null} - текущие строки частей. Удаленные строки сдвигают следующие на их место.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> pop(Integer row, Integer col, String delimiter, boolean deleteRow, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        if (row != null) {
+            while (res.size() < count) {
+                try {
+                    int[] local = new int[1];
+                    Shard s = locate(row, local, false);
+                    long lockStart = LockWait.start();
+                    synchronized (s) {
+                        LockWait.acquired(lockStart);
+                        //Удаленные строки сдвигают следующие на их место, пока часть не кончится
+                        while (res.size() < count && local[0] < s.mSize) {
+                            res.add(s.pop(local[0], col, delimiter, deleteRow));
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    if (res.isEmpty()) {
+                        throw e;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+        int first = mSelector.getAndIncrement() & Integer.MAX_VALUE;
+        for (int probe = 0; probe < mShards.length && res.size() < count; probe++) {
+            Shard s = mShards[(first + probe) % mShards.length];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                while (res.size() < count && s.mSize > 0) {
+                    res.add(s.pop(s.mCursor, col, delimiter, deleteRow));
+                }
+            }
+        }
+        if (res.isEmpty()) {
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        return res;
+    }
+
+    /**
+     * Загрузить в таблицу.
+     *
+     * @param row       Строка, {@code null} - перед текущей строкой очередной части.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param data      Данные.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, Integer col, String delimiter, String data) {
+        if (col == null) {
+            ArrayList<String[]> rows = new ArrayList<>(1);
+            rows.add(createRowFromString(data, delimiter));
+            return push(row, rows);
+        }
+        if (row == null) {
+            for (int probe = 0; probe < mShards.length; probe++) {
+                Shard s = mShards[(mSelector.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+                long lockStart = LockWait.start();
+                synchronized (s) {
+                    LockWait.acquired(lockStart);
+                    if (s.mSize > 0) {
+                        s.mRows.set(s.mCursor, insertCell(s.mRows.get(s.mCursor), col, data));
+                        return "OK";
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        while (true) {
+            int[] local = new int[1];
+            Shard s = locate(row, local, false);
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (local[0] < s.mSize) {
+                    s.mRows.set(local[0], insertCell(s.mRows.get(local[0]), col, data));
+                    return "OK";
+                }
+            }
+        }
+    }
+
+    /**
+     * Вставка нескольких строк подряд в одну часть под ее блокировкой.
+     *
+     * @param row  Позиция первой строки, {@code null} - перед текущей строкой очередной части.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, List<String[]> rows) {
+        if (row == null) {
+            Shard s = mShards[(mSelector.getAndIncrement() & Integer.MAX_VALUE) % mShards.length];
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                s.insert(s.mCursor, rows);
+            }
+            return "OK";
+        }
+        while (true) {
+            int[] local = new int[1];
+            Shard s = locate(row, local, true);
+            long lockStart = LockWait.start();
+            synchronized (s) {
+                LockWait.acquired(lockStart);
+                if (local[0] <= s.mSize) {
+                    s.insert(local[0], rows);
+                    return "OK";
+                }
+            }
+        }
+    }
+
+    /**
+     * Часть таблицы. Все поля, кроме {@link #mSize}, меняются и читаются только под монитором части.
+     */
+    private static final class Shard {
+        private ArrayList<String[]> mRows = new ArrayList<>(); //Строки части
+        private volatile int mSize = 0; //Количество строк для поиска части без блокировки
+        private int mCursor = 0; //Текущая позиция в части
+
+        /**
+         * Текущая строка со сдвигом курсора.
+         *
+         * @return Строка.
+         */
+        private String[] next() {
+            if (mCursor >= mRows.size()) {
+                mCursor = 0;
+            }
+            return mRows.get(mCursor++);
+        }
+
+        /**
+         * Забор строки/ячейки.
+         *
+         * @param row       Номер строки в части.
+         * @param col       Колонка.
+         * @param delimiter Разделитель.
+         * @param deleteRow Удаление строки.
+         * @return Строка/ячейка.
+         */
+        private String pop(int row, Integer col, String delimiter, boolean deleteRow) {
+            if (row >= mRows.size()) {
+                row = 0;
+            }
+            String[] res = mRows.get(row);
+            if (col == null) {
+                remove(row);
+                return createStringFromRow(res, delimiter);
+            }
+            checkColumn(res, col);
+            if (deleteRow || res.length <= 1) {
+                remove(row);
+                return res.length <= 1 && !deleteRow ? createStringFromRow(res, delimiter) : res[col];
+            }
+            mRows.set(row, removeCell(res, col));
+            return res[col];
+        }
+
+        /**
+         * Удаление строки с поправкой курсора.
+         *
+         * @param row Номер строки в части.
+         */
+        private void remove(int row) {
+            mRows.remove(row);
+            mSize = mRows.size();
+            if (mCursor > row) {
+                mCursor--;
+            }
+            if (mCursor >= mRows.size()) {
+                mCursor = 0;
+            }
+        }
+
+        /**
+         * Вставка строк подряд с поправкой курсора.
+         *
+         * @param row  Позиция в части.
+         * @param rows Строки.
+         */
+        private void insert(int row, List<String[]> rows) {
+            if (row > mRows.size()) {
+                row = mRows.size();
+            }
+            boolean empty = mRows.isEmpty();
+            mRows.addAll(row, rows);
+            mSize = mRows.size();
+            if (row <= mCursor && !empty) {
+                mCursor += rows.size();
+            }
+        }
+    }
+}
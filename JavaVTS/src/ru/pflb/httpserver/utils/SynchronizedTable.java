@@ -0,0 +1,424 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Таблица-список под одной блокировкой. Все операции выполняются по очереди.
+ * Строки хранятся в куче как массивы строк, в компактном виде или читаются из отображенного файла (см. {@link STORAGE}).
+ */
+public class SynchronizedTable extends Table implements Indexed, Journaled {
+    private final RowStore mTable; //Сама таблица
+    private int mCursor = 0; //Текущая позиция
+
+    /**
+     * Конструктор.
+     *
+     * @param params Параметры таблицы
+     */
+    public SynchronizedTable(TableParams params) {
+        super(params);
+        switch (STORAGE.parse(params.storage)) {
+            case PACKED:
+                mTable = new PackedRowStore();
+                break;
+            case MAPPED:
+                mTable = new MappedRowStore();
+                break;
+            default:
+                mTable = mIndex == null ? new HeapRowStore() : new IndexedRowStore(mIndex);
+                break;
+        }
+    }
+
+    @Override
+    protected void loadFromFile() throws IOException {
+        if (mTable instanceof MappedRowStore) {
+            File f = getSourceFile();
+            long lockStart = LockWait.start();
+            synchronized (this) {
+                LockWait.acquired(lockStart);
+                ((MappedRowStore) mTable).map(f, mDelimiter);
+            }
+            return;
+        }
+        super.loadFromFile();
+    }
+
+    @Override
+    protected void addRows(List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mTable.addAll(rows);
+        }
+    }
+
+    @Override
+    protected void clear() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mTable.clear();
+            mCursor = 0;
+        }
+    }
+
+    @Override
+    public int size() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mTable.size();
+        }
+    }
+
+    @Override
+    public int getCursor() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mCursor;
+        }
+    }
+
+    @Override
+    public void setCursor(int cursor) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mCursor = mTable.size() == 0 ? 0 : Math.abs(cursor % mTable.size());
+        }
+    }
+
+    /**
+     * Получение строки/ячейки.
+     *
+     * @param row       Строка.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String get(Integer row, Integer col, String delimiter) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return getLocked(row, col, delimiter);
+        }
+    }
+
+    /**
+     * Получение нескольких строк/ячеек подряд под одной блокировкой.
+     *
+     * @param row       Первая строка, {@code null} - с текущей.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> get(Integer row, Integer col, String delimiter, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            for (int i = 0; i < count; i++) {
+                res.add(getLocked(row == null ? null : row + i, col, delimiter));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Получение строки/ячейки под блокировкой.
+     *
+     * @param row       Строка.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    private String getLocked(Integer row, Integer col, String delimiter) {
+        if (mTable.size() == 0) {
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        if (row == null) {
+            row = mCursor;
+        } else {
+            checkRow(row);
+        }
+        incrementCursor();
+        if (col == null) {
+            return mTable.format(row, delimiter);
+        }
+        checkColumn(row, col);
+        return mTable.cell(row, col);
+    }
+
+    @Override
+    protected String[] getSliceRow(int slice, int slices, int counter) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return mTable.row(sliceRow(mTable.size(), slice, slices, counter));
+        }
+    }
+
+    /**
+     * Увеличение курсора.
+     */
+    private void incrementCursor() {
+        mCursor++;
+        if (mCursor >= mTable.size()) {
+            mCursor = 0;
+        }
+    }
+
+    /**
+     * Проверка индекса строки.
+     *
+     * @param row Строка.
+     */
+    private void checkRow(int row) {
+        if (row >= mTable.size() || row < 0) {
+            throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mTable.size());
+        }
+    }
+
+    /**
+     * Проверка индекса столбца.
+     *
+     * @param row Строка.
+     * @param col Столбец.
+     */
+    private void checkColumn(int row, int col) {
+        int width = mTable.width(row);
+        if (col >= width || col < 0) {
+            throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + width);
+        }
+    }
+
+    /**
+     * Забор из таблицы.
+     *
+     * @param row       Строка.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    @Override
+    public String pop(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            return popLocked(row, col, delimiter, deleteRow);
+        }
+    }
+
+    /**
+     * Забор нескольких строк/ячеек под одной блокировкой. Если строк меньше, чем запрошено, забираются все.
+     *
+     * @param row       Строка, {@code null} - текущая. Удаленные строки сдвигают следующие на их место.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    @Override
+    public List<String> pop(Integer row, Integer col, String delimiter, boolean deleteRow, int count) {
+        ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            if (row != null) {
+                checkRow(row);
+            }
+            int min = row == null ? 0 : row;
+            for (int i = 0; i < count && mTable.size() > min; i++) {
+                res.add(popLocked(row, col, delimiter, deleteRow));
+            }
+            if (res.isEmpty()) {
+                throw new IllegalArgumentException("Таблица пуста");
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Забор из таблицы под блокировкой.
+     *
+     * @param row       Строка.
+     * @param col       Колонка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @return Строка/ячейка.
+     */
+    private String popLocked(Integer row, Integer col, String delimiter, boolean deleteRow) {
+        if (mTable.size() == 0) {
+            throw new IllegalArgumentException("Таблица пуста");
+        }
+        if (row == null) {
+            row = mCursor;
+        } else {
+            checkRow(row);
+        }
+        if (col == null) {
+            String res = mTable.format(row, delimiter);
+            removeRow(row);
+            return res;
+        }
+        String[] res = mTable.row(row);
+        checkColumn(res, col);
+        if (deleteRow || res.length <= 1) {
+            removeRow(row);
+            return res.length <= 1 && !deleteRow ? createStringFromRow(res, delimiter) : res[col];
+        }
+        String[] cells = removeCell(res, col);
+        mTable.set(row, cells);
+        logSet(row, cells);
+        return res[col];
+    }
+
+    /**
+     * Удаление строки с поправкой курсора.
+     *
+     * @param row Строка.
+     */
+    private void removeRow(int row) {
+        mTable.remove(row);
+        logRemove(row);
+        if (mCursor > row) {
+            mCursor--;
+        }
+        if (mCursor >= mTable.size()) {
+            mCursor = 0;
+        }
+    }
+
+    /**
+     * Загрузить в таблицу.
+     *
+     * @param row       Строка.
+     * @param col       Столбец.
+     * @param delimiter Разделитель.
+     * @param data      Данные.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, Integer col, String delimiter, String data) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            if (row == null) {
+                row = mCursor;
+            } else {
+                int maxRow = mTable.size() + (col == null ? 1 : 0);
+                if (row >= maxRow || row < 0) {
+                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mTable.size());
+                }
+            }
+            if (col == null) {
+                insertRow(row, createRowFromString(data, delimiter));
+            } else {
+                if (mTable.size() == 0) {
+                    throw new IllegalArgumentException("Таблица пуста");
+                }
+                String[] cells = insertCell(mTable.row(row), col, data);
+                mTable.set(row, cells);
+                logSet(row, cells);
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Вставка нескольких строк подряд под одной блокировкой.
+     *
+     * @param row  Позиция первой строки, {@code null} - перед текущей.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    @Override
+    public String push(Integer row, List<String[]> rows) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            if (row != null && (row > mTable.size() || row < 0)) {
+                throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mTable.size());
+            }
+            int pos = row == null ? mCursor : row;
+            for (int i = 0; i < rows.size(); i++) {
+                insertRow(pos + i, rows.get(i));
+            }
+        }
+        return "OK";
+    }
+
+    /**
+     * Вставка строки с поправкой курсора.
+     *
+     * @param row   Позиция.
+     * @param cells Строка.
+     */
+    private void insertRow(int row, String[] cells) {
+        mTable.add(row, cells);
+        logInsert(row, cells);
+        if (row <= mCursor && mTable.size() > 1) {
+            incrementCursor();
+        }
+    }
+
+    /**
+     * Удаление строки, найденной по индексу: номер строки и удаление без перебора и сдвига - O(log n).
+     *
+     * @param row Строка из индекса.
+     */
+    @Override
+    public void removeIndexedRow(TableIndex.Entry row) {
+        removeRow(((IndexedRowStore) mTable).position(row));
+    }
+
+    @Override
+    public List<String[]> copyRows() {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            ArrayList<String[]> rows = new ArrayList<>(mTable.size());
+            for (int i = 0; i < mTable.size(); i++) {
+                rows.add(mTable.row(i));
+            }
+            return rows;
+        }
+    }
+
+    @Override
+    public void applyInsert(int row, String[] cells) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mTable.add(row, cells);
+        }
+    }
+
+    @Override
+    public void applyRemove(int row) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mTable.remove(row);
+        }
+    }
+
+    @Override
+    public void applySet(int row, String[] cells) {
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            mTable.set(row, cells);
+        }
+    }
+}
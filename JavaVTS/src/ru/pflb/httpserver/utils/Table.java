@@ -1,80 +1,294 @@
 package ru.pflb.httpserver.utils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
 
 import static ru.pflb.httpserver.core.HTTPConstants.getValue;
 
 /**
- * Потокобезопасная(?) таблица
+ * Виртуальная таблица.
+ * Общая часть всех реализаций: разбор параметров команд, загрузка из файла и выбор реализации по типу.
  */
-public class Table {
+public abstract class Table {
     public static final String DEFAULT_DELIMITER = ";"; //Разделитель по умолчанию
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 60; //Период снимков таблиц с журналом, с
+    public static final int MAX_COUNT = 100000; //Максимум строк в пакетной команде (get и pop с count)
 
-    private final String mName; //Имя таблицы
-    private final List<Vector<String>> mTable = Collections.synchronizedList(new ArrayList<Vector<String>>());//Сама таблица
-    private String mFileName; //Имя файла для загрузки
-    private String mDelimiter; //Разделитель
-    private int mCursor = 0; //Текущая позиция
+    protected final TableParams mParams; //Параметры, с которыми создана таблица
+    protected final String mName; //Имя таблицы
+    protected String mFileName; //Имя файла для загрузки
+    protected String mDelimiter; //Разделитель
+    protected final TableIndex mIndex; //Хеш-индексы по столбцам, {@code null} - без индексов
+    private TableFollower mFollower; //Слежение за дописываемым файлом
+    private volatile Runnable mAppendListener; //Уведомление о строках, дописанных слежением за файлом
+    volatile TableJournal mJournal; //Журнал изменений (при передаче другой таблице меняется журналом под блокировкой таблицы)
+    private volatile ClientCursors mClients = new ClientCursors(); //Курсоры клиентов
 
     /**
      * Конструктор.
      *
      * @param params Параметры таблицы
-     * @throws IOException При ошибке.
      */
-    public Table(TableParams params) throws IOException {
+    protected Table(TableParams params) {
+        mParams = params.copy();
         mName = params.name;
         mFileName = params.filename;
         mDelimiter = params.delimiter == null ? DEFAULT_DELIMITER : params.delimiter;
+        mIndex = TableIndex.parse(params.index);
+    }
+
+    /**
+     * Создание таблицы нужного типа и загрузка данных из файла, если он указан.
+     *
+     * @param params Параметры таблицы.
+     * @return Таблица.
+     * @throws IOException При ошибке загрузки.
+     */
+    public static Table create(TableParams params) throws IOException {
+        return create(params, true);
+    }
 
-        if (mFileName != null && !mFileName.isEmpty()) {
-            loadFromFile();
+    /**
+     * Создание таблицы.
+     *
+     * @param params  Параметры таблицы.
+     * @param journal Открыть журнал, если он задан, и восстановить из него состояние
+     *                ({@code false} - таблица загружается из файла, журнал передается ей позже).
+     * @return Таблица.
+     * @throws IOException При ошибке загрузки.
+     */
+    private static Table create(TableParams params, boolean journal) throws IOException {
+        Table table;
+        TYPE type = TYPE.parse(params.type);
+        STORAGE storage = STORAGE.parse(params.storage);
+        if (storage != STORAGE.HEAP && type != TYPE.LIST) {
+            throw new IllegalArgumentException("Хранилище " + params.storage + " поддерживается только для таблиц типа " + TYPE.LIST);
+        }
+        boolean hasFile = params.filename != null && !params.filename.isEmpty();
+        if (storage == STORAGE.MAPPED && !hasFile) {
+            throw new IllegalArgumentException("Для хранилища " + STORAGE.MAPPED + " нужен файл");
+        }
+        if (params.follow && (!hasFile || storage == STORAGE.MAPPED)) {
+            throw new IllegalArgumentException("Слежение за файлом возможно только для таблиц из файла и не для хранилища " + STORAGE.MAPPED);
         }
+        boolean hasJournal = params.journal != null && !params.journal.isEmpty();
+        if (params.follow && type == TYPE.SHARDED) {
+            throw new IllegalArgumentException("Слежение за файлом не поддерживается для таблиц типа " + TYPE.SHARDED);
+        }
+        switch (type) {
+            case CONCURRENT:
+                table = new ConcurrentTable(params);
+                break;
+            case QUEUE:
+                table = new QueueTable(params);
+                break;
+            case SHARDED:
+                table = new ShardedTable(params);
+                break;
+            default:
+                table = new SynchronizedTable(params);
+                break;
+        }
+        if (hasJournal && (!(table instanceof Journaled) || storage == STORAGE.MAPPED || params.follow)) {
+            throw new IllegalArgumentException("Журнал поддерживается для таблиц типа " + TYPE.LIST + " и " + TYPE.QUEUE
+                    + ", кроме хранилища " + STORAGE.MAPPED + " и слежения за файлом");
+        }
+        if (table.mIndex != null && (!(table instanceof Indexed) || storage != STORAGE.HEAP)) {
+            throw new IllegalArgumentException("Индексы поддерживаются для таблиц типа " + TYPE.LIST + " с хранилищем " + STORAGE.HEAP
+                    + " и для таблиц типа " + TYPE.QUEUE);
+        }
+        if (hasJournal && journal) {
+            table.mJournal = TableJournal.open(table, params.journal, params.sync,
+                    params.snapshotInterval == null ? DEFAULT_SNAPSHOT_INTERVAL : params.snapshotInterval, true);
+        } else if (params.follow) {
+            table.mFollower = new TableFollower(table, table.getSourceFile());
+            table.mFollower.start();
+        } else if (hasFile) {
+            table.loadFromFile();
+        }
+        return table;
     }
 
     /**
-     * Загрузка из файла.
-     * @throws IOException При ошибке.
+     * Освобождение таблицы после удаления или замены: останавливается слежение за файлом и журнал.
+     * Реестр модуля вызывает его после завершения всех запросов, начатых с таблицей.
+     */
+    public void close() {
+        if (mFollower != null) {
+            mFollower.stop();
+        }
+        closeJournal();
+    }
+
+    /**
+     * Подписка на строки, которые слежение за файлом дописывает в таблицу (вставки через команды таблицы
+     * вызывающий учитывает сам). Вызывается в потоке слежения.
+     *
+     * @param listener Обработчик, {@code null} - без уведомлений.
+     */
+    public void setAppendListener(Runnable listener) {
+        mAppendListener = listener;
+    }
+
+    /**
+     * Уведомление о строках, дописанных слежением за файлом.
      */
-    private void loadFromFile() throws IOException {
+    void appended() {
+        Runnable listener = mAppendListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Остановка журнала с записью всего накопленного на диск.
+     */
+    private void closeJournal() {
+        TableJournal journal = mJournal;
+        if (journal != null) {
+            mJournal = null;
+            journal.close();
+        }
+    }
+
+    /**
+     * Передача журнала другой таблице: журнал начинается заново со снимка ее строк, изменения этой таблицы
+     * больше не записываются. При ошибке записи снимка журнал остается у этой таблицы.
+     *
+     * @param target Таблица, получающая журнал.
+     * @return {@code false}, если у таблицы нет журнала.
+     * @throws IOException При ошибке записи снимка.
+     */
+    public boolean handOverJournal(Table target) throws IOException {
+        TableJournal journal;
         synchronized (this) {
-            File f = new File(mFileName);
-            if (!f.exists() || !f.canRead())
-                throw new IOException("Невозможно прочесть файл: " + f.getAbsolutePath());
-            BufferedReader br = new BufferedReader(new FileReader(f));
-            String row;
-            while (br.ready()) {
-                row = br.readLine();
-                insertNewRow(row);
+            journal = mJournal;
+            mJournal = null;
+        }
+        if (journal == null) {
+            return false;
+        }
+        try {
+            journal.attach(target);
+        } catch (IOException e) {
+            synchronized (target) {
+                if (target.mJournal == journal) {
+                    target.mJournal = null;
+                }
+            }
+            try {
+                journal.attach(this);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
             }
+            throw e;
         }
+        return true;
     }
 
     /**
-     * Вставка строки в таблицу.
+     * Запись вставки строки в журнал. Вызывается под блокировкой таблицы после изменения.
+     *
+     * @param row   Строка.
+     * @param cells Ячейки.
+     */
+    protected final void logInsert(int row, String[] cells) {
+        TableJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(TableJournal.INSERT, row, cells);
+        }
+    }
+
+    /**
+     * Запись удаления строки в журнал. Вызывается под блокировкой таблицы после изменения.
+     *
      * @param row Строка.
      */
-    private void insertNewRow(String row) {
-        synchronized (this) {
-            String[] cells = row.split(mDelimiter);
-            Vector<String> v = new Vector<>(cells.length);
-            v.addAll(Arrays.asList(cells));
-            mTable.add(v);
+    protected final void logRemove(int row) {
+        TableJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(TableJournal.REMOVE, row, null);
+        }
+    }
+
+    /**
+     * Запись замены строки в журнал. Вызывается под блокировкой таблицы после изменения.
+     *
+     * @param row   Строка.
+     * @param cells Новые ячейки.
+     */
+    protected final void logSet(int row, String[] cells) {
+        TableJournal journal = mJournal;
+        if (journal != null) {
+            journal.append(TableJournal.SET, row, cells);
         }
     }
 
+    /**
+     * Ожидание записи журнала на диск, если таблица создана с sync.
+     */
+    private void awaitJournal() {
+        TableJournal journal = mJournal;
+        if (journal != null) {
+            journal.await();
+        }
+    }
+
+    /**
+     * Загрузка из файла.
+     * @throws IOException При ошибке.
+     */
+    protected void loadFromFile() throws IOException {
+        CsvParser.load(getSourceFile(), mDelimiter, Charset.defaultCharset(), this);
+    }
+
+    /**
+     * Файл для загрузки.
+     *
+     * @return Файл.
+     * @throws IOException Если файл нельзя прочесть.
+     */
+    protected File getSourceFile() throws IOException {
+        File f = new File(mFileName);
+        if (!f.exists() || !f.canRead())
+            throw new IOException("Невозможно прочесть файл: " + f.getAbsolutePath());
+        return f;
+    }
+
+    /**
+     * Добавление строк в конец таблицы.
+     *
+     * @param rows Строки.
+     */
+    protected abstract void addRows(List<String[]> rows);
+
+    /**
+     * Очистка таблицы.
+     */
+    protected abstract void clear();
+
     /**
      * Размер таблицы.
      *
      * @return Размер таблицы.
      */
-    public int size() {
-        return mTable.size();
-    }
+    public abstract int size();
+
+    /**
+     * Текущая позиция курсора (строка, которую вернет get без номера).
+     *
+     * @return Позиция курсора.
+     */
+    public abstract int getCursor();
+
+    /**
+     * Установка курсора. Позиция за пределами таблицы берется по модулю размера.
+     *
+     * @param cursor Позиция курсора.
+     */
+    public abstract void setCursor(int cursor);
 
     /**
      * Получение строки/ячейки.
@@ -86,79 +300,154 @@ public class Table {
         Integer row = getValue(params, PARAMS.ROW.toString(), (Integer) null);
         Integer col = getValue(params, PARAMS.COL.toString(), (Integer) null);
         String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
+        String client = params.get(PARAMS.CLIENT.toString());
+        String key = params.get(PARAMS.KEY.toString());
+        Integer slices = getValue(params, PARAMS.SLICES.toString(), (Integer) null);
 
+        if (client != null || key != null || slices != null) {
+            return formatRow(clientRow(row, client, key, slices), col, delimiter);
+        }
         return get(row, col, delimiter);
     }
 
     /**
      * Получение строки/ячейки.
      *
-     * @param row       Строка.
-     * @param col       Столбец.
+     * @param row       Строка, {@code null} - текущая с переходом к следующей.
+     * @param col       Столбец, {@code null} - вся строка.
      * @param delimiter Разделитель.
      * @return Строка/ячейка.
      */
-    private String get(Integer row, Integer col, String delimiter) {
-        Vector<String> res;
-        synchronized (this) {
-            if(mTable.size()==0){
-                throw new IllegalArgumentException("Таблица пуста");
-            }
-            if (row == null) {
-                row = mCursor;
-            } else {
-                if (row >= mTable.size()) {
-                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mTable.size());
-                }
+    public abstract String get(Integer row, Integer col, String delimiter);
+
+    /**
+     * Получение нескольких строк/ячеек за один запрос.
+     *
+     * @param params Параметры.
+     * @param count  Количество.
+     * @return Строки/ячейки.
+     */
+    public List<String> get(HashMap<String, String> params, int count) {
+        Integer row = getValue(params, PARAMS.ROW.toString(), (Integer) null);
+        Integer col = getValue(params, PARAMS.COL.toString(), (Integer) null);
+        String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
+        String client = params.get(PARAMS.CLIENT.toString());
+        String key = params.get(PARAMS.KEY.toString());
+        Integer slices = getValue(params, PARAMS.SLICES.toString(), (Integer) null);
+
+        if (client != null || key != null || slices != null) {
+            checkCount(count);
+            ArrayList<String> res = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                res.add(formatRow(clientRow(row, client, key, slices), col, delimiter));
             }
-            res = mTable.get(row);
-            incrementCursor();
+            return res;
         }
-        if (col == null) {
-            return createStringFromRow(res, delimiter);
-        } else {
-            if (col >= res.size() || col < 0) {
-                throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из" + res.size());
-            }
-            return res.get(col);
+        return get(row, col, delimiter, checkCount(count));
+    }
+
+    /**
+     * Строка для клиента: по ключу всегда одна и та же строка (пока не меняется размер таблицы),
+     * по идентификатору клиента - следующая строка курсора клиента. С slices клиент перебирает только свою часть строк:
+     * клиент с порядковым номером k получает строки k, k + slices, k + 2 * slices..., части разных клиентов не пересекаются,
+     * пока клиентов не больше, чем частей.
+     *
+     * @param row    Номер строки (с клиентом не совмещается).
+     * @param client Идентификатор клиента.
+     * @param key    Ключ.
+     * @param slices Количество частей.
+     * @return Строка.
+     */
+    private String[] clientRow(Integer row, String client, String key, Integer slices) {
+        if (row != null) {
+            throw new IllegalArgumentException("Номер строки row не совмещается с client и key");
+        }
+        if (key != null) {
+            return getSliceRow(0, 1, key.hashCode() & Integer.MAX_VALUE);
         }
+        if (client == null) {
+            throw new IllegalArgumentException("Для slices нужен идентификатор клиента client");
+        }
+        if (slices != null && slices < 1) {
+            throw new IllegalArgumentException("Количество частей должно быть больше нуля: " + slices);
+        }
+        ClientCursors.Client c = mClients.get(client);
+        if (slices == null) {
+            return getSliceRow(0, 1, c.next());
+        }
+        return getSliceRow(c.number() % slices, slices, c.next());
     }
 
     /**
-     * Создание строки из параметров, разделенных разделителем.
+     * Строка из части таблицы без сдвига общего курсора.
+     * Часть slice из slices - строки с номерами slice, slice + slices, slice + 2 * slices... в пределах таблицы.
      *
-     * @param values    Строка из ячеек.
-     * @param delimiter Разделитель.
-     * @return Составленная строка.
+     * @param slice   Часть.
+     * @param slices  Количество частей.
+     * @param counter Неотрицательный счетчик, берется по модулю количества строк в части.
+     * @return Строка.
      */
-    private String createStringFromRow(Vector<String> values, String delimiter) {
-        StringBuilder sb = new StringBuilder();
+    protected abstract String[] getSliceRow(int slice, int slices, int counter);
 
-        for (int i = 0; i < values.size(); ++i) {
-            sb.append(values.get(i));
-            if (i != values.size() - 1) {
-                sb.append(delimiter);
-            }
+    /**
+     * Номер строки в части таблицы (см. {@link #getSliceRow(int, int, int)}).
+     *
+     * @param size    Размер таблицы.
+     * @param slice   Часть.
+     * @param slices  Количество частей.
+     * @param counter Неотрицательный счетчик.
+     * @return Номер строки.
+     */
+    protected static int sliceRow(int size, int slice, int slices, int counter) {
+        int count = sliceSize(size, slice, slices);
+        if (count <= 0) {
+            throw new IllegalArgumentException(size == 0 ? "Таблица пуста"
+                    : "В части " + slice + " из " + slices + " нет строк, строк в таблице: " + size);
         }
-        return sb.toString();
+        return slice + slices * (counter % count);
     }
 
     /**
-     * Увеличение курсора.
+     * Количество строк в части таблицы.
+     *
+     * @param size   Размер таблицы.
+     * @param slice  Часть.
+     * @param slices Количество частей.
+     * @return Количество строк.
      */
-    private void incrementCursor() {
-        mCursor++;
-        if (mCursor >= mTable.size()) {
-            mCursor = 0;
-        }
+    protected static int sliceSize(int size, int slice, int slices) {
+        return size <= slice ? 0 : (size - slice - 1) / slices + 1;
     }
 
-    private void checkCursor(){
-        if (mCursor >= mTable.size()) {
-            mCursor = 0;
-        }
+    /**
+     * Количество клиентов с собственными курсорами.
+     *
+     * @return Количество клиентов.
+     */
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * Перенос курсоров клиентов из прежней таблицы (при перезагрузке).
+     *
+     * @param from Прежняя таблица.
+     */
+    public void keepClientCursors(Table from) {
+        mClients = from.mClients;
     }
 
+    /**
+     * Получение нескольких строк/ячеек подряд под одной блокировкой.
+     *
+     * @param row       Первая строка, {@code null} - с текущей, курсор сдвигается на количество строк.
+     * @param col       Столбец, {@code null} - вся строка.
+     * @param delimiter Разделитель.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    public abstract List<String> get(Integer row, Integer col, String delimiter, int count);
+
     /**
      * Забор из таблицы.
      *
@@ -171,54 +460,53 @@ public class Table {
         String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
         Boolean deleteRow = getValue(params, PARAMS.DELETEROW.toString(), true);
 
-        return pop(row, col, delimiter, deleteRow);
+        String res = pop(row, col, delimiter, deleteRow);
+        awaitJournal();
+        return res;
     }
 
     /**
      * Забор из таблицы.
      *
-     * @param row       Строка.
-     * @param col       Колонка.
+     * @param row       Строка, {@code null} - текущая.
+     * @param col       Колонка, {@code null} - вся строка.
      * @param delimiter Разделитель.
      * @param deleteRow Удаление строки.
      * @return Строка/ячейка.
      */
-    private String pop(Integer row, Integer col, String delimiter, Boolean deleteRow) {
-        Vector<String> res;
-        synchronized (this) {
-            if(mTable.size()==0){
-                throw new IllegalArgumentException("Таблица пуста");
-            }
-            if (row == null) {
-                row = mCursor;
-            } else {
-                if (row >= mTable.size()) {
-                    throw new IllegalArgumentException("Индекс струоки равен или превышает размер таблицы: " + row + " из " + mTable.size());
-                }
-            }
-            res = mTable.get(row);
-            if (deleteRow || col == null) {
-                mTable.remove(row.intValue());
-            }
-            mCursor--;
-            incrementCursor();
-            if (col == null) {
-                return createStringFromRow(res, delimiter);
-            } else {
-                if (col >= res.size() || col < 0) {
-                    throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + res.size());
-                }
-                if (res.size() <= 1) {
-                    mTable.remove(row.intValue());
-                    return createStringFromRow(res, delimiter);
-                }
-                String result = res.get(col);
-                res.remove(col.intValue());
-                return result;
-            }
-        }
+    public abstract String pop(Integer row, Integer col, String delimiter, boolean deleteRow);
+
+    /**
+     * Забор нескольких строк/ячеек за один запрос.
+     *
+     * @param params Параметры.
+     * @param count  Количество.
+     * @return Строки/ячейки.
+     */
+    public List<String> pop(HashMap<String, String> params, int count) {
+        Integer row = getValue(params, PARAMS.ROW.toString(), (Integer) null);
+        Integer col = getValue(params, PARAMS.COL.toString(), (Integer) null);
+        String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
+        Boolean deleteRow = getValue(params, PARAMS.DELETEROW.toString(), true);
+
+        List<String> res = pop(row, col, delimiter, deleteRow, checkCount(count));
+        awaitJournal();
+        return res;
     }
 
+    /**
+     * Забор нескольких строк/ячеек под одной блокировкой. Если строк меньше, чем запрошено, забираются все,
+     * если строк нет - ошибка.
+     *
+     * @param row       Строка, {@code null} - текущая.
+     * @param col       Колонка, {@code null} - вся строка.
+     * @param delimiter Разделитель.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки/ячейки.
+     */
+    public abstract List<String> pop(Integer row, Integer col, String delimiter, boolean deleteRow, int count);
+
     /**
      * Загрузить в таблицу
      *
@@ -231,7 +519,9 @@ public class Table {
         Integer col = getValue(params, PARAMS.COL.toString(), (Integer) null);
         String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
 
-        return push(row, col, delimiter, data);
+        String res = push(row, col, delimiter, data);
+        awaitJournal();
+        return res;
     }
 
     /**
@@ -243,29 +533,196 @@ public class Table {
      * @param data      Данные.
      * @return Результат.
      */
-    private String push(Integer row, Integer col, String delimiter, String data) {
-        synchronized (this) {
-            if (row == null) {
-                row = mCursor;
-            } else {
-                int maxRow = mTable.size() + (col == null ? 1 : 0);
-                if (row > maxRow) {
-                    throw new IllegalArgumentException("Индекс строки равен или превышает размер таблицы: " + row + " из " + mTable.size());
-                }
+    public abstract String push(Integer row, Integer col, String delimiter, String data);
+
+    /**
+     * Загрузить в таблицу несколько строк: каждая строка тела запроса - строка таблицы.
+     *
+     * @param params Параметры.
+     * @param data   Строки через перевод строки.
+     * @return Результат.
+     */
+    public String pushRows(HashMap<String, String> params, String data) {
+        Integer row = getValue(params, PARAMS.ROW.toString(), (Integer) null);
+        String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
+        if (params.get(PARAMS.COL.toString()) != null) {
+            throw new IllegalArgumentException("Несколько строк можно вставить только целиком, без col");
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("Не передано значение для вставки");
+        }
+        List<String[]> rows = CsvParser.parseRows(data, delimiter);
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("Не передано значение для вставки");
+        }
+
+        String res = push(row, rows);
+        awaitJournal();
+        return res;
+    }
+
+    /**
+     * Вставка нескольких строк подряд под одной блокировкой.
+     *
+     * @param row  Позиция первой строки, {@code null} - как у одиночной вставки.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    public abstract String push(Integer row, List<String[]> rows);
+
+    /**
+     * Получение строк/ячеек без разбора параметров запроса (бинарный протокол).
+     *
+     * @param row   Первая строка, {@code null} - с текущей.
+     * @param col   Столбец, {@code null} - вся строка.
+     * @param count Количество.
+     * @return Строки (через разделитель таблицы) или ячейки.
+     */
+    public List<String> getRows(Integer row, Integer col, int count) {
+        return get(row, col, mDelimiter, checkCount(count));
+    }
+
+    /**
+     * Забор строк/ячеек без разбора параметров запроса (бинарный протокол).
+     *
+     * @param row       Строка, {@code null} - текущая.
+     * @param col       Столбец, {@code null} - вся строка.
+     * @param deleteRow Удаление строки.
+     * @param count     Количество.
+     * @return Строки (через разделитель таблицы) или ячейки.
+     */
+    public List<String> popRows(Integer row, Integer col, boolean deleteRow, int count) {
+        List<String> res = pop(row, col, mDelimiter, deleteRow, checkCount(count));
+        awaitJournal();
+        return res;
+    }
+
+    /**
+     * Вставка строк, уже разбитых на ячейки (бинарный протокол).
+     *
+     * @param row  Позиция первой строки, {@code null} - как у одиночной вставки.
+     * @param rows Строки.
+     * @return Результат.
+     */
+    public String pushRows(Integer row, List<String[]> rows) {
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("Не передано значение для вставки");
+        }
+        for (String[] cells : rows) {
+            if (cells == null || cells.length == 0) {
+                throw new IllegalArgumentException("Не передано значение для вставки");
             }
-            if (col == null) {
-                mTable.add(mCursor, createRowFromString(data, delimiter));
-                incrementCursor();
-                checkCursor();
-            } else {
-                Vector<String> res = mTable.get(row);
-                if (col > res.size()) {
-                    throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + res.size());
+            for (String cell : cells) {
+                if (cell == null) {
+                    throw new IllegalArgumentException("Ячейка не может быть null");
                 }
-                res.add(col, data);
             }
         }
-        return "OK";
+        String res = push(row, rows);
+        awaitJournal();
+        return res;
+    }
+
+    /**
+     * Поиск строки по индексу с ожиданием журнала, если строка забирается (бинарный протокол).
+     *
+     * @param col   Столбец.
+     * @param value Значение.
+     * @param take  Удалить найденную строку.
+     * @return Строка.
+     */
+    public String[] findRow(int col, String value, boolean take) {
+        String[] res = find(col, value, take);
+        if (take) {
+            awaitJournal();
+        }
+        return res;
+    }
+
+    /**
+     * Поиск строки по значению столбца с индексом.
+     *
+     * @param params Параметры.
+     * @return Строка/ячейка.
+     */
+    public String find(HashMap<String, String> params) {
+        Integer col = getValue(params, PARAMS.COL.toString(), (Integer) null);
+        String value = params.get(PARAMS.VALUE.toString());
+        String delimiter = getValue(params, PARAMS.DELIMITER.toString(), mDelimiter);
+        Boolean take = getValue(params, PARAMS.TAKE.toString(), false);
+        Integer result = getValue(params, PARAMS.RESULT.toString(), (Integer) null);
+        if (col == null || value == null) {
+            throw new IllegalArgumentException("Для поиска нужны столбец col и значение value");
+        }
+
+        String[] res = find(col, value, take);
+        if (take) {
+            awaitJournal();
+        }
+        if (result == null) {
+            return createStringFromRow(res, delimiter);
+        }
+        checkColumn(res, result);
+        return res[result];
+    }
+
+    /**
+     * Поиск строки по значению столбца с индексом за O(1), забор найденной строки - O(log n). Из строк с одинаковым значением берется добавленная раньше.
+     *
+     * @param col   Столбец.
+     * @param value Значение.
+     * @param take  Удалить найденную строку (атомарно с поиском).
+     * @return Строка.
+     */
+    public String[] find(int col, String value, boolean take) {
+        if (mIndex == null) {
+            throw new IllegalArgumentException("Таблица " + mName + " создана без индексов");
+        }
+        TableIndex.Entry res;
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            LockWait.acquired(lockStart);
+            res = mIndex.find(col, value);
+            if (res != null && take) {
+                ((Indexed) this).removeIndexedRow(res);
+            }
+        }
+        if (res == null) {
+            throw new IllegalArgumentException("Строка со значением " + value + " в столбце " + col + " не найдена");
+        }
+        return res.mCells;
+    }
+
+    /**
+     * Проверка количества строк в пакетной команде.
+     *
+     * @param count Количество.
+     * @return Количество.
+     */
+    private static int checkCount(int count) {
+        if (count < 1 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("Количество строк должно быть от 1 до " + MAX_COUNT + ": " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Создание строки из параметров, разделенных разделителем.
+     *
+     * @param values    Строка из ячеек.
+     * @param delimiter Разделитель.
+     * @return Составленная строка.
+     */
+    protected static String createStringFromRow(String[] values, String delimiter) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < values.length; ++i) {
+            sb.append(values[i]);
+            if (i != values.length - 1) {
+                sb.append(delimiter);
+            }
+        }
+        return sb.toString();
     }
 
     /**
@@ -275,10 +732,71 @@ public class Table {
      * @param delimiter Разделитель.
      * @return Строка таблицы.
      */
-    private Vector<String> createRowFromString(String data, String delimiter) {
-        Vector<String> res = new Vector<>();
-        String[] buf = data.split(delimiter);
-        Collections.addAll(res, buf);
+    protected static String[] createRowFromString(String data, String delimiter) {
+        if (data == null) {
+            throw new IllegalArgumentException("Не передано значение для вставки");
+        }
+        return CsvParser.parseLine(data, delimiter);
+    }
+
+    /**
+     * Строка или ячейка для ответа.
+     *
+     * @param row       Строка.
+     * @param col       Столбец, {@code null} - вся строка.
+     * @param delimiter Разделитель.
+     * @return Строка/ячейка.
+     */
+    protected static String formatRow(String[] row, Integer col, String delimiter) {
+        if (col == null) {
+            return createStringFromRow(row, delimiter);
+        }
+        checkColumn(row, col);
+        return row[col];
+    }
+
+    /**
+     * Проверка индекса столбца.
+     *
+     * @param row Строка.
+     * @param col Столбец.
+     */
+    protected static void checkColumn(String[] row, int col) {
+        if (col >= row.length || col < 0) {
+            throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + row.length);
+        }
+    }
+
+    /**
+     * Строка без указанной ячейки.
+     *
+     * @param row Строка.
+     * @param col Столбец.
+     * @return Новая строка.
+     */
+    protected static String[] removeCell(String[] row, int col) {
+        String[] res = new String[row.length - 1];
+        System.arraycopy(row, 0, res, 0, col);
+        System.arraycopy(row, col + 1, res, col, row.length - col - 1);
+        return res;
+    }
+
+    /**
+     * Строка с новой ячейкой.
+     *
+     * @param row   Строка.
+     * @param col   Позиция новой ячейки.
+     * @param value Значение.
+     * @return Новая строка.
+     */
+    protected static String[] insertCell(String[] row, int col, String value) {
+        if (col > row.length || col < 0) {
+            throw new IllegalArgumentException("Индекс столбца равен или превышает размер строки: " + col + " из " + row.length);
+        }
+        String[] res = new String[row.length + 1];
+        System.arraycopy(row, 0, res, 0, col);
+        res[col] = value;
+        System.arraycopy(row, col, res, col + 1, row.length - col);
         return res;
     }
 
@@ -286,21 +804,28 @@ public class Table {
         return mName;
     }
 
-    public void reload(String fileName, String delimiter) throws IOException {
-        if (fileName != null && !fileName.isEmpty()) {
-            mFileName = fileName;
-        }
-        if (delimiter != null && !delimiter.isEmpty()) {
-            mDelimiter = delimiter;
-        }
-        clear();
-        loadFromFile();
+    public String getDelimiter() {
+        return mDelimiter;
     }
 
-    private void clear() {
-        synchronized (this) {
-            mTable.clear();
+    /**
+     * Перезагрузка: новая таблица того же типа загружается из файла, эта таблица не меняется и продолжает работать,
+     * пока вызывающий не подменит ее новой. Журнал остается у этой таблицы, перед подменой вызывающий передает его
+     * новой через {@link #handOverJournal(Table)}.
+     *
+     * @param fileName  Файл, {@code null} - прежний.
+     * @param delimiter Разделитель, {@code null} - прежний.
+     * @return Загруженная таблица.
+     * @throws IOException При ошибке загрузки.
+     */
+    public Table reload(String fileName, String delimiter) throws IOException {
+        TableParams params = mParams.copy();
+        params.filename = fileName != null && !fileName.isEmpty() ? fileName : mFileName;
+        params.delimiter = delimiter != null && !delimiter.isEmpty() ? delimiter : mDelimiter;
+        if (params.filename == null || params.filename.isEmpty()) {
+            throw new IllegalArgumentException("Не указан файл для перезагрузки таблицы " + mName);
         }
+        return create(params, false);
     }
 
     /**
@@ -311,7 +836,15 @@ public class Table {
         ROW("row"),
         COL("col"),
         DELIMITER("delimiter"),
-        DELETEROW("deleterow");
+        DELETEROW("deleterow"),
+        COUNT("count"),
+        VALUE("value"),
+        TAKE("take"),
+        RESULT("result"),
+        CLIENT("client"),
+        KEY("key"),
+        SLICES("slices"),
+        WAIT("wait");
 
         private final String mValue;
 
@@ -325,10 +858,151 @@ public class Table {
         }
     }
 
+    /**
+     * Типы таблиц.
+     */
+    public enum TYPE {
+        LIST("list"), //Список под общей блокировкой (исходное поведение)
+        CONCURRENT("concurrent"), //Неблокирующее чтение по снимку, забор строк через CAS
+        QUEUE("queue"), //Очередь: pop с головы и push в хвост за O(1)
+        SHARDED("sharded"); //Строки разбиты на части со своими блокировками
+
+        private final String mValue;
+
+        TYPE(String value) {
+            mValue = value;
+        }
+
+        /**
+         * Разбор типа таблицы.
+         *
+         * @param value Строка с типом, {@code null} - тип по умолчанию.
+         * @return Тип таблицы.
+         */
+        public static TYPE parse(String value) {
+            if (value == null || value.isEmpty()) {
+                return LIST;
+            }
+            for (TYPE t : values()) {
+                if (t.mValue.equalsIgnoreCase(value)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Неизвестный тип таблицы: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Способы хранения строк.
+     */
+    public enum STORAGE {
+        HEAP("heap"), //Массив строк Java на каждую строку таблицы
+        PACKED("packed"), //Ячейки в UTF-8 в больших массивах байт, строки Java создаются только при ответе
+        MAPPED("mmap"); //Файл отображается в память, ячейки разбираются при запросе. Только для чтения
+
+        private final String mValue;
+
+        STORAGE(String value) {
+            mValue = value;
+        }
+
+        /**
+         * Разбор способа хранения.
+         *
+         * @param value Строка со способом хранения, {@code null} - по умолчанию.
+         * @return Способ хранения.
+         */
+        public static STORAGE parse(String value) {
+            if (value == null || value.isEmpty()) {
+                return HEAP;
+            }
+            for (STORAGE s : values()) {
+                if (s.mValue.equalsIgnoreCase(value)) {
+                    return s;
+                }
+            }
+            throw new IllegalArgumentException("Неизвестный способ хранения: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Перенос курсора при перезагрузке.
+     */
+    public enum CURSOR {
+        KEEP("keep"), //Курсор остается на той же позиции (по модулю нового размера)
+        RESET("reset"); //Курсор на первую строку
+
+        private final String mValue;
+
+        CURSOR(String value) {
+            mValue = value;
+        }
+
+        /**
+         * Разбор политики курсора.
+         *
+         * @param value Строка с политикой, {@code null} - по умолчанию.
+         * @return Политика.
+         */
+        public static CURSOR parse(String value) {
+            if (value == null || value.isEmpty()) {
+                return KEEP;
+            }
+            for (CURSOR c : values()) {
+                if (c.mValue.equalsIgnoreCase(value)) {
+                    return c;
+                }
+            }
+            throw new IllegalArgumentException("Неизвестная политика курсора: " + value);
+        }
+
+        @Override
+        public String toString() {
+            return mValue;
+        }
+    }
+
     /**
      * Параметры таблицы.
      */
     public static class TableParams {
-        public String name, filename, delimiter;
+        public String name, filename, delimiter, type, storage;
+        public boolean follow; //Дозагружать строки, дописанные в файл
+        public String journal; //Путь к файлам журнала, {@code null} - без журнала
+        public Integer snapshotInterval; //Период снимков журнала, с
+        public boolean sync; //Ждать записи журнала на диск перед ответом
+        public String index; //Столбцы с хеш-индексами через запятую, {@code null} - без индексов
+        public Integer shards; //Количество частей таблицы типа sharded
+
+        /**
+         * Копия параметров.
+         *
+         * @return Копия.
+         */
+        public TableParams copy() {
+            TableParams params = new TableParams();
+            params.name = name;
+            params.filename = filename;
+            params.delimiter = delimiter;
+            params.type = type;
+            params.storage = storage;
+            params.follow = follow;
+            params.journal = journal;
+            params.snapshotInterval = snapshotInterval;
+            params.sync = sync;
+            params.index = index;
+            params.shards = shards;
+            return params;
+        }
     }
 }
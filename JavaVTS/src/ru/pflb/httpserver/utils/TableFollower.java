@@ -0,0 +1,102 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Слежение за дописываемым файлом таблицы (как tail -f).
+ * Запоминается смещение в байтах, до которого файл уже загружен; при опросе читаются только новые байты,
+ * и в таблицу добавляются строки, завершенные переводом строки. Недописанная строка дочитывается при следующем опросе.
+ * Если файл стал короче смещения (усечен или пересоздан), чтение начинается с начала файла.
+ * Все таблицы опрашиваются одним общим потоком.
+ */
+class TableFollower {
+    private static final long POLL_INTERVAL = 50; //Период опроса, мс
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VTS-follow");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Table mTable; //Таблица
+    private final File mFile; //Файл
+    private long mOffset = 0; //Загружено байт
+    private String mLastError; //Последняя ошибка опроса, чтобы не повторять ее в выводе
+    private ScheduledFuture<?> mTask; //Задача опроса
+
+    /**
+     * Конструктор.
+     *
+     * @param table Таблица.
+     * @param file  Файл.
+     */
+    TableFollower(Table table, File file) {
+        mTable = table;
+        mFile = file;
+    }
+
+    /**
+     * Загрузка файла и запуск слежения.
+     *
+     * @throws IOException При ошибке первой загрузки.
+     */
+    synchronized void start() throws IOException {
+        poll();
+        mTask = POLLER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                    mLastError = null;
+                } catch (Throwable t) {
+                    if (!String.valueOf(t).equals(mLastError)) {
+                        mLastError = String.valueOf(t);
+                        System.out.println("Ошибка при чтении файла " + mFile + " для таблицы " + mTable.getName() + ": " + t);
+                    }
+                }
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Остановка слежения.
+     */
+    synchronized void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+    }
+
+    /**
+     * Загрузка новых строк.
+     *
+     * @throws IOException При ошибке чтения.
+     */
+    private void poll() throws IOException {
+        long length = mFile.length();
+        if (length < mOffset) {
+            mOffset = 0;
+        }
+        if (length == mOffset) {
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            in.getChannel().position(mOffset);
+            long loaded = CsvParser.load(in, mTable.mDelimiter, Charset.defaultCharset(), mTable, true);
+            mOffset += loaded;
+            if (loaded > 0) {
+                mTable.appended();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package ru.pflb.httpserver.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Хеш-индексы по выбранным столбцам: значение ячейки - строки таблицы с этим значением.
+ * Строки хранятся записями {@link Entry} с позицией в буфере {@link RowRing}, поэтому индекс не зависит от сдвига номеров строк
+ * при вставке и удалении, поиск по значению - O(1), а номер найденной строки хранилище считает без перебора.
+ * Строки с одинаковым значением отдаются в порядке добавления в индекс.
+ * Вызывается под блокировкой таблицы.
+ */
+final class TableIndex {
+    private final int[] mColumns; //Индексируемые столбцы
+    private final ArrayList<HashMap<String, Rows>> mMaps; //Значение - строки с этим значением
+
+    /**
+     * Конструктор.
+     *
+     * @param columns Индексируемые столбцы.
+     */
+    private TableIndex(int[] columns) {
+        mColumns = columns;
+        mMaps = new ArrayList<>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            mMaps.add(new HashMap<String, Rows>());
+        }
+    }
+
+    /**
+     * Разбор списка столбцов вида "0,2".
+     *
+     * @param value Список столбцов, {@code null} или пустая строка - без индексов.
+     * @return Индекс или {@code null}.
+     */
+    static TableIndex parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        int[] columns = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                columns[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Неверный номер столбца для индекса: " + parts[i]);
+            }
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Неверный номер столбца для индекса: " + parts[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (columns[j] == columns[i]) {
+                    throw new IllegalArgumentException("Столбец " + columns[i] + " указан для индекса дважды");
+                }
+            }
+        }
+        return new TableIndex(columns);
+    }
+
+    /**
+     * Проверка, что по столбцу есть индекс.
+     *
+     * @param col Столбец.
+     * @return {@code true}, если есть.
+     */
+    boolean has(int col) {
+        return slot(col) >= 0;
+    }
+
+    /**
+     * Добавление строки в индексы.
+     *
+     * @param entry Запись строки.
+     */
+    void add(Entry entry) {
+        String[] row = entry.mCells;
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i] >= row.length) {
+                continue;
+            }
+            HashMap<String, Rows> map = mMaps.get(i);
+            String key = row[mColumns[i]];
+            Rows rows = map.get(key);
+            if (rows == null) {
+                map.put(key, new Rows(entry));
+            } else {
+                rows.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Удаление строки из индексов.
+     *
+     * @param entry Запись строки (та же, что была добавлена).
+     */
+    void remove(Entry entry) {
+        String[] row = entry.mCells;
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i] >= row.length) {
+                continue;
+            }
+            HashMap<String, Rows> map = mMaps.get(i);
+            String key = row[mColumns[i]];
+            Rows rows = map.get(key);
+            if (rows != null && rows.remove(entry)) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Поиск строки по значению.
+     *
+     * @param col   Столбец с индексом.
+     * @param value Значение.
+     * @return Первая добавленная строка с этим значением или {@code null}.
+     */
+    Entry find(int col, String value) {
+        int slot = slot(col);
+        if (slot < 0) {
+            throw new IllegalArgumentException("По столбцу " + col + " нет индекса");
+        }
+        Rows rows = mMaps.get(slot).get(value);
+        return rows == null ? null : rows.mFirst;
+    }
+
+    /**
+     * Очистка индексов.
+     */
+    void clear() {
+        for (HashMap<String, Rows> map : mMaps) {
+            map.clear();
+        }
+    }
+
+    private int slot(int col) {
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i] == col) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Строка в индексе: ячейки и позиция в буфере хранилища (позицию поддерживает {@link RowRing}).
+     */
+    static final class Entry {
+        final String[] mCells; //Ячейки
+        int mSlot; //Позиция в буфере
+
+        /**
+         * Конструктор.
+         *
+         * @param cells Ячейки.
+         * @param slot  Позиция в буфере.
+         */
+        Entry(String[] cells, int slot) {
+            mCells = cells;
+            mSlot = slot;
+        }
+    }
+
+    /**
+     * Строки с одним значением в порядке добавления.
+     */
+    private static final class Rows {
+        private Entry mFirst; //Первая добавленная строка
+        private ArrayDeque<Entry> mMore; //Следующие строки, null - их нет
+
+        private Rows(Entry first) {
+            mFirst = first;
+        }
+
+        private void add(Entry entry) {
+            if (mMore == null) {
+                mMore = new ArrayDeque<>(4);
+            }
+            mMore.add(entry);
+        }
+
+        /**
+         * Удаление строки. Обычно удаляется самая старая строка, она первая.
+         *
+         * @param entry Строка.
+         * @return {@code true}, если строк с этим значением не осталось.
+         */
+        private boolean remove(Entry entry) {
+            if (mFirst == entry) {
+                mFirst = mMore == null ? null : mMore.pollFirst();
+            } else if (mMore != null) {
+                mMore.removeFirstOccurrence(entry);
+            }
+            if (mMore != null && mMore.isEmpty()) {
+                mMore = null;
+            }
+            return mFirst == null;
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package ru.pflb.httpserver.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений таблицы: переживает перезапуск VTS, забранные строки не возвращаются, вставленные не теряются.
+ * <p>
+ * Изменения пишутся в журнал уже разрешенными (номер строки после применения курсора): вставка строки,
+ * удаление строки и замена строки (операции с ячейками). Запись кодируется в память под блокировкой таблицы,
+ * поэтому порядок записей совпадает с порядком изменений, а сама операция занимает микросекунды.
+ * Отдельный поток пишет накопленное на диск и вызывает fsync - все записи, пришедшие за время предыдущего fsync,
+ * уходят одним вызовом (group commit). С параметром sync запрос ждет, пока его запись окажется на диске.
+ * <p>
+ * Периодически снимается снимок таблицы: под блокировкой таблицы копируются строки и журнал переключается на
+ * новый файл (поколение), снимок пишется рядом во временный файл и атомарно переименовывается, после чего
+ * файлы журнала прежних поколений удаляются. При запуске загружается снимок (или исходный файл, если снимка нет)
+ * и применяются журналы поколений не младше снимка. Оборванная при сбое последняя запись отбрасывается по CRC.
+ * <p>
+ * Файлы: {@code <путь>.snapshot} и {@code <путь>.<поколение>.log}.
+ */
+class TableJournal {
+    static final byte INSERT = 1; //Вставка строки
+    static final byte REMOVE = 2; //Удаление строки
+    static final byte SET = 3; //Замена строки
+    private static final int SNAPSHOT_MAGIC = 0x56545331; //"VTS1"
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String LOG_SUFFIX = ".log";
+    private static final long RECOVERY_INTERVAL = 1000; //Пауза между попытками восстановления после ошибки записи, мс
+    private static final ScheduledExecutorService SNAPSHOTS = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VTS-snapshot");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private volatile Table mTable; //Таблица (меняется при передаче журнала)
+    private final File mBase; //Путь без суффиксов
+    private final boolean mSync; //Ждать записи на диск
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(); //Записи, еще не отданные на диск
+    private ByteArrayOutputStream mSpare = new ByteArrayOutputStream(); //Второй буфер для записи на диск
+    private final CRC32 mCrc = new CRC32(); //Контрольная сумма записи
+    private byte[] mScratch = new byte[256]; //Буфер кодирования записи
+    private long mAppended = 0; //Номер последней записи
+    private long mDurable = 0; //Номер последней записи на диске
+    private long mSinceSnapshot = 0; //Записей с последнего снимка
+    private long mGeneration; //Поколение текущего файла журнала
+    private FileChannel mLog; //Текущий файл журнала
+    private File mLogFile; //Путь к текущему файлу журнала
+    private boolean mClosed = false;
+    private IOException mFailure; //Ошибка записи: до восстановления записи не подтверждаются
+    private Thread mFlusher; //Поток записи на диск
+    private ScheduledFuture<?> mSnapshotTask; //Задача снимков
+    private final Object mSnapshotLock = new Object(); //Один снимок за раз
+    private final Object mWriteLock = new Object(); //Запись в файл журнала и его переключение
+
+    /**
+     * Конструктор.
+     *
+     * @param table Таблица.
+     * @param path  Путь к файлам журнала без суффиксов.
+     * @param sync  Ждать записи на диск.
+     */
+    private TableJournal(Table table, String path, boolean sync) {
+        mTable = table;
+        mBase = new File(path).getAbsoluteFile();
+        mSync = sync;
+    }
+
+    /**
+     * Восстановление таблицы и запуск журнала.
+     *
+     * @param table            Пустая таблица.
+     * @param path             Путь к файлам журнала.
+     * @param sync             Ждать записи на диск.
+     * @param snapshotInterval Период снимков, с.
+     * @param restore          {@code true} - восстановить состояние из снимка и журнала,
+     *                         {@code false} - загрузить исходный файл и начать журнал заново.
+     * @return Журнал.
+     * @throws IOException При ошибке чтения или записи.
+     */
+    static TableJournal open(Table table, String path, boolean sync, int snapshotInterval, boolean restore) throws IOException {
+        TableJournal journal = new TableJournal(table, path, sync);
+        File dir = journal.mBase.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Невозможно создать каталог журнала: " + dir);
+        }
+        TreeMap<Long, File> logs = journal.listLogs();
+        long snapshotGeneration = restore ? journal.readSnapshot() : -1;
+        if (snapshotGeneration < 0 && table.mFileName != null && !table.mFileName.isEmpty()) {
+            table.loadFromFile();
+        }
+        if (restore) {
+            for (File log : logs.tailMap(Math.max(snapshotGeneration, 0)).values()) {
+                journal.replay(log);
+            }
+        }
+        journal.mGeneration = (logs.isEmpty() ? 0 : logs.lastKey()) + 1;
+        journal.openLog();
+        if (!restore) {
+            journal.snapshot(false);
+        }
+        journal.startFlusher();
+        if (snapshotInterval > 0) {
+            final TableJournal j = journal;
+            journal.mSnapshotTask = SNAPSHOTS.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        j.snapshotIfChanged();
+                    } catch (Throwable t) {
+                        System.out.println("Ошибка при записи снимка таблицы " + j.mTable.getName());
+                        t.printStackTrace();
+                    }
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        return journal;
+    }
+
+    /**
+     * Запись изменения. Вызывается под блокировкой таблицы.
+     *
+     * @param type  Тип записи.
+     * @param row   Строка.
+     * @param cells Ячейки (для {@link #REMOVE} - {@code null}).
+     */
+    synchronized void append(byte type, int row, String[] cells) {
+        int length = 1 + 4 + (cells == null ? 0 : 4);
+        byte[][] encoded = null;
+        if (cells != null) {
+            encoded = new byte[cells.length][];
+            for (int i = 0; i < cells.length; i++) {
+                encoded[i] = cells[i].getBytes(StandardCharsets.UTF_8);
+                length += 4 + encoded[i].length;
+            }
+        }
+        ByteBuffer b = scratch(8 + length);
+        b.putInt(length).putInt(0).put(type).putInt(row);
+        if (encoded != null) {
+            b.putInt(encoded.length);
+            for (byte[] cell : encoded) {
+                b.putInt(cell.length).put(cell);
+            }
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 8, length);
+        b.putInt(4, (int) mCrc.getValue());
+        boolean wasEmpty = mBuffer.size() == 0;
+        mBuffer.write(mScratch, 0, 8 + length);
+        mAppended++;
+        mSinceSnapshot++;
+        if (wasEmpty) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Ожидание записи на диск всего, что уже попало в журнал (только в режиме sync).
+     *
+     * @throws UncheckedIOException Если запись на диск не удалась (ответ 500).
+     */
+    void await() {
+        if (!mSync) {
+            return;
+        }
+        long lockStart = LockWait.start();
+        synchronized (this) {
+            long target = mAppended;
+            boolean interrupted = false;
+            while (mDurable < target && !mClosed && mFailure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            LockWait.acquired(lockStart);
+            if (mDurable < target && mFailure != null) {
+                throw new UncheckedIOException("Изменение не записано в журнал таблицы " + mTable.getName(), mFailure);
+            }
+        }
+    }
+
+    /**
+     * Остановка журнала: все записи сбрасываются на диск.
+     */
+    void close() {
+        if (mSnapshotTask != null) {
+            mSnapshotTask.cancel(false);
+        }
+        synchronized (mSnapshotLock) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                notifyAll();
+            }
+        }
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Запуск потока записи на диск.
+     */
+    private void startFlusher() {
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "VTS-journal-" + mTable.getName());
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    /**
+     * Цикл записи: забираем все накопленное, пишем одним вызовом и делаем fsync.
+     * После ошибки записи записи не подтверждаются, пока снимок не зафиксирует состояние заново (см. {@link #recover()}).
+     */
+    private void flushLoop() {
+        while (true) {
+            boolean failed;
+            synchronized (this) {
+                while (mBuffer.size() == 0 && !mClosed && mFailure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                failed = mFailure != null;
+                if (failed && mClosed) {
+                    closeLog();
+                    return;
+                }
+            }
+            if (failed) {
+                recover();
+                continue;
+            }
+            synchronized (mWriteLock) {
+                ByteArrayOutputStream batch;
+                long appended;
+                boolean closed;
+                synchronized (this) {
+                    batch = mBuffer;
+                    mBuffer = mSpare;
+                    mSpare = batch;
+                    appended = mAppended;
+                    closed = mClosed;
+                }
+                IOException error = null;
+                try {
+                    write(mLog, batch);
+                } catch (IOException e) {
+                    error = e;
+                }
+                batch.reset();
+                synchronized (this) {
+                    if (error != null) {
+                        //Пачка могла записаться частично: ее изменения войдут в снимок восстановления
+                        fail(error);
+                        continue;
+                    }
+                    mDurable = appended;
+                    notifyAll();
+                    if (closed && mBuffer.size() == 0) {
+                        closeLog();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Закрытие файла журнала при остановке (пустой файл удаляется). Вызывается под блокировкой журнала.
+     */
+    private void closeLog() {
+        try {
+            boolean empty = mLog.size() == 0;
+            mLog.close();
+            if (empty) {
+                Files.deleteIfExists(mLogFile.toPath());
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Учет ошибки записи: ожидающие получают ошибку, новые записи не подтверждаются до восстановления.
+     * Вызывается под блокировкой журнала.
+     *
+     * @param e Ошибка.
+     */
+    private void fail(IOException e) {
+        if (mFailure == null) {
+            System.out.println("Ошибка записи журнала таблицы " + mTable.getName() + ", изменения не подтверждаются до восстановления: " + e);
+        }
+        mFailure = e;
+        notifyAll();
+    }
+
+    /**
+     * Восстановление после ошибки записи: снимок заново фиксирует все строки таблицы в новом поколении журнала,
+     * поэтому частично записанная пачка в старом поколении не применяется. При новой ошибке - повтор через паузу.
+     */
+    private void recover() {
+        try {
+            snapshot(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                fail(e);
+                if (!mClosed) {
+                    try {
+                        wait(RECOVERY_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        mClosed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Запись пачки в файл журнала с fsync.
+     *
+     * @param log   Файл.
+     * @param batch Пачка.
+     * @throws IOException При ошибке.
+     */
+    private static void write(FileChannel log, ByteArrayOutputStream batch) throws IOException {
+        if (batch.size() > 0) {
+            ByteBuffer b = ByteBuffer.wrap(batch.toByteArray());
+            while (b.hasRemaining()) {
+                log.write(b);
+            }
+        }
+        log.force(false);
+    }
+
+    /**
+     * Снимок, если с прошлого снимка были изменения.
+     *
+     * @throws IOException При ошибке записи.
+     */
+    private void snapshotIfChanged() throws IOException {
+        synchronized (this) {
+            if (mSinceSnapshot == 0 || mClosed) {
+                return;
+            }
+        }
+        snapshot(false);
+    }
+
+    /**
+     * Переход журнала к другой таблице (перезагрузка): журнал начинается заново со снимка ее строк.
+     * Прежняя таблица к этому моменту уже не пишет в журнал.
+     *
+     * @param table Таблица.
+     * @throws IOException При ошибке записи снимка.
+     */
+    void attach(Table table) throws IOException {
+        synchronized (mSnapshotLock) {
+            mTable = table;
+            snapshot(true);
+        }
+    }
+
+    /**
+     * Снимок: копия строк и переключение журнала атомарно относительно изменений таблицы,
+     * затем запись снимка и удаление старых журналов.
+     *
+     * @param attach Подключить журнал к таблице вместе с копией строк.
+     * @throws IOException При ошибке записи.
+     */
+    private void snapshot(boolean attach) throws IOException {
+        synchronized (mSnapshotLock) {
+            if (mClosed) {
+                return;
+            }
+            List<String[]> rows;
+            long generation;
+            long covered; //Записи, вошедшие в снимок
+            synchronized (mTable) {
+                rows = ((Journaled) mTable).copyRows();
+                synchronized (mWriteLock) {
+                    synchronized (this) {
+                        //Остаток старого поколения дописывается здесь же, дальше записи идут в новый файл.
+                        //После ошибки записи старое поколение не дописывается: все изменения есть в копии строк
+                        if (mFailure == null) {
+                            try {
+                                write(mLog, mBuffer);
+                                mDurable = mAppended;
+                            } catch (IOException e) {
+                                fail(e);
+                            }
+                        }
+                        covered = mAppended;
+                        mBuffer.reset();
+                        notifyAll();
+                        mLog.close();
+                        generation = ++mGeneration;
+                        openLog();
+                        mSinceSnapshot = 0;
+                    }
+                }
+                if (attach) {
+                    //Изменения таблицы после копии попадут в новое поколение
+                    mTable.mJournal = this;
+                }
+            }
+            File tmp = new File(mBase.getPath() + SNAPSHOT_SUFFIX + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(generation);
+                out.writeInt(rows.size());
+                for (String[] row : rows) {
+                    writeCells(out, row);
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(mBase.getPath() + SNAPSHOT_SUFFIX).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                if (mFailure != null) {
+                    System.out.println("Журнал таблицы " + mTable.getName() + " восстановлен снимком");
+                    mFailure = null;
+                    mDurable = Math.max(mDurable, covered);
+                    notifyAll();
+                }
+            }
+            for (File log : listLogs().headMap(generation).values()) {
+                Files.deleteIfExists(log.toPath());
+            }
+        }
+    }
+
+    /**
+     * Чтение снимка в таблицу.
+     *
+     * @return Поколение снимка, -1 - снимка нет.
+     * @throws IOException При ошибке чтения.
+     */
+    private long readSnapshot() throws IOException {
+        File file = new File(mBase.getPath() + SNAPSHOT_SUFFIX);
+        if (!file.isFile()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Неверный формат снимка: " + file);
+            }
+            long generation = in.readLong();
+            int count = in.readInt();
+            ArrayList<String[]> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                rows.add(readCells(in));
+            }
+            mTable.addRows(rows);
+            return generation;
+        }
+    }
+
+    /**
+     * Применение файла журнала к таблице. Чтение останавливается на первой неполной или испорченной записи.
+     *
+     * @param file Файл журнала.
+     * @throws IOException При ошибке чтения.
+     */
+    private void replay(File file) throws IOException {
+        Journaled table = (Journaled) mTable;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int sum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    sum = in.readInt();
+                    if (length <= 0) {
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != sum) {
+                    System.out.println("Журнал " + file + " оборван, последние записи пропущены");
+                    return;
+                }
+                ByteBuffer b = ByteBuffer.wrap(payload);
+                byte type = b.get();
+                int row = b.getInt();
+                String[] cells = null;
+                if (type != REMOVE) {
+                    cells = new String[b.getInt()];
+                    for (int i = 0; i < cells.length; i++) {
+                        int len = b.getInt();
+                        cells[i] = new String(payload, b.position(), len, StandardCharsets.UTF_8);
+                        b.position(b.position() + len);
+                    }
+                }
+                switch (type) {
+                    case INSERT:
+                        table.applyInsert(row, cells);
+                        break;
+                    case REMOVE:
+                        table.applyRemove(row);
+                        break;
+                    case SET:
+                        table.applySet(row, cells);
+                        break;
+                    default:
+                        throw new IOException("Неизвестная запись журнала " + type + " в " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Файлы журнала по поколениям.
+     *
+     * @return Файлы журнала.
+     */
+    private TreeMap<Long, File> listLogs() {
+        TreeMap<Long, File> logs = new TreeMap<>();
+        File dir = mBase.getParentFile();
+        String prefix = mBase.getName() + ".";
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.endsWith(LOG_SUFFIX)) {
+                    try {
+                        logs.put(Long.parseLong(name.substring(prefix.length(), name.length() - LOG_SUFFIX.length())), f);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Открытие файла журнала текущего поколения.
+     *
+     * @throws IOException При ошибке.
+     */
+    private void openLog() throws IOException {
+        mLogFile = new File(mBase.getPath() + "." + mGeneration + LOG_SUFFIX);
+        mLog = FileChannel.open(mLogFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private ByteBuffer scratch(int capacity) {
+        if (mScratch.length < capacity) {
+            mScratch = new byte[Math.max(capacity, mScratch.length * 2)];
+        }
+        return ByteBuffer.wrap(mScratch);
+    }
+
+    private static void writeCells(DataOutputStream out, String[] cells) throws IOException {
+        out.writeInt(cells.length);
+        for (String cell : cells) {
+            byte[] bytes = cell.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readCells(DataInputStream in) throws IOException {
+        String[] cells = new String[in.readInt()];
+        for (int i = 0; i < cells.length; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            cells[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return cells;
+    }
+}